@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.cloud.stream.app.jdbc.ShorthandMapConverter;
+import org.springframework.context.expression.MapAccessor;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.integration.expression.ExpressionUtils;
+import org.springframework.integration.json.JsonPropertyAccessor;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Measures the per-row cost of evaluating the column expressions in {@link ParameterFactory}
+ * for the payload types the JDBC sink usually receives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParameterFactoryBenchmark {
+
+	@Param({ "map", "json", "bean" })
+	public String payloadType;
+
+	@Param({ "a,b", "a,b,c:headers[c],d:payload.toString()" })
+	public String columns;
+
+	private ParameterFactory parameterFactory;
+
+	private Message<?> message;
+
+	@Setup
+	public void setup() {
+		SpelExpressionParser parser = new SpelExpressionParser();
+		MultiValueMap<String, Expression> columnExpressions = new LinkedMultiValueMap<>();
+		for (Map.Entry<String, String> entry : new ShorthandMapConverter().convert(this.columns).entrySet()) {
+			String value = entry.getValue();
+			columnExpressions.add(entry.getKey(), parser.parseExpression(value));
+			if (!value.startsWith("payload")) {
+				columnExpressions.add(entry.getKey(), parser.parseExpression("payload." + value));
+			}
+		}
+		// mirror the accessors the integration evaluation context registers in the app
+		StandardEvaluationContext context = ExpressionUtils.createStandardEvaluationContext();
+		context.addPropertyAccessor(new MapAccessor());
+		context.addPropertyAccessor(new JsonPropertyAccessor());
+		this.parameterFactory = new ParameterFactory(columnExpressions, context);
+
+		Object payload;
+		switch (this.payloadType) {
+			case "map":
+				Map<String, Object> map = new HashMap<>();
+				map.put("a", "hello");
+				map.put("b", 42);
+				payload = map;
+				break;
+			case "json":
+				payload = "{\"a\": \"hello\", \"b\": 42}";
+				break;
+			default:
+				payload = new Payload("hello", 42);
+		}
+		this.message = MessageBuilder.withPayload(payload).setHeader("c", "header").build();
+	}
+
+	@Benchmark
+	public SqlParameterSource createParameterSource() {
+		return this.parameterFactory.createParameterSource(this.message);
+	}
+
+	@Benchmark
+	public Object[] createRow() {
+		return this.parameterFactory.createRow(this.message);
+	}
+
+	public static class Payload {
+
+		private final String a;
+
+		private final Integer b;
+
+		public Payload(String a, Integer b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public String getA() {
+			return this.a;
+		}
+
+		public Integer getB() {
+			return this.b;
+		}
+
+		@Override
+		public String toString() {
+			return this.a + this.b;
+		}
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.messaging.Message;
+
+/**
+ * Measures a single poll of the JDBC source's polling channel adapter against embedded
+ * databases. Throughput is polls per second; multiply by {@code maxRowsPerPoll} for rows.
+ * The application's own trigger is pushed out by a day so it does not compete for rows.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JdbcSourceBenchmark {
+
+	private static final int ROWS = 10000;
+
+	@Param({ "h2", "hsqldb" })
+	public String database;
+
+	@Param({ "1", "100", "1000" })
+	public int maxRowsPerPoll;
+
+	private ConfigurableApplicationContext context;
+
+	private MessageSource<?> messageSource;
+
+	@Setup
+	public void setup() {
+		String url = "h2".equals(this.database)
+				? "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1"
+				: "jdbc:hsqldb:mem:bench";
+		this.context = new SpringApplicationBuilder(JdbcSourceBenchmarkApplication.class)
+				.web(WebApplicationType.NONE)
+				.properties("spring.datasource.url=" + url,
+						"jdbc.query=select id, name, tag from bench order by id",
+						"jdbc.max-rows-per-poll=" + this.maxRowsPerPoll,
+						"trigger.initial-delay=1",
+						"trigger.time-unit=DAYS")
+				.run();
+		JdbcOperations jdbcOperations = this.context.getBean(JdbcOperations.class);
+		jdbcOperations.execute("CREATE TABLE bench (id INTEGER, name VARCHAR(255), tag VARCHAR(255))");
+		for (int i = 0; i < ROWS; i++) {
+			jdbcOperations.update("INSERT INTO bench VALUES (?, ?, ?)", i, "name" + i, null);
+		}
+		this.messageSource = this.context.getBean("jdbcMessageSource", MessageSource.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.context.getBean(JdbcOperations.class).execute("DROP TABLE bench");
+		this.context.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Message<?> poll() {
+		return this.messageSource.receive();
+	}
+
+	@Configuration
+	@EnableAutoConfiguration
+	@Import(JdbcSourceConfiguration.class)
+	public static class JdbcSourceBenchmarkApplication {
+
+	}
+
+}
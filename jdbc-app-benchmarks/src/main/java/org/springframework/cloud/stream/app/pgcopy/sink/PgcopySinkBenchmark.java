@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * End-to-end throughput and per-batch latency of the pgcopy sink. Needs a PostgreSQL
+ * server; the connection defaults to the one used by the integration tests and can be
+ * overridden with the {@code benchmark.postgres.url}, {@code benchmark.postgres.username}
+ * and {@code benchmark.postgres.password} system properties.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PgcopySinkBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int batchSize;
+
+	@Param({ "TEXT", "CSV" })
+	public String format;
+
+	private ConfigurableApplicationContext context;
+
+	private MessageChannel input;
+
+	private JdbcOperations jdbcOperations;
+
+	private Message<?> message;
+
+	@Setup
+	public void setup() {
+		this.context = new SpringApplicationBuilder(PgcopySinkBenchmarkApplication.class)
+				.web(WebApplicationType.NONE)
+				.properties("spring.datasource.url="
+								+ System.getProperty("benchmark.postgres.url", "jdbc:postgresql://127.0.0.1:5432/test"),
+						"spring.datasource.username=" + System.getProperty("benchmark.postgres.username", "postgres"),
+						"spring.datasource.password=" + System.getProperty("benchmark.postgres.password", "spring"),
+						"pgcopy.table-name=bench",
+						"pgcopy.columns=id,name,age",
+						"pgcopy.initialize=true",
+						"pgcopy.format=" + this.format,
+						"pgcopy.batch-size=" + this.batchSize)
+				.run();
+		this.input = this.context.getBean(Sink.class).input();
+		this.jdbcOperations = this.context.getBean(JdbcOperations.class);
+		this.message = MessageBuilder.withPayload("CSV".equals(this.format) ? "123,\"Nisse\",25" : "123\tNisse\t25")
+				.build();
+	}
+
+	@TearDown(Level.Iteration)
+	public void truncate() {
+		this.jdbcOperations.execute("TRUNCATE TABLE bench");
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.context.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean send() {
+		return this.input.send(this.message);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void flushBatch() {
+		for (int i = 0; i < this.batchSize; i++) {
+			this.input.send(this.message);
+		}
+	}
+
+	@Configuration
+	@EnableAutoConfiguration
+	@Import(PgcopySinkConfiguration.class)
+	public static class PgcopySinkBenchmarkApplication {
+
+	}
+
+}
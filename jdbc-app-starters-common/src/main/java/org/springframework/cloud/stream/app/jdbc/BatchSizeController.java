@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.util.Assert;
+
+/**
+ * Holds the batch size the sinks release their aggregated groups at.
+ * <p>
+ * When adaptive, the size is tuned from the flushes reported through {@link #record(int, long)}
+ * with an additive-increase/multiplicative-decrease scheme: while full batches keep the
+ * throughput (rows per second) at or above its recent average, the size grows by a fixed
+ * step; when throughput drops, or a flush takes longer than the configured maximum latency,
+ * the size is halved. The size always stays within the configured bounds.
+ */
+public class BatchSizeController {
+
+	private static final Log logger = LogFactory.getLog(BatchSizeController.class);
+
+	/**
+	 * Relative throughput drop tolerated before backing off, absorbing measurement noise.
+	 */
+	private static final double TOLERANCE = 0.1;
+
+	/**
+	 * Weight of the latest flush in the throughput average.
+	 */
+	private static final double ALPHA = 0.3;
+
+	private final boolean adaptive;
+
+	private final int minBatchSize;
+
+	private final int maxBatchSize;
+
+	private final int increment;
+
+	private final long maxFlushLatencyNanos;
+
+	private volatile int batchSize;
+
+	private double averageThroughput;
+
+	/**
+	 * Create a controller for a fixed batch size.
+	 * @param batchSize the batch size
+	 */
+	public BatchSizeController(int batchSize) {
+		this(batchSize, false, batchSize, batchSize, 0);
+	}
+
+	/**
+	 * Create a controller.
+	 * @param batchSize the initial batch size
+	 * @param adaptive whether to tune the batch size from the recorded flushes
+	 * @param minBatchSize the lower bound when adaptive
+	 * @param maxBatchSize the upper bound when adaptive
+	 * @param maxFlushLatency the flush time in milliseconds above which the size is halved, or 0 for none
+	 */
+	public BatchSizeController(int batchSize, boolean adaptive, int minBatchSize, int maxBatchSize,
+			long maxFlushLatency) {
+		Assert.isTrue(!adaptive || (minBatchSize > 0 && minBatchSize <= maxBatchSize),
+				"'minBatchSize' must be greater than 0 and not greater than 'maxBatchSize'");
+		this.adaptive = adaptive;
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.increment = Math.max(1, (maxBatchSize - minBatchSize) / 100);
+		this.maxFlushLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushLatency);
+		this.batchSize = adaptive ? clamp(batchSize) : batchSize;
+	}
+
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	/**
+	 * Change the batch size for the groups to come; when adaptive it becomes the new starting
+	 * point of the tuning and is kept within the configured bounds.
+	 * @param batchSize the batch size
+	 */
+	public synchronized void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "'batchSize' must be greater than 0");
+		if (this.adaptive) {
+			this.averageThroughput = 0;
+			resize(batchSize);
+		}
+		else {
+			this.batchSize = batchSize;
+		}
+	}
+
+	public boolean isAdaptive() {
+		return this.adaptive;
+	}
+
+	/**
+	 * Record a flush and, when adaptive, adjust the batch size for the groups to come.
+	 * @param rows the number of rows in the flushed batch
+	 * @param nanos the time taken by the flush
+	 */
+	public synchronized void record(int rows, long nanos) {
+		if (!this.adaptive || rows == 0 || nanos <= 0) {
+			return;
+		}
+		int current = this.batchSize;
+		if (this.maxFlushLatencyNanos > 0 && nanos > this.maxFlushLatencyNanos) {
+			resize(current / 2);
+			return;
+		}
+		if (rows < current) {
+			// released on idle timeout: says nothing about what a full batch would do
+			return;
+		}
+		double throughput = rows * 1e9 / nanos;
+		if (this.averageThroughput == 0 || throughput >= this.averageThroughput * (1 - TOLERANCE)) {
+			this.averageThroughput = this.averageThroughput == 0 ? throughput
+					: ALPHA * throughput + (1 - ALPHA) * this.averageThroughput;
+			resize(current + this.increment);
+		}
+		else {
+			this.averageThroughput = ALPHA * throughput + (1 - ALPHA) * this.averageThroughput;
+			resize(current / 2);
+		}
+	}
+
+	private void resize(int size) {
+		int newSize = clamp(size);
+		if (newSize != this.batchSize) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Batch size changed from " + this.batchSize + " to " + newSize);
+			}
+			this.batchSize = newSize;
+		}
+	}
+
+	private int clamp(int size) {
+		return Math.max(this.minBatchSize, Math.min(this.maxBatchSize, size));
+	}
+
+}
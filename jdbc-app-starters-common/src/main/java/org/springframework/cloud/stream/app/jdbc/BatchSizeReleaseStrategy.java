@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import org.springframework.integration.aggregator.MessageCountReleaseStrategy;
+import org.springframework.integration.aggregator.ReleaseStrategy;
+import org.springframework.integration.store.MessageGroup;
+
+/**
+ * Like {@link MessageCountReleaseStrategy}, but reads the threshold from a
+ * {@link BatchSizeController} on every check, so that a changed batch size applies to the
+ * group being aggregated.
+ */
+public class BatchSizeReleaseStrategy implements ReleaseStrategy {
+
+	private final BatchSizeController batchSizeController;
+
+	public BatchSizeReleaseStrategy(BatchSizeController batchSizeController) {
+		this.batchSizeController = batchSizeController;
+	}
+
+	@Override
+	public boolean canRelease(MessageGroup group) {
+		return group.size() >= this.batchSizeController.getBatchSize();
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+
+/**
+ * Actuator endpoint exposing the batching parameters of a sink and allowing them to be
+ * changed without a restart.
+ * <p>
+ * A new batch size applies to the groups being aggregated, a new idle timeout from the next
+ * message on and a new concurrency to the next batch handed to the writers.
+ */
+@Endpoint(id = "batching")
+public class BatchingEndpoint {
+
+	private final BatchSizeController batchSizeController;
+
+	private final IdleTimeout idleTimeout;
+
+	private final ConcurrentWriter concurrentWriter;
+
+	/**
+	 * Create an endpoint.
+	 * @param batchSizeController the sink's batch size
+	 * @param idleTimeout the sink's idle timeout
+	 * @param concurrentWriter the sink's writer, or {@code null} if it writes on the calling thread
+	 */
+	public BatchingEndpoint(BatchSizeController batchSizeController, IdleTimeout idleTimeout,
+			@Nullable ConcurrentWriter concurrentWriter) {
+		this.batchSizeController = batchSizeController;
+		this.idleTimeout = idleTimeout;
+		this.concurrentWriter = concurrentWriter;
+	}
+
+	@ReadOperation
+	public Map<String, Object> batching() {
+		Map<String, Object> batching = new LinkedHashMap<>();
+		batching.put("batchSize", this.batchSizeController.getBatchSize());
+		batching.put("adaptiveBatchSize", this.batchSizeController.isAdaptive());
+		batching.put("idleTimeout", this.idleTimeout.getIdleTimeout());
+		if (this.concurrentWriter != null) {
+			batching.put("concurrency", this.concurrentWriter.getConcurrency());
+		}
+		return batching;
+	}
+
+	@WriteOperation
+	public Map<String, Object> update(@Nullable Integer batchSize, @Nullable Long idleTimeout,
+			@Nullable Integer concurrency) {
+		if (batchSize != null && batchSize <= 0) {
+			throw new InvalidEndpointRequestException("'batchSize' must be greater than 0",
+					"Invalid batch size " + batchSize);
+		}
+		if (concurrency != null) {
+			if (this.concurrentWriter == null) {
+				throw new InvalidEndpointRequestException("This sink does not support changing its concurrency",
+						"Concurrency not supported");
+			}
+			if (concurrency < 1) {
+				throw new InvalidEndpointRequestException("'concurrency' must be at least 1",
+						"Invalid concurrency " + concurrency);
+			}
+		}
+		if (batchSize != null) {
+			this.batchSizeController.setBatchSize(batchSize);
+		}
+		if (idleTimeout != null) {
+			this.idleTimeout.setIdleTimeout(idleTimeout);
+		}
+		if (concurrency != null) {
+			this.concurrentWriter.setConcurrency(concurrency);
+		}
+		return batching();
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+/**
+ * A sink component writing batches on a pool of threads whose size can be changed while
+ * running.
+ */
+public interface ConcurrentWriter {
+
+	/**
+	 * Return the number of batches that can be written concurrently.
+	 * @return the concurrency
+	 */
+	int getConcurrency();
+
+	/**
+	 * Change the number of batches that can be written concurrently.
+	 * @param concurrency the concurrency, at least 1
+	 */
+	void setConcurrency(int concurrency);
+
+}
@@ -18,15 +18,21 @@ package org.springframework.cloud.stream.app.jdbc;
 
 import java.nio.charset.Charset;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.util.Assert;
 
 /**
  * An in-memory script crafted for dropping-creating the table we're working with.
- * All columns are created as VARCHAR(2000).
+ * Columns are created as VARCHAR(2000) unless their type is declared, except for the
+ * column of a {@link TimePartitioning}, created as TIMESTAMP WITH TIME ZONE by default.
+ * A primary key and single-column indexes can be declared too.
  *
  * @author Eric Bottard
  * @author Thomas Risberg
@@ -36,10 +42,70 @@ public class DefaultInitializationScriptResource extends ByteArrayResource {
 	private static final Log logger = LogFactory.getLog(DefaultInitializationScriptResource.class);
 
 	public DefaultInitializationScriptResource(String tableName, Collection<String> columns) {
-		super(scriptFor(tableName, columns).getBytes(Charset.forName("UTF-8")));
+		this(tableName, columns, null);
 	}
 
-	private static String scriptFor(String tableName, Collection<String> columns) {
+	/**
+	 * Create a script for a table that is range-partitioned on a time column when
+	 * {@code partitioning} is not {@code null}. The partitions themselves are not created.
+	 */
+	public DefaultInitializationScriptResource(String tableName, Collection<String> columns,
+			TimePartitioning partitioning) {
+		this(tableName, columns, Collections.emptyMap(), Collections.emptyList(), Collections.emptyList(),
+				partitioning);
+	}
+
+	/**
+	 * Create a script for a table with declared column types, primary key and indexes.
+	 * @param tableName the table
+	 * @param columns the columns, in order
+	 * @param columnTypes the SQL types of some of the columns, by column name
+	 * @param primaryKey the columns of the primary key, if any
+	 * @param indexedColumns the columns to create an index on, each on its own
+	 * @param partitioning the partitioning of the table, or {@code null}
+	 */
+	public DefaultInitializationScriptResource(String tableName, Collection<String> columns,
+			Map<String, String> columnTypes, Collection<String> primaryKey, Collection<String> indexedColumns,
+			TimePartitioning partitioning) {
+		super(scriptFor(tableName, columns, columnTypes, primaryKey, indexedColumns, partitioning)
+				.getBytes(Charset.forName("UTF-8")));
+	}
+
+	/**
+	 * Parse column types declared as comma separated {@literal column:type} pairs, with commas
+	 * and colons in types escaped by a backslash. Unlike other shorthand maps, every entry must
+	 * have a type: a bare {@literal column} is rejected rather than typed after its own name.
+	 * @param columnTypes the declared types
+	 * @return the types by column name
+	 */
+	public static Map<String, String> parseColumnTypes(String columnTypes) {
+		for (String mapping : columnTypes.split("(?<!\\\\),")) {
+			String entry = mapping.trim();
+			Assert.isTrue(entry.isEmpty() || entry.split("(?<!\\\\):").length == 2,
+					"No type declared for column '" + entry + "', expected 'column:type'");
+		}
+		return new ShorthandMapConverter().convert(columnTypes);
+	}
+
+	private static String scriptFor(String tableName, Collection<String> columns, Map<String, String> columnTypes,
+			Collection<String> primaryKey, Collection<String> indexedColumns, TimePartitioning partitioning) {
+		Map<String, String> types = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		types.putAll(columnTypes);
+		for (Map.Entry<String, String> type : types.entrySet()) {
+			Assert.isTrue(containsIgnoreCase(columns, type.getKey()),
+					"Type declared for unknown column '" + type.getKey() + "'");
+			Assert.hasText(type.getValue(), "No type declared for column '" + type.getKey() + "'");
+		}
+		for (String column : primaryKey) {
+			Assert.isTrue(containsIgnoreCase(columns, column), "Unknown primary key column '" + column + "'");
+		}
+		Assert.isTrue(partitioning == null || primaryKey.isEmpty()
+						|| containsIgnoreCase(primaryKey, partitioning.getColumn()),
+				"The primary key of a partitioned table must include the partition column '"
+						+ (partitioning != null ? partitioning.getColumn() : null) + "'");
+		for (String column : indexedColumns) {
+			Assert.isTrue(containsIgnoreCase(columns, column), "Unknown indexed column '" + column + "'");
+		}
 		StringBuilder result = new StringBuilder("DROP TABLE ");
 		result.append(tableName).append(";\n\n");
 
@@ -49,11 +115,36 @@ public class DefaultInitializationScriptResource extends ByteArrayResource {
 			if (i++ > 0) {
 				result.append(", ");
 			}
-			result.append(column).append(" VARCHAR(2000)");
+			if (types.containsKey(column)) {
+				result.append(column).append(' ').append(types.get(column));
+			}
+			else if (partitioning != null && column.equalsIgnoreCase(partitioning.getColumn())) {
+				result.append(column).append(" TIMESTAMP WITH TIME ZONE");
+			}
+			else {
+				result.append(column).append(" VARCHAR(2000)");
+			}
+		}
+		if (!primaryKey.isEmpty()) {
+			result.append(", PRIMARY KEY (").append(String.join(", ", primaryKey)).append(')');
+		}
+		result.append(')');
+		if (partitioning != null) {
+			result.append(' ').append(partitioning.partitionClause());
+		}
+		result.append(";\n");
+		// index names are not schema-qualified, they live in the schema of their table
+		String indexPrefix = tableName.substring(tableName.lastIndexOf('.') + 1);
+		for (String column : indexedColumns) {
+			result.append("\nCREATE INDEX ").append(indexPrefix).append('_').append(column).append("_idx ON ")
+					.append(tableName).append(" (").append(column).append(");\n");
 		}
-		result.append(");\n");
 		logger.debug(String.format("Generated the following initializing script for table %s:\n%s", tableName,
 				result.toString()));
 		return result.toString();
 	}
+
+	private static boolean containsIgnoreCase(Collection<String> columns, String column) {
+		return columns.stream().anyMatch(column::equalsIgnoreCase);
+	}
 }
\ No newline at end of file
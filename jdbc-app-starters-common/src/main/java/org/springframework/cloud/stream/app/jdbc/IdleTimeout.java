@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import org.springframework.expression.Expression;
+import org.springframework.integration.expression.SupplierExpression;
+
+/**
+ * Holds the time in milliseconds after which an idle aggregated group is flushed, negative
+ * meaning never unless a fallback timeout is given.
+ * <p>
+ * Used as the aggregator's group timeout through {@link #asExpression()}, which is evaluated
+ * as each message arrives, so a changed value applies from the next message on.
+ */
+public class IdleTimeout {
+
+	private volatile long idleTimeout;
+
+	private final long negativeTimeout;
+
+	public IdleTimeout(long idleTimeout) {
+		this(idleTimeout, -1L);
+	}
+
+	/**
+	 * Create an instance flushing idle groups after {@code negativeTimeout} while the idle
+	 * timeout is negative.
+	 * @param idleTimeout the initial idle timeout
+	 * @param negativeTimeout the timeout applied while the idle timeout is negative, itself
+	 * negative for never
+	 */
+	public IdleTimeout(long idleTimeout, long negativeTimeout) {
+		this.idleTimeout = idleTimeout;
+		this.negativeTimeout = negativeTimeout;
+	}
+
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Return a group timeout expression reading the current value; while the timeout is
+	 * negative it evaluates to the fallback timeout, or to {@code null}, leaving the group
+	 * alone, if there is none.
+	 * @return the expression
+	 */
+	public Expression asExpression() {
+		return new SupplierExpression<>(() -> {
+			long timeout = this.idleTimeout >= 0 ? this.idleTimeout : this.negativeTimeout;
+			return timeout >= 0 ? timeout : null;
+		});
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import org.springframework.integration.store.MessageGroupStore;
+
+/**
+ * Meters shared by the batching JDBC sinks. All meters are named after the given prefix
+ * (e.g. {@code jdbc.sink.flush}) and tagged with the target table name:
+ * <ul>
+ * <li>{@code <prefix>.batch.size} - number of messages per flushed batch</li>
+ * <li>{@code <prefix>.batch.size.target} - batch size groups are currently released at</li>
+ * <li>{@code <prefix>.flush} - time taken to write a batch</li>
+ * <li>{@code <prefix>.rows} - rows written or failed, tagged with {@code result}</li>
+ * <li>{@code <prefix>.error.table.writes} - rows diverted to the error table</li>
+ * <li>{@code <prefix>.groups} and {@code <prefix>.pending} - aggregator groups and messages
+ * waiting for release</li>
+ * </ul>
+ * A sink writing to several tables records its batches with the meters of
+ * {@link #forTable(String)}, and {@link #remove() removes} them once it stops writing to a
+ * table; the gauges stay tagged with the table the sink was created for.
+ */
+public class SinkMetrics {
+
+	private final MeterRegistry registry;
+
+	private final String prefix;
+
+	private final Tags tags;
+
+	private final DistributionSummary batchSize;
+
+	private final Timer flush;
+
+	private final Counter rowsWritten;
+
+	private final Counter rowsFailed;
+
+	private final Counter errorTableWrites;
+
+	private final String tableName;
+
+	private final CopyOnWriteArrayList<Meter> meters = new CopyOnWriteArrayList<>();
+
+	public SinkMetrics(MeterRegistry registry, String prefix, String tableName) {
+		this.registry = registry;
+		this.prefix = prefix;
+		this.tableName = String.valueOf(tableName);
+		this.tags = Tags.of("table", String.valueOf(tableName));
+		this.batchSize = DistributionSummary.builder(prefix + ".batch.size")
+				.description("Number of messages per flushed batch")
+				.baseUnit("messages")
+				.tags(this.tags)
+				.register(registry);
+		this.flush = Timer.builder(prefix + ".flush")
+				.description("Time taken to write a batch to the database")
+				.tags(this.tags)
+				.register(registry);
+		this.rowsWritten = Counter.builder(prefix + ".rows")
+				.description("Rows handed to the database")
+				.baseUnit("rows")
+				.tags(this.tags)
+				.tag("result", "written")
+				.register(registry);
+		this.rowsFailed = Counter.builder(prefix + ".rows")
+				.description("Rows handed to the database")
+				.baseUnit("rows")
+				.tags(this.tags)
+				.tag("result", "failed")
+				.register(registry);
+		this.errorTableWrites = Counter.builder(prefix + ".error.table.writes")
+				.description("Rows diverted to the error table")
+				.baseUnit("rows")
+				.tags(this.tags)
+				.register(registry);
+		this.meters.add(this.batchSize);
+		this.meters.add(this.flush);
+		this.meters.add(this.rowsWritten);
+		this.meters.add(this.rowsFailed);
+		this.meters.add(this.errorTableWrites);
+	}
+
+	/**
+	 * Return the meters of the same sink tagged with another table; the caller should
+	 * {@link #remove()} them once it no longer writes to that table.
+	 * @param tableName the table written to
+	 * @return this instance for the sink's own table, new meters for any other
+	 */
+	public SinkMetrics forTable(String tableName) {
+		if (this.tableName.equals(String.valueOf(tableName))) {
+			return this;
+		}
+		return new SinkMetrics(this.registry, this.prefix, tableName);
+	}
+
+	/**
+	 * Remove the meters of this instance, other than gauges, from the registry.
+	 */
+	public void remove() {
+		for (Meter meter : this.meters) {
+			this.registry.remove(meter);
+		}
+		this.meters.clear();
+	}
+
+	/**
+	 * Register gauges for the groups and messages held by the aggregator's store.
+	 * @param messageGroupStore the store backing the aggregator
+	 */
+	public void bindTo(MessageGroupStore messageGroupStore) {
+		Gauge.builder(this.prefix + ".groups", messageGroupStore, MessageGroupStore::getMessageGroupCount)
+				.description("Aggregator groups waiting for release")
+				.tags(this.tags)
+				.register(this.registry);
+		Gauge.builder(this.prefix + ".pending", messageGroupStore,
+				MessageGroupStore::getMessageCountForAllMessageGroups)
+				.description("Messages held by the aggregator waiting for release")
+				.baseUnit("messages")
+				.tags(this.tags)
+				.register(this.registry);
+	}
+
+	/**
+	 * Register a gauge for the batch size groups are currently released at.
+	 * @param batchSizeController the controller holding the batch size
+	 */
+	public void bindTo(BatchSizeController batchSizeController) {
+		Gauge.builder(this.prefix + ".batch.size.target", batchSizeController, BatchSizeController::getBatchSize)
+				.description("Batch size at which aggregated groups are released")
+				.baseUnit("messages")
+				.tags(this.tags)
+				.register(this.registry);
+	}
+
+	public void recordFlush(int batchSize, long nanos) {
+		this.batchSize.record(batchSize);
+		this.flush.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void rowsWritten(long rows) {
+		this.rowsWritten.increment(rows);
+	}
+
+	public void rowsFailed(long rows) {
+		this.rowsFailed.increment(rows);
+	}
+
+	public void errorTableWrite() {
+		this.errorTableWrites.increment();
+	}
+
+	public void errorTableWrites(long rows) {
+		this.errorTableWrites.increment(rows);
+	}
+
+	/**
+	 * Register an additional counter carrying this sink's prefix and tags.
+	 * @param name the name, relative to the prefix
+	 * @param baseUnit the base unit
+	 * @return the counter
+	 */
+	public Counter counter(String name, String baseUnit) {
+		Counter counter = Counter.builder(this.prefix + "." + name)
+				.baseUnit(baseUnit)
+				.tags(this.tags)
+				.register(this.registry);
+		// the registry hands out the same counter for the same name and tags
+		this.meters.addIfAbsent(counter);
+		return counter;
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * Describes a PostgreSQL table range-partitioned on a time column, one partition per
+ * {@link Interval} in UTC, and generates the statements keeping it so: partitions are
+ * created ahead of time and back through the retention, and those older than the retention
+ * dropped as a whole. An optional {@code DEFAULT} partition takes the rows outside of all of
+ * them: the rows it holds for a range are moved to the range partition when that is created,
+ * and those older than the retention are deleted.
+ * <p>
+ * Partitions are named after the table and the start of their range, e.g.
+ * {@code events_p20190514} for a daily partition, and the default one {@code events_default};
+ * only range partitions named this way are ever dropped.
+ */
+public class TimePartitioning {
+
+	private static final DateTimeFormatter BOUND = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ssxxx");
+
+	private final String tableName;
+
+	private final String column;
+
+	private final Interval interval;
+
+	private final int premake;
+
+	private final int retention;
+
+	private boolean defaultPartition;
+
+	/**
+	 * Create a partitioning.
+	 * @param tableName the partitioned table, optionally schema-qualified
+	 * @param column the time column the table is partitioned on
+	 * @param interval the range of each partition
+	 * @param premake the number of partitions to keep ready after the current one
+	 * @param retention the number of partitions to keep before the current one, 0 to keep all
+	 */
+	public TimePartitioning(String tableName, String column, Interval interval, int premake, int retention) {
+		Assert.hasText(column, "'column' must not be empty");
+		Assert.isTrue(premake >= 0, "'premake' must not be negative");
+		Assert.isTrue(retention >= 0, "'retention' must not be negative");
+		this.tableName = tableName;
+		this.column = column;
+		this.interval = interval;
+		this.premake = premake;
+		this.retention = retention;
+	}
+
+	public String getTableName() {
+		return this.tableName;
+	}
+
+	public String getColumn() {
+		return this.column;
+	}
+
+	/**
+	 * Set whether to create a {@code DEFAULT} partition for the rows outside of the range
+	 * partitions, such as late rows older than the retention (PostgreSQL 11 or later).
+	 * @param defaultPartition whether to create the default partition
+	 */
+	public void setDefaultPartition(boolean defaultPartition) {
+		this.defaultPartition = defaultPartition;
+	}
+
+	/**
+	 * The clause ending the {@code CREATE TABLE} statement of the partitioned table.
+	 */
+	public String partitionClause() {
+		return "PARTITION BY RANGE (" + this.column + ")";
+	}
+
+	/**
+	 * Return the statements creating the default partition when enabled, then the
+	 * {@code retention} previous partitions, the current one and the next {@code premake}
+	 * ones, unless they exist.
+	 * <p>
+	 * A range partition cannot be attached while the default partition holds rows of its
+	 * range, so with a default partition each range partition is created on its own, the
+	 * rows of its range moved into it from the default partition, and then attached, all in
+	 * one {@code DO} block.
+	 * @param now the current time
+	 * @return the statements
+	 */
+	public List<String> createStatements(Instant now) {
+		List<String> statements = new ArrayList<>();
+		if (this.defaultPartition) {
+			statements.add("CREATE TABLE IF NOT EXISTS " + defaultPartitionName() + " PARTITION OF " + this.tableName
+					+ " DEFAULT");
+		}
+		ZonedDateTime start = oldestStart(now);
+		for (int i = 0; i <= this.retention + this.premake; i++) {
+			ZonedDateTime end = this.interval.next(start);
+			String partition = this.tableName + "_p" + this.interval.suffix(start);
+			String bounds = "FOR VALUES FROM ('" + BOUND.format(start) + "') TO ('" + BOUND.format(end) + "')";
+			if (this.defaultPartition) {
+				statements.add("DO $$BEGIN IF to_regclass('" + partition + "') IS NULL THEN "
+						+ "CREATE TABLE " + partition + " (LIKE " + this.tableName
+						+ " INCLUDING DEFAULTS INCLUDING CONSTRAINTS); "
+						+ "WITH moved AS (DELETE FROM " + defaultPartitionName() + " WHERE " + this.column + " >= '"
+						+ BOUND.format(start) + "' AND " + this.column + " < '" + BOUND.format(end)
+						+ "' RETURNING *) INSERT INTO " + partition + " SELECT * FROM moved; "
+						+ "ALTER TABLE " + this.tableName + " ATTACH PARTITION " + partition + " " + bounds + "; "
+						+ "END IF; END$$");
+			}
+			else {
+				statements.add("CREATE TABLE IF NOT EXISTS " + partition + " PARTITION OF " + this.tableName + " "
+						+ bounds);
+			}
+			start = end;
+		}
+		return statements;
+	}
+
+	/**
+	 * Return the statement deleting the rows older than the retention from the default
+	 * partition, where they would otherwise be kept forever.
+	 * @param now the current time
+	 * @return the statement, or {@code null} without a default partition or a retention
+	 */
+	public String expireDefaultStatement(Instant now) {
+		if (!this.defaultPartition || this.retention == 0) {
+			return null;
+		}
+		return "DELETE FROM " + defaultPartitionName() + " WHERE " + this.column + " < '"
+				+ BOUND.format(oldestStart(now)) + "'";
+	}
+
+	/**
+	 * Return the partitions past the retention among those of the table.
+	 * @param partitions the names of the partitions of the table as PostgreSQL prints them,
+	 * i.e. {@code regclass} text, schema-qualified and quoted where needed
+	 * @param now the current time
+	 * @return the names of the partitions to drop, as given
+	 */
+	public List<String> expired(Collection<String> partitions, Instant now) {
+		List<String> expired = new ArrayList<>();
+		if (this.retention == 0) {
+			return expired;
+		}
+		String oldestSuffix = this.interval.suffix(oldestStart(now));
+		String prefix = unqualified(this.tableName).toLowerCase() + "_p";
+		for (String partition : partitions) {
+			String name = unqualified(partition);
+			if (name.toLowerCase().startsWith(prefix)) {
+				String suffix = name.substring(prefix.length());
+				// suffixes of the same length are ordered like the dates they stand for
+				if (suffix.length() == oldestSuffix.length() && suffix.chars().allMatch(Character::isDigit)
+						&& suffix.compareTo(oldestSuffix) < 0) {
+					expired.add(partition);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Strip the schema and the quotes from a table name.
+	 */
+	private static String unqualified(String name) {
+		String unqualified = name.substring(name.lastIndexOf('.') + 1);
+		if (unqualified.length() > 1 && unqualified.startsWith("\"") && unqualified.endsWith("\"")) {
+			unqualified = unqualified.substring(1, unqualified.length() - 1);
+		}
+		return unqualified;
+	}
+
+	private String defaultPartitionName() {
+		return this.tableName + "_default";
+	}
+
+	/**
+	 * The start of the oldest partition kept, {@code retention} intervals before the current one.
+	 */
+	private ZonedDateTime oldestStart(Instant now) {
+		ZonedDateTime start = this.interval.start(now);
+		for (int i = 0; i < this.retention; i++) {
+			start = this.interval.previous(start);
+		}
+		return start;
+	}
+
+	/**
+	 * The range covered by each partition.
+	 */
+	public enum Interval {
+
+		HOUR("yyyyMMddHH"), DAY("yyyyMMdd"), WEEK("yyyyMMdd"), MONTH("yyyyMM");
+
+		private final DateTimeFormatter suffix;
+
+		Interval(String suffix) {
+			this.suffix = DateTimeFormatter.ofPattern(suffix);
+		}
+
+		ZonedDateTime start(Instant time) {
+			ZonedDateTime utc = time.atZone(ZoneOffset.UTC);
+			switch (this) {
+				case HOUR:
+					return utc.truncatedTo(ChronoUnit.HOURS);
+				case DAY:
+					return utc.truncatedTo(ChronoUnit.DAYS);
+				case WEEK:
+					return utc.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+				default:
+					return utc.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+			}
+		}
+
+		ZonedDateTime next(ZonedDateTime start) {
+			switch (this) {
+				case HOUR:
+					return start.plusHours(1);
+				case DAY:
+					return start.plusDays(1);
+				case WEEK:
+					return start.plusWeeks(1);
+				default:
+					return start.plusMonths(1);
+			}
+		}
+
+		ZonedDateTime previous(ZonedDateTime start) {
+			switch (this) {
+				case HOUR:
+					return start.minusHours(1);
+				case DAY:
+					return start.minusDays(1);
+				case WEEK:
+					return start.minusWeeks(1);
+				default:
+					return start.minusMonths(1);
+			}
+		}
+
+		String suffix(ZonedDateTime start) {
+			return this.suffix.format(start);
+		}
+
+	}
+
+}
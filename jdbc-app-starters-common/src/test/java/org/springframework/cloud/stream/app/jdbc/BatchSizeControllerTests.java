@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for BatchSizeController.
+ */
+public class BatchSizeControllerTests {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void fixedSizeIgnoresFlushes() {
+		BatchSizeController controller = new BatchSizeController(100);
+		controller.record(100, MS);
+		controller.record(100, 1000 * MS);
+		assertThat(controller.getBatchSize(), is(100));
+	}
+
+	@Test
+	public void growsWhileThroughputHolds() {
+		BatchSizeController controller = new BatchSizeController(100, true, 100, 10100, 0);
+		int size = controller.getBatchSize();
+		for (int i = 0; i < 10; i++) {
+			// constant 1 row per microsecond
+			controller.record(size, size * MS / 1000);
+			assertThat(controller.getBatchSize(), is(size + 100));
+			size = controller.getBatchSize();
+		}
+	}
+
+	@Test
+	public void halvesWhenThroughputDrops() {
+		BatchSizeController controller = new BatchSizeController(1000, true, 100, 10000, 0);
+		controller.record(1000, MS);
+		int size = controller.getBatchSize();
+		assertThat(size, greaterThan(1000));
+		controller.record(size, 100 * MS);
+		assertThat(controller.getBatchSize(), is(size / 2));
+	}
+
+	@Test
+	public void halvesWhenFlushIsTooSlow() {
+		BatchSizeController controller = new BatchSizeController(1000, true, 100, 10000, 50);
+		controller.record(10, 60 * MS);
+		assertThat(controller.getBatchSize(), is(500));
+	}
+
+	@Test
+	public void partialBatchesDoNotGrow() {
+		BatchSizeController controller = new BatchSizeController(1000, true, 100, 10000, 0);
+		controller.record(10, MS);
+		assertThat(controller.getBatchSize(), is(1000));
+	}
+
+	@Test
+	public void staysWithinBounds() {
+		BatchSizeController controller = new BatchSizeController(150, true, 100, 200, 10);
+		for (int i = 0; i < 10; i++) {
+			controller.record(controller.getBatchSize(), 20 * MS);
+		}
+		assertThat(controller.getBatchSize(), is(100));
+		controller = new BatchSizeController(5000, true, 100, 200, 0);
+		assertThat(controller.getBatchSize(), is(200));
+	}
+
+	@Test
+	public void batchSizeCanBeChanged() {
+		BatchSizeController controller = new BatchSizeController(100);
+		controller.setBatchSize(250);
+		assertThat(controller.getBatchSize(), is(250));
+		controller = new BatchSizeController(150, true, 100, 200, 0);
+		controller.setBatchSize(5000);
+		assertThat(controller.getBatchSize(), is(200));
+	}
+
+}
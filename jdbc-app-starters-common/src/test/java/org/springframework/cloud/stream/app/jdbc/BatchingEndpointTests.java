@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import org.junit.Test;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for BatchingEndpoint.
+ */
+public class BatchingEndpointTests {
+
+	private final BatchSizeController batchSizeController = new BatchSizeController(100);
+
+	private final IdleTimeout idleTimeout = new IdleTimeout(-1);
+
+	private int concurrency = 1;
+
+	private final ConcurrentWriter writer = new ConcurrentWriter() {
+
+		@Override
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		@Override
+		public void setConcurrency(int concurrency) {
+			BatchingEndpointTests.this.concurrency = concurrency;
+		}
+
+	};
+
+	@Test
+	public void readsCurrentValues() {
+		BatchingEndpoint endpoint = new BatchingEndpoint(this.batchSizeController, this.idleTimeout, this.writer);
+		assertThat(endpoint.batching().get("batchSize"), is(100));
+		assertThat(endpoint.batching().get("idleTimeout"), is(-1L));
+		assertThat(endpoint.batching().get("concurrency"), is(1));
+	}
+
+	@Test
+	public void updatesValues() {
+		BatchingEndpoint endpoint = new BatchingEndpoint(this.batchSizeController, this.idleTimeout, this.writer);
+		endpoint.update(500, 2000L, 4);
+		assertThat(this.batchSizeController.getBatchSize(), is(500));
+		assertThat(this.idleTimeout.getIdleTimeout(), is(2000L));
+		assertThat(this.concurrency, is(4));
+		assertThat(this.idleTimeout.asExpression().getValue(), is(2000L));
+		endpoint.update(null, -1L, null);
+		assertThat(this.batchSizeController.getBatchSize(), is(500));
+		assertThat(this.idleTimeout.asExpression().getValue(), nullValue());
+	}
+
+	@Test
+	public void appliesFallbackIdleTimeoutWhileNegative() {
+		IdleTimeout idleTimeout = new IdleTimeout(-1, 1000);
+		BatchingEndpoint endpoint = new BatchingEndpoint(this.batchSizeController, idleTimeout, this.writer);
+		assertThat(idleTimeout.asExpression().getValue(), is(1000L));
+		endpoint.update(null, 200L, null);
+		assertThat(idleTimeout.asExpression().getValue(), is(200L));
+		endpoint.update(null, -1L, null);
+		assertThat(endpoint.batching().get("idleTimeout"), is(-1L));
+		assertThat(idleTimeout.asExpression().getValue(), is(1000L));
+	}
+
+	@Test(expected = InvalidEndpointRequestException.class)
+	public void rejectsInvalidBatchSize() {
+		new BatchingEndpoint(this.batchSizeController, this.idleTimeout, this.writer).update(0, null, null);
+	}
+
+	@Test(expected = InvalidEndpointRequestException.class)
+	public void rejectsConcurrencyWithoutWriter() {
+		new BatchingEndpoint(this.batchSizeController, this.idleTimeout, null).update(null, null, 2);
+	}
+
+}
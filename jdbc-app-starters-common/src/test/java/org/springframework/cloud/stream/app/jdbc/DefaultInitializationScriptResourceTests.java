@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for DefaultInitializationScriptResource.
+ */
+public class DefaultInitializationScriptResourceTests {
+
+	@Test
+	public void createsVarcharColumns() {
+		assertThat(script(new DefaultInitializationScriptResource("names", Arrays.asList("id", "name"))),
+				is("DROP TABLE names;\n\nCREATE TABLE names(id VARCHAR(2000), name VARCHAR(2000));\n"));
+	}
+
+	@Test
+	public void createsDeclaredTypesKeyAndIndexes() {
+		Map<String, String> types = new LinkedHashMap<>();
+		types.put("ID", "BIGINT");
+		types.put("amount", "NUMERIC(10,2)");
+		DefaultInitializationScriptResource resource = new DefaultInitializationScriptResource("app.orders",
+				Arrays.asList("id", "amount", "note", "ts"), types, Collections.singletonList("id"),
+				Arrays.asList("ts", "amount"), null);
+		assertThat(script(resource), is("DROP TABLE app.orders;\n\n"
+				+ "CREATE TABLE app.orders(id BIGINT, amount NUMERIC(10,2), note VARCHAR(2000), ts VARCHAR(2000), "
+				+ "PRIMARY KEY (id));\n"
+				+ "\nCREATE INDEX orders_ts_idx ON app.orders (ts);\n"
+				+ "\nCREATE INDEX orders_amount_idx ON app.orders (amount);\n"));
+	}
+
+	@Test
+	public void createsPartitionedTables() {
+		TimePartitioning partitioning = new TimePartitioning("events", "ts", TimePartitioning.Interval.DAY, 1, 0);
+		assertThat(script(new DefaultInitializationScriptResource("events", Arrays.asList("id", "ts"), partitioning)),
+				is("DROP TABLE events;\n\n"
+						+ "CREATE TABLE events(id VARCHAR(2000), ts TIMESTAMP WITH TIME ZONE) "
+						+ "PARTITION BY RANGE (ts);\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownColumns() {
+		new DefaultInitializationScriptResource("names", Arrays.asList("id", "name"), Collections.emptyMap(),
+				Collections.singletonList("key"), Collections.emptyList(), null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPrimaryKeyWithoutPartitionColumn() {
+		TimePartitioning partitioning = new TimePartitioning("events", "ts", TimePartitioning.Interval.DAY, 1, 0);
+		new DefaultInitializationScriptResource("events", Arrays.asList("id", "ts"), Collections.emptyMap(),
+				Collections.singletonList("id"), Collections.emptyList(), partitioning);
+	}
+
+	@Test
+	public void acceptsPrimaryKeyWithPartitionColumn() {
+		TimePartitioning partitioning = new TimePartitioning("events", "ts", TimePartitioning.Interval.DAY, 1, 0);
+		assertThat(script(new DefaultInitializationScriptResource("events", Arrays.asList("id", "ts"),
+				Collections.emptyMap(), Arrays.asList("id", "TS"), Collections.emptyList(), partitioning)),
+				is("DROP TABLE events;\n\n"
+						+ "CREATE TABLE events(id VARCHAR(2000), ts TIMESTAMP WITH TIME ZONE, PRIMARY KEY (id, TS)) "
+						+ "PARTITION BY RANGE (ts);\n"));
+	}
+
+	@Test
+	public void parsesColumnTypes() {
+		Map<String, String> types = DefaultInitializationScriptResource.parseColumnTypes(
+				"id:BIGINT, amount:NUMERIC(10\\,2),");
+		assertThat(types.get("id"), is("BIGINT"));
+		assertThat(types.get("amount"), is("NUMERIC(10,2)"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsColumnTypesWithoutType() {
+		DefaultInitializationScriptResource.parseColumnTypes("id:BIGINT,name");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyColumnTypes() {
+		DefaultInitializationScriptResource.parseColumnTypes("id:");
+	}
+
+	private static String script(DefaultInitializationScriptResource resource) {
+		return new String(resource.getByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
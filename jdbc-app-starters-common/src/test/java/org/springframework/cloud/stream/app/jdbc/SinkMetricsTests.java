@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import org.springframework.integration.store.SimpleMessageStore;
+import org.springframework.messaging.support.GenericMessage;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for SinkMetrics.
+ */
+public class SinkMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private final SinkMetrics metrics = new SinkMetrics(this.registry, "test.sink", "names");
+
+	@Test
+	public void flushes() {
+		this.metrics.recordFlush(10, TimeUnit.MILLISECONDS.toNanos(5));
+		this.metrics.recordFlush(30, TimeUnit.MILLISECONDS.toNanos(15));
+		assertThat(this.registry.get("test.sink.batch.size").tag("table", "names").summary().totalAmount(), is(40.0));
+		assertThat(this.registry.get("test.sink.flush").timer().count(), is(2L));
+		assertThat(this.registry.get("test.sink.flush").timer().totalTime(TimeUnit.MILLISECONDS), is(20.0));
+	}
+
+	@Test
+	public void rows() {
+		this.metrics.rowsWritten(9);
+		this.metrics.rowsFailed(1);
+		this.metrics.errorTableWrite();
+		assertThat(this.registry.get("test.sink.rows").tag("result", "written").counter().count(), is(9.0));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "failed").counter().count(), is(1.0));
+		assertThat(this.registry.get("test.sink.error.table.writes").counter().count(), is(1.0));
+	}
+
+	@Test
+	public void tables() {
+		assertThat(this.metrics.forTable("names"), sameInstance(this.metrics));
+		SinkMetrics orders = this.metrics.forTable("orders");
+		orders.counter("copy.bytes", "bytes").increment(100);
+		this.metrics.rowsWritten(9);
+		orders.rowsWritten(3);
+		assertThat(this.registry.get("test.sink.rows").tags("table", "names", "result", "written").counter().count(),
+				is(9.0));
+		assertThat(this.registry.get("test.sink.rows").tags("table", "orders", "result", "written").counter().count(),
+				is(3.0));
+		orders.remove();
+		assertThat(this.registry.find("test.sink.rows").tag("table", "orders").meters().isEmpty(), is(true));
+		assertThat(this.registry.find("test.sink.copy.bytes").meters().isEmpty(), is(true));
+		assertThat(this.registry.find("test.sink.rows").tag("table", "names").meters().size(), is(2));
+	}
+
+	@Test
+	public void groups() {
+		SimpleMessageStore store = new SimpleMessageStore();
+		this.metrics.bindTo(store);
+		store.addMessagesToGroup("a", new GenericMessage<>("foo"), new GenericMessage<>("bar"));
+		store.addMessagesToGroup("b", new GenericMessage<>("baz"));
+		assertThat(this.registry.get("test.sink.groups").gauge().value(), is(2.0));
+		assertThat(this.registry.get("test.sink.pending").gauge().value(), is(3.0));
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for TimePartitioning.
+ */
+public class TimePartitioningTests {
+
+	private static final Instant NOW = Instant.parse("2019-05-14T10:30:00Z");
+
+	@Test
+	public void createsCurrentAndUpcomingPartitions() {
+		TimePartitioning partitioning = new TimePartitioning("events", "ts", TimePartitioning.Interval.DAY, 1, 0);
+		List<String> statements = partitioning.createStatements(NOW);
+		assertThat(statements, is(Arrays.asList(
+				"CREATE TABLE IF NOT EXISTS events_p20190514 PARTITION OF events "
+						+ "FOR VALUES FROM ('2019-05-14 00:00:00+00:00') TO ('2019-05-15 00:00:00+00:00')",
+				"CREATE TABLE IF NOT EXISTS events_p20190515 PARTITION OF events "
+						+ "FOR VALUES FROM ('2019-05-15 00:00:00+00:00') TO ('2019-05-16 00:00:00+00:00')")));
+		assertThat(partitioning.partitionClause(), is("PARTITION BY RANGE (ts)"));
+		assertThat(partitioning.expireDefaultStatement(NOW), nullValue());
+	}
+
+	@Test
+	public void createsPartitionsBackThroughRetentionAndDefaultPartition() {
+		TimePartitioning partitioning = new TimePartitioning("events", "ts", TimePartitioning.Interval.DAY, 0, 2);
+		partitioning.setDefaultPartition(true);
+		List<String> statements = partitioning.createStatements(NOW);
+		assertThat(statements.size(), is(4));
+		assertThat(statements.get(0), is("CREATE TABLE IF NOT EXISTS events_default PARTITION OF events DEFAULT"));
+		assertThat(statements.get(1), is("DO $$BEGIN IF to_regclass('events_p20190512') IS NULL THEN "
+				+ "CREATE TABLE events_p20190512 (LIKE events INCLUDING DEFAULTS INCLUDING CONSTRAINTS); "
+				+ "WITH moved AS (DELETE FROM events_default "
+				+ "WHERE ts >= '2019-05-12 00:00:00+00:00' AND ts < '2019-05-13 00:00:00+00:00' RETURNING *) "
+				+ "INSERT INTO events_p20190512 SELECT * FROM moved; "
+				+ "ALTER TABLE events ATTACH PARTITION events_p20190512 "
+				+ "FOR VALUES FROM ('2019-05-12 00:00:00+00:00') TO ('2019-05-13 00:00:00+00:00'); END IF; END$$"));
+		assertThat(statements.get(3).startsWith("DO $$BEGIN IF to_regclass('events_p20190514') IS NULL THEN "),
+				is(true));
+		assertThat(partitioning.expireDefaultStatement(NOW),
+				is("DELETE FROM events_default WHERE ts < '2019-05-12 00:00:00+00:00'"));
+		assertThat(partitioning.expired(Arrays.asList("events_p20190512", "events_default"), NOW).isEmpty(),
+				is(true));
+	}
+
+	@Test
+	public void alignsWeeksAndMonths() {
+		assertThat(new TimePartitioning("events", "ts", TimePartitioning.Interval.WEEK, 0, 0).createStatements(NOW),
+				is(Arrays.asList("CREATE TABLE IF NOT EXISTS events_p20190513 PARTITION OF events "
+						+ "FOR VALUES FROM ('2019-05-13 00:00:00+00:00') TO ('2019-05-20 00:00:00+00:00')")));
+		assertThat(new TimePartitioning("events", "ts", TimePartitioning.Interval.MONTH, 0, 0).createStatements(NOW),
+				is(Arrays.asList("CREATE TABLE IF NOT EXISTS events_p201905 PARTITION OF events "
+						+ "FOR VALUES FROM ('2019-05-01 00:00:00+00:00') TO ('2019-06-01 00:00:00+00:00')")));
+	}
+
+	@Test
+	public void expiresPartitionsPastRetention() {
+		TimePartitioning partitioning = new TimePartitioning("app.events", "ts", TimePartitioning.Interval.HOUR, 2,
+				2);
+		List<String> partitions = Arrays.asList("app.events_p2019051407", "app.events_p2019051408",
+				"app.events_p2019051409", "app.events_p2019051410", "app.events_default", "app.other_p2019010100");
+		assertThat(partitioning.expired(partitions, NOW), is(Arrays.asList("app.events_p2019051407")));
+		assertThat(new TimePartitioning("\"Events\"", "ts", TimePartitioning.Interval.HOUR, 2, 2)
+				.expired(Arrays.asList("\"Events_p2019051407\"", "\"Events_p2019051408\""), NOW),
+				is(Arrays.asList("\"Events_p2019051407\"")));
+	}
+
+	@Test
+	public void keepsEverythingWithoutRetention() {
+		TimePartitioning partitioning = new TimePartitioning("events", "ts", TimePartitioning.Interval.DAY, 2, 0);
+		assertThat(partitioning.expired(Arrays.asList("events_p20000101"), NOW).isEmpty(), is(true));
+	}
+
+}
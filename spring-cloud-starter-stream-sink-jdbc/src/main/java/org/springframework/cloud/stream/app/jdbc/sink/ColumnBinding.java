@@ -0,0 +1,363 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.zip.DeflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+
+/**
+ * Binds the values of one column of the target table, using the SQL type read from the
+ * table's metadata and a converter chosen for that type once, so that no type has to be
+ * probed per row.
+ * <p>
+ * Converters turn the values expressions commonly yield into what the column expects, e.g.
+ * a JSON number or a numeric string into a {@code BIGINT}, or an ISO-8601 string into a
+ * {@code TIMESTAMP}. A value that cannot be converted is bound as is, leaving it to the driver.
+ */
+final class ColumnBinding {
+
+	private static final Log logger = LogFactory.getLog(ColumnBinding.class);
+
+	private final String name;
+
+	private final int sqlType;
+
+	private final Function<Object, Object> converter;
+
+	private final boolean lob;
+
+	private final boolean compressed;
+
+	ColumnBinding(String name, int sqlType) {
+		this(name, sqlType, false, false);
+	}
+
+	private ColumnBinding(String name, int sqlType, boolean lob, boolean compressed) {
+		this.name = name;
+		this.sqlType = sqlType;
+		this.converter = converterFor(sqlType);
+		this.lob = lob;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Return a binding for the same column that streams its values: {@code byte[]} and
+	 * {@code String} values are bound as a binary or character stream over the value itself
+	 * rather than as a whole value, and binary values are optionally deflated as they are read.
+	 * @param compressed whether to deflate the values, if the column is binary
+	 * @return the binding
+	 */
+	ColumnBinding asLob(boolean compressed) {
+		if (!isBinary(this.sqlType) && !isCharacter(this.sqlType) && this.sqlType != SqlTypeValue.TYPE_UNKNOWN) {
+			throw new IllegalStateException("Column '" + this.name + "' is neither binary nor character data");
+		}
+		return new ColumnBinding(this.name, this.sqlType, true, compressed && !isCharacter(this.sqlType));
+	}
+
+	boolean isLob() {
+		return this.lob;
+	}
+
+	String getName() {
+		return this.name;
+	}
+
+	int getSqlType() {
+		return this.sqlType;
+	}
+
+	Object convert(Object value) {
+		return value == null ? null : this.converter.apply(value);
+	}
+
+	void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+		if (value == null && this.sqlType != SqlTypeValue.TYPE_UNKNOWN) {
+			statement.setNull(index, this.sqlType);
+		}
+		else if (this.lob && (value instanceof byte[] || value instanceof String)) {
+			bindStream(statement, index, value);
+		}
+		else {
+			StatementCreatorUtils.setParameterValue(statement, index, this.sqlType, convert(value));
+		}
+	}
+
+	/**
+	 * Bind a value as a stream reading from it; bytes are decoded as UTF-8 text when written
+	 * to a character column, and text is encoded as UTF-8 when written to a binary one.
+	 * Character streams are always bound with their length, as the PostgreSQL driver does
+	 * not implement the length-less variant.
+	 */
+	private void bindStream(PreparedStatement statement, int index, Object value) throws SQLException {
+		boolean binary = isBinary(this.sqlType)
+				|| (this.sqlType == SqlTypeValue.TYPE_UNKNOWN && value instanceof byte[]);
+		if (binary) {
+			byte[] bytes = value instanceof byte[] ? (byte[]) value : ((String) value).getBytes(StandardCharsets.UTF_8);
+			InputStream stream = new ByteArrayInputStream(bytes);
+			if (this.compressed) {
+				statement.setBinaryStream(index, new DeflaterInputStream(stream));
+			}
+			else {
+				statement.setBinaryStream(index, stream, bytes.length);
+			}
+		}
+		else {
+			String text = value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : (String) value;
+			statement.setCharacterStream(index, new StringReader(text), text.length());
+		}
+	}
+
+	/**
+	 * Read the types of the given columns of a table; columns missing from the metadata are
+	 * bound with their type unknown, as before.
+	 * @param metaData the database metadata
+	 * @param tableName the table name, optionally qualified with a schema; an unqualified
+	 * table is looked up in the current schema of the connection, so that same-named tables
+	 * in other schemas are not mixed in
+	 * @param columns the columns in binding order
+	 * @return the bindings, in the same order
+	 * @throws SQLException if the metadata cannot be read
+	 */
+	static ColumnBinding[] forColumns(DatabaseMetaData metaData, String tableName, List<String> columns)
+			throws SQLException {
+		String schema = null;
+		String table = tableName;
+		int dot = tableName.lastIndexOf('.');
+		if (dot > 0) {
+			schema = identifier(metaData, tableName.substring(0, dot));
+			table = tableName.substring(dot + 1);
+		}
+		else {
+			schema = currentSchema(metaData);
+		}
+		Map<String, Integer> types = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		try (ResultSet rs = metaData.getColumns(null, schema, identifier(metaData, table), null)) {
+			while (rs.next()) {
+				types.put(rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE"));
+			}
+		}
+		ColumnBinding[] bindings = new ColumnBinding[columns.size()];
+		for (int i = 0; i < bindings.length; i++) {
+			String column = columns.get(i);
+			Integer type = types.get(unquote(column));
+			if (type == null) {
+				logger.info("No metadata for column '" + column + "' of table '" + tableName +
+						"', its values will be bound with an unknown type");
+			}
+			bindings[i] = new ColumnBinding(column, type != null ? type : SqlTypeValue.TYPE_UNKNOWN);
+		}
+		return bindings;
+	}
+
+	/**
+	 * Return the current schema of the connection, or {@code null} (any schema) when the
+	 * driver does not report it.
+	 */
+	private static String currentSchema(DatabaseMetaData metaData) {
+		try {
+			return metaData.getConnection().getSchema();
+		}
+		catch (SQLException | AbstractMethodError e) {
+			return null;
+		}
+	}
+
+	private static String identifier(DatabaseMetaData metaData, String name) throws SQLException {
+		if (name.startsWith("\"")) {
+			return unquote(name);
+		}
+		if (metaData.storesUpperCaseIdentifiers()) {
+			return name.toUpperCase();
+		}
+		if (metaData.storesLowerCaseIdentifiers()) {
+			return name.toLowerCase();
+		}
+		return name;
+	}
+
+	private static String unquote(String name) {
+		return name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")
+				? name.substring(1, name.length() - 1) : name;
+	}
+
+	private static boolean isBinary(int sqlType) {
+		return sqlType == Types.BINARY || sqlType == Types.VARBINARY || sqlType == Types.LONGVARBINARY
+				|| sqlType == Types.BLOB;
+	}
+
+	private static boolean isCharacter(int sqlType) {
+		return sqlType == Types.CHAR || sqlType == Types.VARCHAR || sqlType == Types.LONGVARCHAR
+				|| sqlType == Types.NCHAR || sqlType == Types.NVARCHAR || sqlType == Types.LONGNVARCHAR
+				|| sqlType == Types.CLOB || sqlType == Types.NCLOB;
+	}
+
+	private static Function<Object, Object> converterFor(int sqlType) {
+		switch (sqlType) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+				return value -> toNumber(value, n -> n.intValueExact());
+			case Types.BIGINT:
+				return value -> toNumber(value, BigDecimal::longValueExact);
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return value -> toNumber(value, BigDecimal::doubleValue);
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return value -> toNumber(value, n -> n);
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return ColumnBinding::toBoolean;
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+			case Types.CLOB:
+			case Types.NCLOB:
+				return ColumnBinding::toText;
+			case Types.DATE:
+				return ColumnBinding::toDate;
+			case Types.TIMESTAMP:
+				return ColumnBinding::toTimestamp;
+			default:
+				return Function.identity();
+		}
+	}
+
+	private static Object toNumber(Object value, Function<BigDecimal, Object> narrowing) {
+		try {
+			if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+				return narrowing.apply(BigDecimal.valueOf(((Number) value).longValue()));
+			}
+			if (value instanceof BigDecimal) {
+				return narrowing.apply((BigDecimal) value);
+			}
+			if (value instanceof Number || value instanceof String) {
+				return narrowing.apply(new BigDecimal(value.toString().trim()));
+			}
+		}
+		catch (NumberFormatException | ArithmeticException e) {
+			// not a number or out of range: leave it to the driver
+		}
+		return value;
+	}
+
+	private static Object toText(Object value) {
+		if (value instanceof String) {
+			return value;
+		}
+		// bytes are taken as UTF-8 text, as when they are bound as a stream
+		return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : value.toString();
+	}
+
+	private static Object toBoolean(Object value) {
+		if (value instanceof String) {
+			String s = ((String) value).trim();
+			if ("true".equalsIgnoreCase(s) || "1".equals(s)) {
+				return Boolean.TRUE;
+			}
+			if ("false".equalsIgnoreCase(s) || "0".equals(s)) {
+				return Boolean.FALSE;
+			}
+		}
+		else if (value instanceof Number) {
+			return ((Number) value).intValue() != 0;
+		}
+		return value;
+	}
+
+	private static Object toDate(Object value) {
+		if (value instanceof String) {
+			try {
+				return java.sql.Date.valueOf(LocalDate.parse(((String) value).trim()));
+			}
+			catch (DateTimeParseException e) {
+				return value;
+			}
+		}
+		if (value instanceof LocalDate) {
+			return java.sql.Date.valueOf((LocalDate) value);
+		}
+		return value;
+	}
+
+	private static Object toTimestamp(Object value) {
+		if (value instanceof String) {
+			String s = ((String) value).trim();
+			try {
+				return Timestamp.from(OffsetDateTime.parse(s).toInstant());
+			}
+			catch (DateTimeParseException e) {
+				// not an offset date-time, try a local one
+			}
+			try {
+				return Timestamp.valueOf(LocalDateTime.parse(s));
+			}
+			catch (DateTimeParseException e) {
+				// not ISO-8601, try the JDBC escape format
+			}
+			try {
+				return Timestamp.valueOf(s);
+			}
+			catch (IllegalArgumentException e) {
+				return value;
+			}
+		}
+		if (value instanceof Long) {
+			return new Timestamp((Long) value);
+		}
+		if (value instanceof Instant) {
+			return Timestamp.from((Instant) value);
+		}
+		if (value instanceof LocalDateTime) {
+			return Timestamp.valueOf((LocalDateTime) value);
+		}
+		if (value instanceof java.util.Date && !(value instanceof Timestamp)) {
+			return new Timestamp(((java.util.Date) value).getTime());
+		}
+		return value;
+	}
+
+}
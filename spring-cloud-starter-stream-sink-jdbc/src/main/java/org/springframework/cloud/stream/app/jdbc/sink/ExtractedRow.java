@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The column values of one row, together with the payload they were evaluated from when it
+ * is still at hand. Rows evaluated as their message arrived come without a payload, which
+ * is the point of evaluating them early.
+ */
+final class ExtractedRow {
+
+	private final Object[] values;
+
+	private final Object payload;
+
+	ExtractedRow(Object[] values) {
+		this(values, null);
+	}
+
+	ExtractedRow(Object[] values, Object payload) {
+		this.values = values;
+		this.payload = payload;
+	}
+
+	Object[] getValues() {
+		return this.values;
+	}
+
+	/**
+	 * Return the payload the values were evaluated from, or {@code null} if it was not kept.
+	 */
+	Object getPayload() {
+		return this.payload;
+	}
+
+	/**
+	 * Return what to report of a rejected row: its payload, decoded if it is made of bytes, or
+	 * its values by column when the payload was not kept.
+	 * @param columns the names of the columns of the values
+	 */
+	Object describe(List<String> columns) {
+		if (this.payload instanceof byte[]) {
+			return new String((byte[]) this.payload, StandardCharsets.UTF_8);
+		}
+		if (this.payload != null) {
+			return this.payload;
+		}
+		Map<String, Object> map = new LinkedHashMap<>();
+		for (int i = 0; i < this.values.length; i++) {
+			map.put(columns.get(i), this.values[i]);
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.integration.handler.AbstractMessageHandler;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.core.DestinationResolver;
+
+/**
+ * Writes each incoming message, or each element of an incoming collection, as a row through
+ * a single batched {@link PreparedStatement}.
+ * <p>
+ * Unlike {@link org.springframework.integration.jdbc.JdbcMessageHandler}, which borrows a
+ * connection and prepares the statement for every batch, this handler keeps a dedicated
+ * connection and the statement prepared on it for as long as they work, so a batch only costs
+ * binding and executing it. Each batch is committed on its own. When a batch fails the
+ * statement is closed and prepared again for the next one; if the connection turns out to
+ * be broken it is replaced and the rows of the batch not yet committed or rejected are
+ * retried once on the new one.
+ * <p>
+ * A batch failing on its data does not fail as a whole: the rows before the first one the
+ * driver reports as failed in its {@link BatchUpdateException} are written again, and the
+ * rest is bisected until the failing rows are found. The report is not trusted beyond that,
+ * as drivers rewriting batches into multi-row statements report all the rows of a failed
+ * statement as failed. Rejected rows are logged and, when configured, written to an error
+ * table and/or sent to an error destination, while all other rows are committed. Parts of
+ * the batch are written in order, so the rows settled so far are always the first ones.
+ * Only failures executing a batch are isolated: failing to read the metadata or to prepare
+ * the statement on a working connection, e.g. for a missing table or column, fails the
+ * whole batch with the translated exception.
+ * <p>
+ * The column types of the target table are read from the database metadata with the first
+ * connection, and each column is then bound with its {@link ColumnBinding}. Rows already
+ * evaluated on arrival come in as {@link ExtractedRow}s and are bound as they are.
+ */
+class JdbcBatchMessageHandler extends AbstractMessageHandler implements DisposableBean {
+
+	static final String EXCEPTION_MESSAGE_HEADER = "x-exception-message";
+
+	static final String TABLE_NAME_HEADER = "x-table-name";
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private final DataSource dataSource;
+
+	private final String tableName;
+
+	private final List<String> columns;
+
+	private final String sql;
+
+	private final ParameterFactory parameterFactory;
+
+	private final SinkMetrics sinkMetrics;
+
+	private final BatchSizeController batchSizeController;
+
+	private final SQLExceptionTranslator exceptionTranslator;
+
+	private Connection connection;
+
+	private PreparedStatement statement;
+
+	private ColumnBinding[] bindings;
+
+	private RowCoalescer rowCoalescer;
+
+	private Collection<String> lobColumns = Collections.emptyList();
+
+	private boolean compressLobs;
+
+	private String errorTable;
+
+	private String errorDestination;
+
+	private DestinationResolver<MessageChannel> errorChannelResolver;
+
+	private MessageChannel errorChannel;
+
+	/**
+	 * Create a handler.
+	 * @param dataSource the data source to take the writer connection from
+	 * @param tableName the table to insert into
+	 * @param parameterFactory the factory for the column values of each row
+	 * @param sinkMetrics the metrics to record the batches in
+	 * @param batchSizeController the batch size to report the written batches to
+	 */
+	JdbcBatchMessageHandler(DataSource dataSource, String tableName, ParameterFactory parameterFactory,
+			SinkMetrics sinkMetrics, BatchSizeController batchSizeController) {
+		this.dataSource = dataSource;
+		this.tableName = tableName;
+		this.columns = parameterFactory.getColumns();
+		this.sql = generateSql(tableName, this.columns);
+		this.parameterFactory = parameterFactory;
+		this.sinkMetrics = sinkMetrics;
+		this.batchSizeController = batchSizeController;
+		this.exceptionTranslator = new SQLErrorCodeSQLExceptionTranslator(dataSource);
+	}
+
+	/**
+	 * Set a coalescer to collapse the rows of each batch sharing a key before writing them.
+	 * @param rowCoalescer the coalescer
+	 */
+	void setRowCoalescer(RowCoalescer rowCoalescer) {
+		this.rowCoalescer = rowCoalescer;
+	}
+
+	/**
+	 * Set the columns to stream large values to, rather than binding them whole.
+	 * @param lobColumns the column names
+	 * @param compress whether to deflate the values of binary columns as they are streamed
+	 * @see ColumnBinding#asLob(boolean)
+	 */
+	void setLobColumns(Collection<String> lobColumns, boolean compress) {
+		this.lobColumns = lobColumns;
+		this.compressLobs = compress;
+	}
+
+	/**
+	 * Set a table to write rejected rows to, with the columns {@code table_name},
+	 * {@code error_message} and {@code payload}.
+	 * @param errorTable the table name
+	 */
+	void setErrorTable(String errorTable) {
+		this.errorTable = errorTable;
+	}
+
+	/**
+	 * Set a destination to send rejected rows to, resolved when the first row is rejected.
+	 * @param errorDestination the destination name
+	 * @param channelResolver the resolver for the destination, or {@code null} for the
+	 * application context's channels
+	 */
+	void setErrorDestination(String errorDestination, DestinationResolver<MessageChannel> channelResolver) {
+		this.errorDestination = errorDestination;
+		this.errorChannelResolver = channelResolver;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "jdbc:outbound-channel-adapter";
+	}
+
+	@Override
+	protected void handleMessageInternal(Message<?> message) {
+		List<ExtractedRow> rows = this.parameterFactory.createRows(message);
+		int received = rows.size();
+		if (this.rowCoalescer != null && rows.size() > 1) {
+			rows = this.rowCoalescer.coalesce(rows);
+		}
+		if (rows.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			int rejected = write(rows);
+			this.sinkMetrics.rowsWritten(rows.size() - rejected);
+			this.sinkMetrics.rowsFailed(rejected);
+			if (rejected == 0) {
+				this.batchSizeController.record(received, System.nanoTime() - start);
+			}
+		}
+		catch (RuntimeException e) {
+			this.sinkMetrics.rowsFailed(rows.size());
+			throw e;
+		}
+		finally {
+			this.sinkMetrics.recordFlush(received, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Write the rows, retrying the ones not settled yet once on a new connection if the
+	 * connection was lost.
+	 * @return the number of rows rejected
+	 */
+	private synchronized int write(List<ExtractedRow> rows) {
+		Progress progress = new Progress();
+		try {
+			writeIsolating(rows, progress);
+		}
+		catch (SQLException e) {
+			logger.warn("Writer connection lost, retrying the " + (rows.size() - progress.settled)
+					+ " rows of the batch not written yet on a new connection: " + e.getMessage());
+			try {
+				writeIsolating(rows.subList(progress.settled, rows.size()), progress);
+			}
+			catch (SQLException e2) {
+				throw this.exceptionTranslator.translate("Batch insert", this.sql, e2);
+			}
+		}
+		return progress.rejected;
+	}
+
+	/**
+	 * Write the rows in order, isolating and rejecting the rows that fail.
+	 * @throws SQLException only if the connection was lost
+	 */
+	private void writeIsolating(List<ExtractedRow> rows, Progress progress) throws SQLException {
+		if (rows.isEmpty()) {
+			return;
+		}
+		prepare();
+		try {
+			executeBatch(rows);
+			progress.settled += rows.size();
+		}
+		catch (SQLException e) {
+			if (reset()) {
+				throw e;
+			}
+			if (rows.size() == 1) {
+				reject(rows.get(0), e);
+				progress.settled++;
+				progress.rejected++;
+				return;
+			}
+			int failed = firstFailedRow(e, rows.size());
+			writeIsolating(rows.subList(0, failed), progress);
+			List<ExtractedRow> rest = rows.subList(failed, rows.size());
+			if (rest.size() == 1) {
+				writeIsolating(rest, progress);
+			}
+			else {
+				int middle = rest.size() / 2;
+				writeIsolating(rest.subList(0, middle), progress);
+				writeIsolating(rest.subList(middle, rest.size()), progress);
+			}
+		}
+	}
+
+	/**
+	 * Find the first row a batch may have failed at from the update counts of a
+	 * {@link BatchUpdateException}: drivers stopping at the first failure report fewer counts
+	 * than rows, drivers carrying on mark the failed rows. The rows before it are known to be
+	 * good; it is not known to be bad, as drivers rewriting batches mark all the rows of a
+	 * failed multi-row statement.
+	 * @return the index of the row, or 0 if the driver does not tell
+	 */
+	private static int firstFailedRow(SQLException e, int rows) {
+		if (!(e instanceof BatchUpdateException) || ((BatchUpdateException) e).getUpdateCounts() == null) {
+			return 0;
+		}
+		int[] updateCounts = ((BatchUpdateException) e).getUpdateCounts();
+		if (updateCounts.length < rows) {
+			return updateCounts.length;
+		}
+		for (int i = 0; i < Math.min(updateCounts.length, rows); i++) {
+			if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Open the connection, read the column bindings and prepare the statement, as far as not
+	 * done yet.
+	 * @throws SQLException only if the connection was lost
+	 */
+	private void prepare() throws SQLException {
+		try {
+			if (this.connection == null) {
+				this.connection = this.dataSource.getConnection();
+				this.connection.setAutoCommit(false);
+			}
+			if (this.bindings == null) {
+				ColumnBinding[] bindings = ColumnBinding.forColumns(this.connection.getMetaData(), this.tableName,
+						this.columns);
+				for (int i = 0; i < bindings.length; i++) {
+					if (this.lobColumns.stream().anyMatch(this.columns.get(i)::equalsIgnoreCase)) {
+						bindings[i] = bindings[i].asLob(this.compressLobs);
+					}
+				}
+				this.bindings = bindings;
+			}
+			if (this.statement == null) {
+				this.statement = this.connection.prepareStatement(this.sql);
+			}
+		}
+		catch (SQLException e) {
+			if (reset()) {
+				throw e;
+			}
+			// not about the rows: bisecting the batch would only reject all of them
+			throw this.exceptionTranslator.translate("Batch insert", this.sql, e);
+		}
+	}
+
+	private void executeBatch(List<ExtractedRow> rows) throws SQLException {
+		for (ExtractedRow row : rows) {
+			Object[] values = row.getValues();
+			for (int i = 0; i < this.bindings.length; i++) {
+				this.bindings[i].bind(this.statement, i + 1, values[i]);
+			}
+			this.statement.addBatch();
+		}
+		this.statement.executeBatch();
+		this.connection.commit();
+	}
+
+	private void reject(ExtractedRow row, SQLException e) {
+		String message = (e.getNextException() != null ? e.getNextException() : e).getMessage();
+		Object payload = row.describe(this.columns);
+		logger.error("Rejected row for table " + this.tableName + ": " + message + "\nBad Data: \n" + payload);
+		if (this.errorTable != null) {
+			writeError(message, payload);
+		}
+		if (this.errorDestination != null) {
+			sendError(message, payload);
+		}
+	}
+
+	private void writeError(String message, Object payload) {
+		try (PreparedStatement ps = this.connection.prepareStatement(
+				"insert into " + this.errorTable + " (table_name, error_message, payload) values (?, ?, ?)")) {
+			ps.setString(1, this.tableName);
+			ps.setString(2, message);
+			ps.setString(3, payload.toString());
+			ps.executeUpdate();
+			this.connection.commit();
+			this.sinkMetrics.errorTableWrite();
+		}
+		catch (SQLException e) {
+			logger.error("Writing to error table failed: " + e.getMessage());
+			reset();
+		}
+	}
+
+	private void sendError(String message, Object payload) {
+		try {
+			if (this.errorChannel == null) {
+				DestinationResolver<MessageChannel> resolver = this.errorChannelResolver != null
+						? this.errorChannelResolver : getChannelResolver();
+				this.errorChannel = resolver.resolveDestination(this.errorDestination);
+			}
+			this.errorChannel.send(MessageBuilder.withPayload(payload)
+					.setHeader(EXCEPTION_MESSAGE_HEADER, message)
+					.setHeader(TABLE_NAME_HEADER, this.tableName)
+					.build());
+		}
+		catch (RuntimeException e) {
+			logger.error("Sending to error destination '" + this.errorDestination + "' failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Roll back and close the statement after a failed batch, closing the connection too if
+	 * it no longer works.
+	 * @return whether the connection was broken
+	 */
+	private boolean reset() {
+		JdbcUtils.closeStatement(this.statement);
+		this.statement = null;
+		if (this.connection == null) {
+			return true;
+		}
+		boolean broken;
+		try {
+			this.connection.rollback();
+			broken = !this.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		}
+		catch (SQLException e) {
+			broken = true;
+		}
+		if (broken) {
+			JdbcUtils.closeConnection(this.connection);
+			this.connection = null;
+		}
+		return broken;
+	}
+
+	private static String generateSql(String tableName, List<String> columns) {
+		StringBuilder builder = new StringBuilder("INSERT INTO ");
+		StringBuilder questionMarks = new StringBuilder(") VALUES (");
+		builder.append(tableName).append("(");
+		int i = 0;
+
+		for (String column : columns) {
+			if (i++ > 0) {
+				builder.append(", ");
+				questionMarks.append(", ");
+			}
+			builder.append(column);
+			questionMarks.append('?');
+		}
+		builder.append(questionMarks).append(")");
+		return builder.toString();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		JdbcUtils.closeStatement(this.statement);
+		this.statement = null;
+		JdbcUtils.closeConnection(this.connection);
+		this.connection = null;
+	}
+
+	/**
+	 * The rows of a batch committed or rejected so far, always the first ones of the batch.
+	 */
+	private static final class Progress {
+
+		private int settled;
+
+		private int rejected;
+
+	}
+
+}
@@ -16,60 +16,78 @@
 
 package org.springframework.cloud.stream.app.jdbc.sink;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.springframework.beans.DirectFieldAccessor;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeReleaseStrategy;
+import org.springframework.cloud.stream.app.jdbc.BatchingEndpoint;
 import org.springframework.cloud.stream.app.jdbc.DefaultInitializationScriptResource;
+import org.springframework.cloud.stream.app.jdbc.IdleTimeout;
 import org.springframework.cloud.stream.app.jdbc.ShorthandMapConverter;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.cloud.stream.binding.BinderAwareChannelResolver;
 import org.springframework.cloud.stream.config.BindingProperties;
 import org.springframework.cloud.stream.messaging.Sink;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.dao.DataAccessException;
 import org.springframework.expression.EvaluationContext;
-import org.springframework.expression.EvaluationException;
 import org.springframework.expression.Expression;
 import org.springframework.expression.spel.SpelParseException;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.integration.aggregator.DefaultAggregatingMessageGroupProcessor;
 import org.springframework.integration.aggregator.ExpressionEvaluatingCorrelationStrategy;
-import org.springframework.integration.aggregator.MessageCountReleaseStrategy;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.config.AggregatorFactoryBean;
+import org.springframework.integration.config.GlobalChannelInterceptor;
 import org.springframework.integration.expression.ExpressionUtils;
-import org.springframework.integration.expression.ValueExpression;
-import org.springframework.integration.jdbc.JdbcMessageHandler;
-import org.springframework.integration.jdbc.SqlParameterSourceFactory;
-import org.springframework.integration.json.JsonPropertyAccessor;
 import org.springframework.integration.store.MessageGroupStore;
 import org.springframework.integration.store.SimpleMessageStore;
 import org.springframework.integration.support.MutableMessage;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.init.DataSourceInitializer;
 import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
 import javax.sql.DataSource;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 /**
  * A module that writes its incoming payload to an RDBMS using JDBC.
@@ -88,7 +106,7 @@ public class JdbcSinkConfiguration {
 
 	private static final Log logger = LogFactory.getLog(JdbcSinkConfiguration.class);
 
-	private static final Object NOT_SET = new Object();
+	private static final String R2DBC_CONNECTION_FACTORY = "io.r2dbc.spi.ConnectionFactory";
 
 	private SpelExpressionParser spelExpressionParser = new SpelExpressionParser();
 
@@ -103,14 +121,13 @@ public class JdbcSinkConfiguration {
 	@Bean
 	@Primary
 	@ServiceActivator(inputChannel = Sink.INPUT)
-	FactoryBean<MessageHandler> aggregatorFactoryBean(MessageGroupStore messageGroupStore) {
+	FactoryBean<MessageHandler> aggregatorFactoryBean(MessageGroupStore messageGroupStore,
+			BatchSizeController batchSizeController, IdleTimeout idleTimeout) {
 		AggregatorFactoryBean aggregatorFactoryBean = new AggregatorFactoryBean();
 		aggregatorFactoryBean
 				.setCorrelationStrategy(new ExpressionEvaluatingCorrelationStrategy("payload.getClass().name"));
-		aggregatorFactoryBean.setReleaseStrategy(new MessageCountReleaseStrategy(this.properties.getBatchSize()));
-		if (this.properties.getIdleTimeout() >= 0) {
-			aggregatorFactoryBean.setGroupTimeoutExpression(new ValueExpression<>(this.properties.getIdleTimeout()));
-		}
+		aggregatorFactoryBean.setReleaseStrategy(new BatchSizeReleaseStrategy(batchSizeController));
+		aggregatorFactoryBean.setGroupTimeoutExpression(idleTimeout.asExpression());
 		aggregatorFactoryBean.setMessageStore(messageGroupStore);
 		aggregatorFactoryBean.setProcessorBean(new DefaultAggregatingMessageGroupProcessor());
 		aggregatorFactoryBean.setExpireGroupsUponCompletion(true);
@@ -121,7 +138,39 @@ public class JdbcSinkConfiguration {
 
 	@Bean
 	@ServiceActivator(inputChannel = "toSink")
-	public JdbcMessageHandler jdbcMessageHandler(DataSource dataSource) {
+	@ConditionalOnProperty(name = "jdbc.writer", havingValue = "jdbc", matchIfMissing = true)
+	public MessageHandler jdbcMessageHandler(DataSource dataSource, ParameterFactory parameterFactory,
+			SinkMetrics sinkMetrics, BatchSizeController batchSizeController,
+			ObjectProvider<BinderAwareChannelResolver> channelResolver) {
+		JdbcBatchMessageHandler jdbcMessageHandler = new JdbcBatchMessageHandler(dataSource,
+				this.properties.getTableName(), parameterFactory, sinkMetrics, batchSizeController);
+		jdbcMessageHandler.setRowCoalescer(rowCoalescer(parameterFactory));
+		jdbcMessageHandler.setLobColumns(lobColumns(), this.properties.isCompressLobs());
+		if (StringUtils.hasText(this.properties.getErrorTable())) {
+			verifyErrorTable(dataSource);
+			jdbcMessageHandler.setErrorTable(this.properties.getErrorTable());
+		}
+		if (StringUtils.hasText(this.properties.getErrorDestination())) {
+			jdbcMessageHandler.setErrorDestination(this.properties.getErrorDestination(),
+					channelResolver.getIfAvailable());
+		}
+		return jdbcMessageHandler;
+	}
+
+	RowCoalescer rowCoalescer(ParameterFactory parameterFactory) {
+		if (!StringUtils.hasText(this.properties.getCoalesceKey())) {
+			return null;
+		}
+		Expression mergeExpression = StringUtils.hasText(this.properties.getCoalesceMerge())
+				? this.spelExpressionParser.parseExpression(this.properties.getCoalesceMerge()) : null;
+		return new RowCoalescer(parameterFactory.getColumns(),
+				Arrays.asList(StringUtils.trimArrayElements(
+						StringUtils.commaDelimitedListToStringArray(this.properties.getCoalesceKey()))),
+				mergeExpression, this.evaluationContext);
+	}
+
+	@Bean
+	ParameterFactory parameterFactory() {
 		final MultiValueMap<String, Expression> columnExpressionVariations = new LinkedMultiValueMap<>();
 		for (Map.Entry<String, String> entry : this.properties.getColumnsMap().entrySet()) {
 			String value = entry.getValue();
@@ -138,47 +187,79 @@ public class JdbcSinkConfiguration {
 				}
 			}
 		}
-		JdbcMessageHandler jdbcMessageHandler = new JdbcMessageHandler(dataSource,
-				generateSql(this.properties.getTableName(), columnExpressionVariations.keySet())) {
+		ParameterFactory parameterFactory = new ParameterFactory(columnExpressionVariations, this.evaluationContext);
+		parameterFactory.setPayloadConverter(JdbcSinkConfiguration::convertMessage);
+		parameterFactory.setLobColumns(lobColumns());
+		return parameterFactory;
+	}
+
+	private List<String> lobColumns() {
+		return columnList(this.properties.getLobColumns());
+	}
+
+	private static List<String> columnList(String columns) {
+		return Arrays.asList(StringUtils.trimArrayElements(StringUtils.commaDelimitedListToStringArray(columns)));
+	}
+
+	/**
+	 * Evaluates the column expressions as each message arrives, so that only the resulting
+	 * values, rather than the whole message, wait in the message store for their batch.
+	 */
+	@Bean
+	@GlobalChannelInterceptor(patterns = Sink.INPUT)
+	@ConditionalOnProperty("jdbc.eager-extraction")
+	public ChannelInterceptor rowExtractingInterceptor(final ParameterFactory parameterFactory) {
+		return new ChannelInterceptor() {
 
 			@Override
-			protected void handleMessageInternal(final Message<?> message) {
-				Message<?> convertedMessage = message;
-				if (message.getPayload() instanceof byte[] || message.getPayload() instanceof Iterable){
-
-					final String contentType = message.getHeaders().containsKey(MessageHeaders.CONTENT_TYPE)
-							? message.getHeaders().get(MessageHeaders.CONTENT_TYPE).toString()
-							: BindingProperties.DEFAULT_CONTENT_TYPE.toString();
-					if (message.getPayload() instanceof Iterable) {
-						Stream<Object> messageStream =
-								StreamSupport.stream(((Iterable<?>) message.getPayload()).spliterator(),false)
-										.map(payload -> {
-											if (payload instanceof byte[]) {
-												return convertibleContentType(contentType) ?
-														new String(((byte[]) payload)) : payload;
-											}
-											else {
-												return payload;
-											}
-										});
-						convertedMessage = new MutableMessage<>(messageStream.collect(Collectors.toList()), message.getHeaders());
-					}
-					else {
-						if (convertibleContentType(contentType)) {
-							convertedMessage = new MutableMessage<>(new String(((byte[]) message.getPayload())), message.getHeaders());
-						}
-					}
-				}
-				super.handleMessageInternal(convertedMessage);
+			public Message<?> preSend(Message<?> message, MessageChannel channel) {
+				return new GenericMessage<>(new ExtractedRow(parameterFactory.createRow(message)));
 			}
+
 		};
-		SqlParameterSourceFactory parameterSourceFactory =
-				new ParameterFactory(columnExpressionVariations, this.evaluationContext);
-		jdbcMessageHandler.setSqlParameterSourceFactory(parameterSourceFactory);
-		return jdbcMessageHandler;
 	}
 
-	private boolean convertibleContentType(String contentType) {
+	private static Message<?> convertMessage(Message<?> message) {
+		Object payload = convertPayload(message.getPayload(), contentType(message));
+		return payload == message.getPayload() ? message : new MutableMessage<>(payload, message.getHeaders());
+	}
+
+	private static String contentType(Message<?> message) {
+		return message.getHeaders().containsKey(MessageHeaders.CONTENT_TYPE)
+				? message.getHeaders().get(MessageHeaders.CONTENT_TYPE).toString()
+				: BindingProperties.DEFAULT_CONTENT_TYPE.toString();
+	}
+
+	private static Object convertPayload(Object payload, String contentType) {
+		if (payload instanceof byte[]) {
+			return convertibleContentType(contentType) ? new String(((byte[]) payload)) : payload;
+		}
+		else {
+			return payload;
+		}
+	}
+
+	void verifyErrorTable(DataSource dataSource) {
+		final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		TransactionTemplate txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		try {
+			txTemplate.execute(new TransactionCallback<Long>() {
+				@Override
+				public Long doInTransaction(TransactionStatus transactionStatus) {
+					jdbcTemplate.update(
+							"insert into " + properties.getErrorTable() + " (table_name, error_message, payload) values (?, ?, ?)",
+							properties.getErrorTable(), "message", "payload");
+					transactionStatus.setRollbackOnly();
+					return null;
+				}
+			});
+		}
+		catch (DataAccessException e) {
+			throw new IllegalStateException("Invalid error table specified", e);
+		}
+	}
+
+	private static boolean convertibleContentType(String contentType) {
 		return contentType.contains("text") || contentType.contains("json") || contentType.contains("x-spring-tuple");
 	}
 
@@ -193,7 +274,9 @@ public class JdbcSinkConfiguration {
 		if ("true".equals(properties.getInitialize())) {
 			databasePopulator.addScript(
 					new DefaultInitializationScriptResource(this.properties.getTableName(),
-							this.properties.getColumnsMap().keySet()));
+							this.properties.getColumnsMap().keySet(), this.properties.getColumnTypesMap(),
+							columnList(this.properties.getPrimaryKey()),
+							columnList(this.properties.getIndexedColumns()), null));
 		}
 		else {
 			databasePopulator.addScript(resourceLoader.getResource(this.properties.getInitialize()));
@@ -209,6 +292,28 @@ public class JdbcSinkConfiguration {
 		return messageGroupStore;
 	}
 
+	@Bean
+	BatchSizeController batchSizeController() {
+		return new BatchSizeController(this.properties.getBatchSize(), this.properties.isAdaptiveBatchSize(),
+				this.properties.getMinBatchSize(), this.properties.getMaxBatchSize(),
+				this.properties.getMaxFlushLatency());
+	}
+
+	@Bean
+	IdleTimeout idleTimeout() {
+		return new IdleTimeout(this.properties.getIdleTimeout());
+	}
+
+	@Bean
+	SinkMetrics jdbcSinkMetrics(ObjectProvider<MeterRegistry> meterRegistry, MessageGroupStore messageGroupStore,
+			BatchSizeController batchSizeController) {
+		SinkMetrics sinkMetrics = new SinkMetrics(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry),
+				"jdbc.sink", this.properties.getTableName());
+		sinkMetrics.bindTo(messageGroupStore);
+		sinkMetrics.bindTo(batchSizeController);
+		return sinkMetrics;
+	}
+
 	@Bean
 	public static ShorthandMapConverter shorthandMapConverter() {
 		return new ShorthandMapConverter();
@@ -216,91 +321,78 @@ public class JdbcSinkConfiguration {
 
 	@PostConstruct
 	public void afterPropertiesSet() {
+		Assert.state(this.properties.getWriter() != JdbcSinkProperties.Writer.R2DBC
+						|| ClassUtils.isPresent(R2DBC_CONNECTION_FACTORY, getClass().getClassLoader()),
+				"'jdbc.writer=r2dbc' requires r2dbc-spi, r2dbc-pool and an R2DBC driver on the classpath");
 		this.evaluationContext = ExpressionUtils.createStandardEvaluationContext(this.beanFactory);
 	}
 
-	private String generateSql(String tableName, Set<String> columns) {
-		StringBuilder builder = new StringBuilder("INSERT INTO ");
-		StringBuilder questionMarks = new StringBuilder(") VALUES (");
-		builder.append(tableName).append("(");
-		int i = 0;
+	/**
+	 * The R2DBC writer, only set up when R2DBC is on the classpath: it is not shipped with the
+	 * application, as it needs a newer Reactor than the one the rest of the application uses.
+	 */
+	@Configuration
+	@ConditionalOnClass(name = R2DBC_CONNECTION_FACTORY)
+	@ConditionalOnProperty(name = "jdbc.writer", havingValue = "r2dbc")
+	static class R2dbcWriterConfiguration {
 
-		for (String column : columns) {
-			if (i++ > 0) {
-				builder.append(", ");
-				questionMarks.append(", ");
-			}
-			builder.append(column);
-			questionMarks.append(':').append(column);
-		}
-		builder.append(questionMarks).append(")");
-		return builder.toString();
-	}
-
-	private static final class ParameterFactory implements SqlParameterSourceFactory {
-
-		private final MultiValueMap<String, Expression> columnExpressions;
+		@Autowired
+		private JdbcSinkProperties properties;
 
-		private final EvaluationContext context;
+		@Autowired
+		private JdbcSinkConfiguration sinkConfiguration;
 
-		ParameterFactory(MultiValueMap<String, Expression> columnExpressions, EvaluationContext context) {
-			this.columnExpressions = columnExpressions;
-			this.context = context;
+		@Bean
+		@ServiceActivator(inputChannel = "toSink")
+		public MessageHandler r2dbcMessageHandler(ConnectionFactory r2dbcConnectionFactory, DataSource dataSource,
+				ParameterFactory parameterFactory, SinkMetrics sinkMetrics, BatchSizeController batchSizeController,
+				ObjectProvider<BinderAwareChannelResolver> channelResolver) {
+			R2dbcMessageHandler r2dbcMessageHandler = new R2dbcMessageHandler(r2dbcConnectionFactory,
+					this.properties.getTableName(), parameterFactory, sinkMetrics, batchSizeController,
+					this.properties.getR2dbcConcurrency());
+			r2dbcMessageHandler.setRowCoalescer(this.sinkConfiguration.rowCoalescer(parameterFactory));
+			if (StringUtils.hasText(this.properties.getErrorTable())) {
+				this.sinkConfiguration.verifyErrorTable(dataSource);
+				r2dbcMessageHandler.setErrorTable(this.properties.getErrorTable(), new JdbcTemplate(dataSource));
+			}
+			if (StringUtils.hasText(this.properties.getErrorDestination())) {
+				r2dbcMessageHandler.setErrorDestination(this.properties.getErrorDestination(),
+						channelResolver.getIfAvailable());
+			}
+			return r2dbcMessageHandler;
 		}
 
-		@Override
-		public SqlParameterSource createParameterSource(Object o) {
-			if (!(o instanceof Message)) {
-				throw new IllegalArgumentException("Unable to handle type " + o.getClass().getName());
+		/**
+		 * The pool of R2DBC connections, one for each batch written at the same time.
+		 */
+		@Bean(destroyMethod = "dispose")
+		public ConnectionPool r2dbcConnectionFactory() {
+			Assert.hasText(this.properties.getR2dbcUrl(), "'jdbc.r2dbc-url' is required with the r2dbc writer");
+			ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(this.properties.getR2dbcUrl())
+					.mutate();
+			if (StringUtils.hasText(this.properties.getR2dbcUsername())) {
+				options.option(ConnectionFactoryOptions.USER, this.properties.getR2dbcUsername());
 			}
-			Message<?> message = (Message<?>) o;
-			MapSqlParameterSource parameterSource = new MapSqlParameterSource();
-			for (Map.Entry<String, List<Expression>> entry : this.columnExpressions.entrySet()) {
-				String key = entry.getKey();
-				List<Expression> spels = entry.getValue();
-				Object value = NOT_SET;
-				EvaluationException lastException = null;
-				for (Expression spel : spels) {
-					try {
-						value = spel.getValue(context, message);
-						break;
-					}
-					catch (EvaluationException e) {
-						lastException = e;
-					}
-				}
-				if (value == NOT_SET) {
-					if (lastException != null) {
-						logger.info("Could not find value for column '" + key + "': " + lastException.getMessage());
-					}
-					parameterSource.addValue(key, null);
-				}
-				else {
-					if (value instanceof JsonPropertyAccessor.ToStringFriendlyJsonNode) {
-						// Need to do some reflection until we have a getter for the Node
-						DirectFieldAccessor dfa = new DirectFieldAccessor(value);
-						JsonNode node = (JsonNode) dfa.getPropertyValue("node");
-						Object valueToUse;
-						if (node == null || node.isNull()) {
-							valueToUse = null;
-						}
-						else if (node.isNumber()) {
-							valueToUse = node.numberValue();
-						}
-						else if (node.isBoolean()) {
-							valueToUse = node.booleanValue();
-						}
-						else {
-							valueToUse = node.textValue();
-						}
-						parameterSource.addValue(key, valueToUse);
-					}
-					else {
-						parameterSource.addValue(key, value);
-					}
-				}
+			if (StringUtils.hasText(this.properties.getR2dbcPassword())) {
+				options.option(ConnectionFactoryOptions.PASSWORD, this.properties.getR2dbcPassword());
 			}
-			return parameterSource;
+			int concurrency = this.properties.getR2dbcConcurrency();
+			return new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options.build()))
+					.initialSize(concurrency)
+					.maxSize(concurrency)
+					.build());
+		}
+
+	}
+
+	@Configuration
+	@ConditionalOnClass(Endpoint.class)
+	static class BatchingEndpointConfiguration {
+
+		@Bean
+		@ConditionalOnMissingBean
+		public BatchingEndpoint batchingEndpoint(BatchSizeController batchSizeController, IdleTimeout idleTimeout) {
+			return new BatchingEndpoint(batchSizeController, idleTimeout, null);
 		}
 
 	}
@@ -20,6 +20,7 @@ import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.stream.app.jdbc.DefaultInitializationScriptResource;
 import org.springframework.cloud.stream.app.jdbc.ShorthandMapConverter;
 
 /**
@@ -51,6 +52,23 @@ public class JdbcSinkProperties {
 	 */
 	private String initialize = "false";
 
+	/**
+	 * The comma separated colon-based pairs of column names and SQL types used when 'initialize' is true, for instance
+	 * 'id:BIGINT,created:TIMESTAMP'; other columns are created as VARCHAR(2000). Commas in types must be escaped, as in
+	 * 'amount:NUMERIC(10\,2)'.
+	 */
+	private String columnTypes = "";
+
+	/**
+	 * Comma separated columns of the primary key created when 'initialize' is true.
+	 */
+	private String primaryKey = "";
+
+	/**
+	 * Comma separated columns each indexed on its own when 'initialize' is true.
+	 */
+	private String indexedColumns = "";
+
 	/**
 	 * Threshold in number of messages when data will be flushed to database table.
 	 */
@@ -61,6 +79,94 @@ public class JdbcSinkProperties {
 	 */
 	private long idleTimeout = -1L;
 
+	/**
+	 * Whether to tune the batch size, starting from 'batch-size', from the measured flush latency and throughput.
+	 */
+	private boolean adaptiveBatchSize = false;
+
+	/**
+	 * The smallest batch size to use when the batch size is adaptive.
+	 */
+	private int minBatchSize = 1;
+
+	/**
+	 * The largest batch size to use when the batch size is adaptive.
+	 */
+	private int maxBatchSize = 10000;
+
+	/**
+	 * Flush time in milliseconds above which an adaptive batch size is halved; 0 to only follow throughput.
+	 */
+	private long maxFlushLatency = 0L;
+
+	/**
+	 * Whether to evaluate the column expressions as messages arrive and hold only the column values until the batch is
+	 * flushed, instead of the whole messages.
+	 */
+	private boolean eagerExtraction = false;
+
+	/**
+	 * Comma separated columns identifying a row; rows of a batch with the same key are collapsed into one, keeping the
+	 * last, and written in key order.
+	 */
+	private String coalesceKey;
+
+	/**
+	 * SpEL expression merging rows with the same key instead of keeping the last one, evaluated against 'previous' and
+	 * 'current' column maps and returning a map of the columns to change.
+	 */
+	private String coalesceMerge;
+
+	/**
+	 * The name of the error table used for writing rows causing errors. The error table should have three columns
+	 * named "table_name", "error_message" and "payload" large enough to hold potential data values.
+	 * You can use the following DDL to create this table:
+	 *     'CREATE TABLE ERRORS (TABLE_NAME VARCHAR(255), ERROR_MESSAGE TEXT,PAYLOAD TEXT)'
+	 */
+	private String errorTable;
+
+	/**
+	 * The name of a destination to send rows causing errors to, with the error in the 'x-exception-message' header.
+	 */
+	private String errorDestination;
+
+	/**
+	 * Comma separated columns holding large values; byte[] and String values of these columns are streamed to the
+	 * database instead of being bound whole, and the payload is not decoded into a String for them.
+	 */
+	private String lobColumns = "";
+
+	/**
+	 * Whether to deflate the values of binary LOB columns as they are streamed to the database.
+	 */
+	private boolean compressLobs = false;
+
+	/**
+	 * How batches are written: 'jdbc' through a JDBC connection, or 'r2dbc' as a reactive stream of batches over an
+	 * R2DBC connection pool.
+	 */
+	private Writer writer = Writer.JDBC;
+
+	/**
+	 * The R2DBC URL of the database when the writer is 'r2dbc', for instance 'r2dbc:postgresql://localhost/db'.
+	 */
+	private String r2dbcUrl;
+
+	/**
+	 * The user name for the R2DBC connections, if not given in the URL.
+	 */
+	private String r2dbcUsername;
+
+	/**
+	 * The password for the R2DBC connections, if not given in the URL.
+	 */
+	private String r2dbcPassword;
+
+	/**
+	 * The number of batches the R2DBC writer executes at the same time, each on its own pooled connection.
+	 */
+	private int r2dbcConcurrency = 4;
+
 	private Map<String, String> columnsMap;
 
 	public String getTableName() {
@@ -87,6 +193,30 @@ public class JdbcSinkProperties {
 		this.initialize = initialize;
 	}
 
+	public String getColumnTypes() {
+		return this.columnTypes;
+	}
+
+	public void setColumnTypes(String columnTypes) {
+		this.columnTypes = columnTypes;
+	}
+
+	public String getPrimaryKey() {
+		return this.primaryKey;
+	}
+
+	public void setPrimaryKey(String primaryKey) {
+		this.primaryKey = primaryKey;
+	}
+
+	public String getIndexedColumns() {
+		return this.indexedColumns;
+	}
+
+	public void setIndexedColumns(String indexedColumns) {
+		this.indexedColumns = indexedColumns;
+	}
+
 	public int getBatchSize() {
 		return this.batchSize;
 	}
@@ -103,6 +233,134 @@ public class JdbcSinkProperties {
 		this.idleTimeout = idleTimeout;
 	}
 
+	public boolean isAdaptiveBatchSize() {
+		return this.adaptiveBatchSize;
+	}
+
+	public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+		this.adaptiveBatchSize = adaptiveBatchSize;
+	}
+
+	public int getMinBatchSize() {
+		return this.minBatchSize;
+	}
+
+	public void setMinBatchSize(int minBatchSize) {
+		this.minBatchSize = minBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return this.maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxFlushLatency() {
+		return this.maxFlushLatency;
+	}
+
+	public void setMaxFlushLatency(long maxFlushLatency) {
+		this.maxFlushLatency = maxFlushLatency;
+	}
+
+	public boolean isEagerExtraction() {
+		return this.eagerExtraction;
+	}
+
+	public void setEagerExtraction(boolean eagerExtraction) {
+		this.eagerExtraction = eagerExtraction;
+	}
+
+	public String getCoalesceKey() {
+		return this.coalesceKey;
+	}
+
+	public void setCoalesceKey(String coalesceKey) {
+		this.coalesceKey = coalesceKey;
+	}
+
+	public String getCoalesceMerge() {
+		return this.coalesceMerge;
+	}
+
+	public void setCoalesceMerge(String coalesceMerge) {
+		this.coalesceMerge = coalesceMerge;
+	}
+
+	public String getErrorTable() {
+		return this.errorTable;
+	}
+
+	public void setErrorTable(String errorTable) {
+		this.errorTable = errorTable;
+	}
+
+	public String getErrorDestination() {
+		return this.errorDestination;
+	}
+
+	public void setErrorDestination(String errorDestination) {
+		this.errorDestination = errorDestination;
+	}
+
+	public String getLobColumns() {
+		return this.lobColumns;
+	}
+
+	public void setLobColumns(String lobColumns) {
+		this.lobColumns = lobColumns;
+	}
+
+	public boolean isCompressLobs() {
+		return this.compressLobs;
+	}
+
+	public void setCompressLobs(boolean compressLobs) {
+		this.compressLobs = compressLobs;
+	}
+
+	public Writer getWriter() {
+		return this.writer;
+	}
+
+	public void setWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	public String getR2dbcUrl() {
+		return this.r2dbcUrl;
+	}
+
+	public void setR2dbcUrl(String r2dbcUrl) {
+		this.r2dbcUrl = r2dbcUrl;
+	}
+
+	public String getR2dbcUsername() {
+		return this.r2dbcUsername;
+	}
+
+	public void setR2dbcUsername(String r2dbcUsername) {
+		this.r2dbcUsername = r2dbcUsername;
+	}
+
+	public String getR2dbcPassword() {
+		return this.r2dbcPassword;
+	}
+
+	public void setR2dbcPassword(String r2dbcPassword) {
+		this.r2dbcPassword = r2dbcPassword;
+	}
+
+	public int getR2dbcConcurrency() {
+		return this.r2dbcConcurrency;
+	}
+
+	public void setR2dbcConcurrency(int r2dbcConcurrency) {
+		this.r2dbcConcurrency = r2dbcConcurrency;
+	}
+
 	Map<String, String> getColumnsMap() {
 		if (this.columnsMap == null) {
 			this.columnsMap = this.shorthandMapConverter.convert(this.columns);
@@ -110,4 +368,25 @@ public class JdbcSinkProperties {
 		return this.columnsMap;
 	}
 
+	Map<String, String> getColumnTypesMap() {
+		return DefaultInitializationScriptResource.parseColumnTypes(this.columnTypes);
+	}
+
+	/**
+	 * The ways of writing batches to the database.
+	 */
+	public enum Writer {
+
+		/**
+		 * Write each batch through a JDBC prepared statement.
+		 */
+		JDBC,
+
+		/**
+		 * Write the batches as a reactive stream through R2DBC.
+		 */
+		R2DBC
+
+	}
+
 }
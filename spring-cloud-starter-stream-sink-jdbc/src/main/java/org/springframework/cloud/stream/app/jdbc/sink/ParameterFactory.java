@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.UnaryOperator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.EvaluationException;
+import org.springframework.expression.Expression;
+import org.springframework.integration.jdbc.SqlParameterSourceFactory;
+import org.springframework.integration.json.JsonPropertyAccessor;
+import org.springframework.integration.support.MutableMessage;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.messaging.Message;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A {@link SqlParameterSourceFactory} that evaluates the configured column expressions
+ * against each message, trying each variation of an expression in turn. The values can also
+ * be evaluated into a plain array with {@link #createRow(Message)}, or into the
+ * {@link ExtractedRow}s of a whole batch with {@link #createRows(Message)}.
+ *
+ * @author Eric Bottard
+ * @author Thomas Risberg
+ * @author Artem Bilan
+ */
+final class ParameterFactory implements SqlParameterSourceFactory {
+
+	private static final Log logger = LogFactory.getLog(ParameterFactory.class);
+
+	private static final Object NOT_SET = new Object();
+
+	private final MultiValueMap<String, Expression> columnExpressions;
+
+	private final List<String> columns;
+
+	private final EvaluationContext context;
+
+	private UnaryOperator<Message<?>> payloadConverter = UnaryOperator.identity();
+
+	private Set<String> lobColumns = Collections.emptySet();
+
+	ParameterFactory(MultiValueMap<String, Expression> columnExpressions, EvaluationContext context) {
+		this.columnExpressions = columnExpressions;
+		this.columns = new ArrayList<>(columnExpressions.keySet());
+		this.context = context;
+	}
+
+	/**
+	 * Set a conversion of the payload, such as decoding bytes into text, applied before the
+	 * column expressions that may read the payload are evaluated. It is applied at most once
+	 * per row, and only if such a column is not a LOB column.
+	 * @param payloadConverter the conversion
+	 */
+	void setPayloadConverter(UnaryOperator<Message<?>> payloadConverter) {
+		this.payloadConverter = payloadConverter;
+	}
+
+	/**
+	 * Set the columns whose expressions are evaluated against the payload as received, so that
+	 * large payloads can be streamed to them without being converted first.
+	 * @param lobColumns the column names
+	 */
+	void setLobColumns(Collection<String> lobColumns) {
+		Set<String> columns = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+		columns.addAll(lobColumns);
+		this.lobColumns = columns;
+	}
+
+	/**
+	 * Return the names of the columns, in the order of the values of {@link #createRow(Message)}.
+	 */
+	List<String> getColumns() {
+		return this.columns;
+	}
+
+	@Override
+	public SqlParameterSource createParameterSource(Object o) {
+		if (!(o instanceof Message)) {
+			throw new IllegalArgumentException("Unable to handle type " + o.getClass().getName());
+		}
+		Message<?> message = this.payloadConverter.apply((Message<?>) o);
+		MapSqlParameterSource parameterSource = new MapSqlParameterSource();
+		for (Map.Entry<String, List<Expression>> entry : this.columnExpressions.entrySet()) {
+			parameterSource.addValue(entry.getKey(), evaluate(entry.getKey(), entry.getValue(), message));
+		}
+		return parameterSource;
+	}
+
+	/**
+	 * Evaluate the column values for a message.
+	 * @param message the message
+	 * @return the values, in the order of {@link #getColumns()}
+	 */
+	Object[] createRow(Message<?> message) {
+		Object[] row = new Object[this.columns.size()];
+		Message<?> converted = null;
+		int i = 0;
+		for (Map.Entry<String, List<Expression>> entry : this.columnExpressions.entrySet()) {
+			Message<?> source = message;
+			if (!this.lobColumns.contains(entry.getKey()) && readsPayload(entry.getValue())) {
+				if (converted == null) {
+					converted = this.payloadConverter.apply(message);
+				}
+				source = converted;
+			}
+			row[i++] = evaluate(entry.getKey(), entry.getValue(), source);
+		}
+		return row;
+	}
+
+	/**
+	 * Whether the expressions of a column may read the payload. Only expressions reading just
+	 * the headers are known not to; the {@code payload.} fallback added to them is ignored.
+	 */
+	private static boolean readsPayload(List<Expression> spels) {
+		String expression = spels.get(0).getExpressionString();
+		return !expression.startsWith("headers") || expression.contains("payload");
+	}
+
+	/**
+	 * Evaluate the rows of a message: one for each element of a collection payload, or one
+	 * for the message itself. Rows already evaluated on arrival are taken as they are.
+	 * @param message the message
+	 * @return the rows, keeping the payload each was evaluated from
+	 */
+	List<ExtractedRow> createRows(Message<?> message) {
+		List<ExtractedRow> rows = new ArrayList<>();
+		if (message.getPayload() instanceof Iterable) {
+			for (Object payload : (Iterable<?>) message.getPayload()) {
+				if (payload instanceof ExtractedRow) {
+					rows.add((ExtractedRow) payload);
+				}
+				else {
+					Message<?> row = payload instanceof Message ? (Message<?>) payload
+							: new MutableMessage<>(payload, message.getHeaders());
+					rows.add(new ExtractedRow(createRow(row), row.getPayload()));
+				}
+			}
+		}
+		else if (message.getPayload() instanceof ExtractedRow) {
+			rows.add((ExtractedRow) message.getPayload());
+		}
+		else {
+			rows.add(new ExtractedRow(createRow(message), message.getPayload()));
+		}
+		return rows;
+	}
+
+	private Object evaluate(String key, List<Expression> spels, Message<?> message) {
+		Object value = NOT_SET;
+		EvaluationException lastException = null;
+		for (Expression spel : spels) {
+			try {
+				value = spel.getValue(context, message);
+				break;
+			}
+			catch (EvaluationException e) {
+				lastException = e;
+			}
+		}
+		if (value == NOT_SET) {
+			if (lastException != null) {
+				logger.info("Could not find value for column '" + key + "': " + lastException.getMessage());
+			}
+			return null;
+		}
+		if (value instanceof JsonPropertyAccessor.ToStringFriendlyJsonNode) {
+			// Need to do some reflection until we have a getter for the Node
+			DirectFieldAccessor dfa = new DirectFieldAccessor(value);
+			JsonNode node = (JsonNode) dfa.getPropertyValue("node");
+			if (node == null || node.isNull()) {
+				return null;
+			}
+			else if (node.isNumber()) {
+				return node.numberValue();
+			}
+			else if (node.isBoolean()) {
+				return node.booleanValue();
+			}
+			else {
+				return node.textValue();
+			}
+		}
+		return value;
+	}
+
+}
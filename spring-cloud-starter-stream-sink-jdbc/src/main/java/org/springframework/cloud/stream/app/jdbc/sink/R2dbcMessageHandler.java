@@ -0,0 +1,333 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Statement;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.integration.handler.AbstractMessageHandler;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.core.DestinationResolver;
+import org.springframework.util.Assert;
+
+/**
+ * Writes each incoming batch as a row per message, or per element of an incoming collection,
+ * through R2DBC.
+ * <p>
+ * The batches are handed to a {@link Flux} whose subscriber executes up to
+ * {@code concurrency} of them at the same time, each as one statement with a binding per row
+ * in its own transaction on a connection taken from the {@link ConnectionFactory}, normally
+ * a pool of that size. The calling thread only hands a batch over when the subscriber has
+ * requested one, so it blocks while all writers are busy instead of piling batches up in
+ * memory, and it does not wait for the batch to be written.
+ * <p>
+ * As the writes complete after the messages were handled, a failing batch cannot be thrown
+ * back to the caller: its rows are counted as failed and, as a whole, logged and written to
+ * an error table and/or sent to an error destination when configured, and the stream goes
+ * on with the next batch.
+ */
+class R2dbcMessageHandler extends AbstractMessageHandler implements DisposableBean {
+
+	private static final int UNBOUNDED = Integer.MAX_VALUE / 2;
+
+	private final ConnectionFactory connectionFactory;
+
+	private final String tableName;
+
+	private final String sql;
+
+	private final int columns;
+
+	private final ParameterFactory parameterFactory;
+
+	private final SinkMetrics sinkMetrics;
+
+	private final BatchSizeController batchSizeController;
+
+	private final Semaphore demand = new Semaphore(0);
+
+	private final CompletableFuture<Void> completion;
+
+	private volatile FluxSink<Batch> batches;
+
+	private RowCoalescer rowCoalescer;
+
+	private String errorTable;
+
+	private JdbcOperations errorTableOperations;
+
+	private String errorDestination;
+
+	private DestinationResolver<MessageChannel> errorChannelResolver;
+
+	private MessageChannel errorChannel;
+
+	/**
+	 * Create a handler and subscribe its writers.
+	 * @param connectionFactory the factory for the writer connections
+	 * @param tableName the table to insert into
+	 * @param parameterFactory the factory for the column values of each row
+	 * @param sinkMetrics the metrics to record the batches in
+	 * @param batchSizeController the batch size to report the written batches to
+	 * @param concurrency the number of batches to execute at the same time
+	 */
+	R2dbcMessageHandler(ConnectionFactory connectionFactory, String tableName, ParameterFactory parameterFactory,
+			SinkMetrics sinkMetrics, BatchSizeController batchSizeController, int concurrency) {
+		Assert.isTrue(concurrency > 0, "'concurrency' must be greater than 0");
+		this.connectionFactory = connectionFactory;
+		this.tableName = tableName;
+		this.sql = generateSql(tableName, parameterFactory.getColumns());
+		this.columns = parameterFactory.getColumns().size();
+		this.parameterFactory = parameterFactory;
+		this.sinkMetrics = sinkMetrics;
+		this.batchSizeController = batchSizeController;
+		this.completion = Flux.<Batch>create(sink -> {
+					sink.onRequest(n -> this.demand.release((int) Math.min(n, UNBOUNDED)));
+					this.batches = sink;
+				})
+				.flatMap(this::write, concurrency, 1)
+				.then()
+				.toFuture();
+	}
+
+	/**
+	 * Set a coalescer to collapse the rows of each batch sharing a key before writing them.
+	 * @param rowCoalescer the coalescer
+	 */
+	void setRowCoalescer(RowCoalescer rowCoalescer) {
+		this.rowCoalescer = rowCoalescer;
+	}
+
+	/**
+	 * Set a table to write the rows of failed batches to, with the columns
+	 * {@code table_name}, {@code error_message} and {@code payload}.
+	 * @param errorTable the table name
+	 * @param jdbcOperations the JDBC access to the database of the table
+	 */
+	void setErrorTable(String errorTable, JdbcOperations jdbcOperations) {
+		this.errorTable = errorTable;
+		this.errorTableOperations = jdbcOperations;
+	}
+
+	/**
+	 * Set a destination to send the rows of failed batches to, resolved when the first batch
+	 * fails.
+	 * @param errorDestination the destination name
+	 * @param channelResolver the resolver for the destination, or {@code null} for the
+	 * application context's channels
+	 */
+	void setErrorDestination(String errorDestination, DestinationResolver<MessageChannel> channelResolver) {
+		this.errorDestination = errorDestination;
+		this.errorChannelResolver = channelResolver;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "r2dbc:outbound-channel-adapter";
+	}
+
+	@Override
+	protected void handleMessageInternal(Message<?> message) {
+		List<ExtractedRow> rows = this.parameterFactory.createRows(message);
+		int received = rows.size();
+		if (this.rowCoalescer != null && rows.size() > 1) {
+			rows = this.rowCoalescer.coalesce(rows);
+		}
+		if (rows.isEmpty()) {
+			return;
+		}
+		try {
+			this.demand.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException(message, "Interrupted while waiting for a writer", e);
+		}
+		this.batches.next(new Batch(rows, received));
+	}
+
+	private Mono<Void> write(Batch batch) {
+		long start = System.nanoTime();
+		return Mono.usingWhen(this.connectionFactory.create(),
+						connection -> execute(connection, batch.rows),
+						Connection::close)
+				.doOnSuccess(v -> {
+					this.sinkMetrics.rowsWritten(batch.rows.size());
+					this.batchSizeController.record(batch.received, System.nanoTime() - start);
+				})
+				.onErrorResume(e -> {
+					this.sinkMetrics.rowsFailed(batch.rows.size());
+					// the error table is written through JDBC, away from the driver's threads
+					return Mono.fromRunnable(() -> reject(batch.rows, e))
+							.subscribeOn(Schedulers.elastic())
+							.then();
+				})
+				.doFinally(signal -> this.sinkMetrics.recordFlush(batch.received, System.nanoTime() - start));
+	}
+
+	private Mono<Void> execute(Connection connection, List<ExtractedRow> rows) {
+		return Mono.from(connection.beginTransaction())
+				.then(Flux.from(bind(connection.createStatement(this.sql), rows).execute())
+						.flatMap(Result::getRowsUpdated)
+						.then())
+				.then(Mono.from(connection.commitTransaction()))
+				.onErrorResume(e -> Mono.from(connection.rollbackTransaction())
+						.onErrorResume(e2 -> Mono.empty())
+						.then(Mono.error(e)));
+	}
+
+	private void reject(List<ExtractedRow> rows, Throwable e) {
+		List<String> columns = this.parameterFactory.getColumns();
+		List<Object> payloads = new ArrayList<>(rows.size());
+		for (ExtractedRow row : rows) {
+			payloads.add(row.describe(columns));
+		}
+		logger.error("Failed to write batch of " + rows.size() + " rows to table " + this.tableName + ": "
+				+ e.getMessage() + "\nBad Data: \n" + payloads);
+		if (this.errorTable != null) {
+			try {
+				this.errorTableOperations.batchUpdate(
+						"insert into " + this.errorTable + " (table_name, error_message, payload) values (?, ?, ?)",
+						payloads.stream()
+								.map(payload -> new Object[] { this.tableName, e.getMessage(), payload.toString() })
+								.collect(Collectors.toList()));
+				this.sinkMetrics.errorTableWrites(rows.size());
+			}
+			catch (RuntimeException e2) {
+				logger.error("Writing to error table failed: " + e2.getMessage());
+			}
+		}
+		if (this.errorDestination != null) {
+			try {
+				if (this.errorChannel == null) {
+					DestinationResolver<MessageChannel> resolver = this.errorChannelResolver != null
+							? this.errorChannelResolver : getChannelResolver();
+					this.errorChannel = resolver.resolveDestination(this.errorDestination);
+				}
+				for (Object payload : payloads) {
+					this.errorChannel.send(MessageBuilder.withPayload(payload)
+							.setHeader(JdbcBatchMessageHandler.EXCEPTION_MESSAGE_HEADER, e.getMessage())
+							.setHeader(JdbcBatchMessageHandler.TABLE_NAME_HEADER, this.tableName)
+							.build());
+				}
+			}
+			catch (RuntimeException e2) {
+				logger.error("Sending to error destination '" + this.errorDestination + "' failed: "
+						+ e2.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Bind each row of the batch as one binding of the statement. R2DBC needs the type of a
+	 * null value, which is taken from the other values of the column in the batch.
+	 */
+	private Statement bind(Statement statement, List<ExtractedRow> rows) {
+		Class<?>[] types = new Class<?>[this.columns];
+		for (ExtractedRow row : rows) {
+			Object[] values = row.getValues();
+			for (int i = 0; i < this.columns; i++) {
+				if (types[i] == null && values[i] != null) {
+					types[i] = values[i].getClass();
+				}
+			}
+		}
+		for (int r = 0; r < rows.size(); r++) {
+			if (r > 0) {
+				statement.add();
+			}
+			Object[] values = rows.get(r).getValues();
+			for (int i = 0; i < this.columns; i++) {
+				if (values[i] != null) {
+					statement.bind(i, values[i]);
+				}
+				else {
+					statement.bindNull(i, types[i] != null ? types[i] : String.class);
+				}
+			}
+		}
+		return statement;
+	}
+
+	private static String generateSql(String tableName, List<String> columns) {
+		StringBuilder builder = new StringBuilder("INSERT INTO ");
+		StringBuilder placeholders = new StringBuilder(") VALUES (");
+		builder.append(tableName).append("(");
+		int i = 0;
+
+		for (String column : columns) {
+			if (i++ > 0) {
+				builder.append(", ");
+				placeholders.append(", ");
+			}
+			builder.append(column);
+			placeholders.append('$').append(i);
+		}
+		builder.append(placeholders).append(")");
+		return builder.toString();
+	}
+
+	/**
+	 * Stop taking batches and wait for the ones handed over to be written.
+	 */
+	@Override
+	public void destroy() throws InterruptedException {
+		if (this.batches != null) {
+			this.batches.complete();
+		}
+		try {
+			this.completion.get();
+		}
+		catch (ExecutionException e) {
+			logger.error("R2DBC writer failed", e.getCause());
+		}
+	}
+
+	private static final class Batch {
+
+		private final List<ExtractedRow> rows;
+
+		private final int received;
+
+		Batch(List<ExtractedRow> rows, int received) {
+			this.rows = rows;
+			this.received = received;
+		}
+
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.util.Assert;
+
+/**
+ * Collapses the rows of a batch that share a key into one, and orders the remaining rows by
+ * key so that concurrent writers touch index entries in the same order. Key values are
+ * ordered nulls first, then numbers by value (with the infinities at either end and NaN
+ * last), then any other value by its string form; values ordered as equal, such as {@code 1}
+ * and {@code 1L}, are the same key.
+ * <p>
+ * By default the last row for a key wins. With a merge expression, each further row for a
+ * key is merged into the one kept so far: the expression is evaluated against an object
+ * exposing {@code previous} and {@code current} as maps of column name to value and returns
+ * a map of the columns to change, e.g. {@code {count: previous[count] + current[count]}};
+ * columns it leaves out take the value of {@code current}.
+ */
+final class RowCoalescer {
+
+	private final List<String> columns;
+
+	private final int[] keyIndexes;
+
+	private final Expression mergeExpression;
+
+	private final EvaluationContext evaluationContext;
+
+	/**
+	 * Create a coalescer.
+	 * @param columns the columns of the rows, in order
+	 * @param keyColumns the columns making up the key
+	 * @param mergeExpression the expression merging two rows with the same key, or {@code null} for last-write-wins
+	 * @param evaluationContext the context to evaluate the merge expression in
+	 */
+	RowCoalescer(List<String> columns, List<String> keyColumns, Expression mergeExpression,
+			EvaluationContext evaluationContext) {
+		Assert.notEmpty(keyColumns, "'keyColumns' must not be empty");
+		this.columns = columns;
+		this.keyIndexes = new int[keyColumns.size()];
+		for (int i = 0; i < this.keyIndexes.length; i++) {
+			this.keyIndexes[i] = columns.indexOf(keyColumns.get(i));
+			Assert.isTrue(this.keyIndexes[i] >= 0, "Key column '" + keyColumns.get(i) + "' is not one of " + columns);
+		}
+		this.mergeExpression = mergeExpression;
+		this.evaluationContext = evaluationContext;
+	}
+
+	List<ExtractedRow> coalesce(List<ExtractedRow> rows) {
+		Map<Key, ExtractedRow> byKey = new LinkedHashMap<>(rows.size() * 2);
+		for (ExtractedRow row : rows) {
+			Key key = key(row.getValues());
+			ExtractedRow previous = byKey.get(key);
+			byKey.put(key, previous != null && this.mergeExpression != null ? merge(previous, row) : row);
+		}
+		List<Map.Entry<Key, ExtractedRow>> entries = new ArrayList<>(byKey.entrySet());
+		entries.sort(Map.Entry.comparingByKey());
+		List<ExtractedRow> coalesced = new ArrayList<>(entries.size());
+		for (Map.Entry<Key, ExtractedRow> entry : entries) {
+			coalesced.add(entry.getValue());
+		}
+		return coalesced;
+	}
+
+	private Key key(Object[] row) {
+		SortValue[] values = new SortValue[this.keyIndexes.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = SortValue.of(row[this.keyIndexes[i]]);
+		}
+		return new Key(values);
+	}
+
+	private ExtractedRow merge(ExtractedRow previous, ExtractedRow current) {
+		Map<?, ?> changes = this.mergeExpression.getValue(this.evaluationContext,
+				new Merge(asMap(previous.getValues()), asMap(current.getValues())), Map.class);
+		if (changes == null || changes.isEmpty()) {
+			return current;
+		}
+		Object[] merged = current.getValues().clone();
+		for (Map.Entry<?, ?> change : changes.entrySet()) {
+			int index = this.columns.indexOf(String.valueOf(change.getKey()));
+			Assert.isTrue(index >= 0, "Merge expression returned unknown column '" + change.getKey() + "'");
+			merged[index] = change.getValue();
+		}
+		return new ExtractedRow(merged, current.getPayload());
+	}
+
+	private Map<String, Object> asMap(Object[] row) {
+		Map<String, Object> map = new LinkedHashMap<>();
+		for (int i = 0; i < row.length; i++) {
+			map.put(this.columns.get(i), row[i]);
+		}
+		return map;
+	}
+
+	/**
+	 * The key values of a row, normalised once so that rows are grouped and ordered alike.
+	 */
+	private static final class Key implements Comparable<Key> {
+
+		private final SortValue[] values;
+
+		Key(SortValue[] values) {
+			this.values = values;
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			for (int i = 0; i < this.values.length; i++) {
+				int result = this.values[i].compareTo(other.values[i]);
+				if (result != 0) {
+					return result;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(this.values, ((Key) obj).values);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(this.values);
+		}
+
+	}
+
+	/**
+	 * A key value ranked by kind, then compared as a number or as a string within its kind;
+	 * values that compare equal are the same key.
+	 */
+	private static final class SortValue implements Comparable<SortValue> {
+
+		private static final int NULL = 0;
+
+		private static final int NEGATIVE_INFINITY = 1;
+
+		private static final int NUMBER = 2;
+
+		private static final int POSITIVE_INFINITY = 3;
+
+		private static final int NAN = 4;
+
+		private static final int OTHER = 5;
+
+		private final int rank;
+
+		private final BigDecimal number;
+
+		private final String string;
+
+		private SortValue(int rank, BigDecimal number, String string) {
+			this.rank = rank;
+			this.number = number;
+			this.string = string;
+		}
+
+		static SortValue of(Object value) {
+			if (value == null) {
+				return new SortValue(NULL, null, null);
+			}
+			if (value instanceof Double || value instanceof Float) {
+				double d = ((Number) value).doubleValue();
+				if (Double.isNaN(d)) {
+					return new SortValue(NAN, null, null);
+				}
+				if (Double.isInfinite(d)) {
+					return new SortValue(d > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY, null, null);
+				}
+				// the shortest decimal form, so that 0.1f sorts with 0.1
+				return new SortValue(NUMBER, new BigDecimal(value.toString()), null);
+			}
+			if (value instanceof BigDecimal) {
+				return new SortValue(NUMBER, (BigDecimal) value, null);
+			}
+			if (value instanceof BigInteger) {
+				return new SortValue(NUMBER, new BigDecimal((BigInteger) value), null);
+			}
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return new SortValue(NUMBER, BigDecimal.valueOf(((Number) value).longValue()), null);
+			}
+			if (value instanceof Number) {
+				try {
+					return new SortValue(NUMBER, new BigDecimal(value.toString()), null);
+				}
+				catch (NumberFormatException e) {
+					// not a plain decimal: ordered as other values
+				}
+			}
+			return new SortValue(OTHER, null, value.toString());
+		}
+
+		@Override
+		public int compareTo(SortValue other) {
+			if (this.rank != other.rank) {
+				return Integer.compare(this.rank, other.rank);
+			}
+			if (this.rank == NUMBER) {
+				return this.number.compareTo(other.number);
+			}
+			if (this.rank == OTHER) {
+				return this.string.compareTo(other.string);
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SortValue && compareTo((SortValue) obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			if (this.rank == NUMBER) {
+				// 1, 1L and 1.0 are one key
+				return this.number.signum() == 0 ? 0 : this.number.stripTrailingZeros().hashCode();
+			}
+			return this.rank == OTHER ? this.string.hashCode() : this.rank;
+		}
+
+	}
+
+	/**
+	 * The root object of the merge expression.
+	 */
+	public static final class Merge {
+
+		private final Map<String, Object> previous;
+
+		private final Map<String, Object> current;
+
+		Merge(Map<String, Object> previous, Map<String, Object> current) {
+			this.previous = previous;
+			this.current = current;
+		}
+
+		public Map<String, Object> getPrevious() {
+			return this.previous;
+		}
+
+		public Map<String, Object> getCurrent() {
+			return this.current;
+		}
+
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for ColumnBinding against PostgreSQL. Only runs if a PostgreSQL database is
+ * available on localhost.
+ */
+public class ColumnBindingPostgresIntegrationTests {
+
+	private static final String URL = "jdbc:postgresql://127.0.0.1:5432/test";
+
+	private Connection connection;
+
+	@Before
+	public void connect() throws SQLException {
+		try {
+			this.connection = DriverManager.getConnection(URL, "postgres", "spring");
+		}
+		catch (SQLException e) {
+			Assume.assumeNoException("PostgreSQL is not available", e);
+		}
+		try (Statement statement = this.connection.createStatement()) {
+			statement.execute("CREATE TEMPORARY TABLE lob_documents (body text)");
+		}
+	}
+
+	@After
+	public void close() throws SQLException {
+		if (this.connection != null) {
+			this.connection.close();
+		}
+	}
+
+	@Test
+	public void bindsBytesAndTextAsCharacterStreams() throws SQLException {
+		ColumnBinding body = ColumnBinding.forColumns(this.connection.getMetaData(), "lob_documents",
+				Collections.singletonList("body"))[0].asLob(true);
+		try (PreparedStatement insert = this.connection.prepareStatement("INSERT INTO lob_documents VALUES (?)")) {
+			body.bind(insert, 1, "Grüße as text".getBytes(StandardCharsets.UTF_8));
+			insert.addBatch();
+			body.bind(insert, 1, "Grüße as a string");
+			insert.addBatch();
+			insert.executeBatch();
+		}
+		try (Statement statement = this.connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT body FROM lob_documents ORDER BY body")) {
+			assertThat(rs.next(), is(true));
+			assertThat(rs.getString(1), is("Grüße as a string"));
+			assertThat(rs.next(), is(true));
+			assertThat(rs.getString(1), is("Grüße as text"));
+		}
+	}
+
+}
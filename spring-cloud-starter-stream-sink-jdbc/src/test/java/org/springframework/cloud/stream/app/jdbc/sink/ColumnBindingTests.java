@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for ColumnBinding conversions.
+ */
+public class ColumnBindingTests {
+
+	@Test
+	public void convertsNumbers() {
+		assertThat(new ColumnBinding("a", Types.BIGINT).convert("42"), is(42L));
+		assertThat(new ColumnBinding("a", Types.BIGINT).convert(42), is(42L));
+		assertThat(new ColumnBinding("a", Types.INTEGER).convert(42L), is(42));
+		assertThat(new ColumnBinding("a", Types.DECIMAL).convert(" 1.5"), is(new BigDecimal("1.5")));
+		assertThat(new ColumnBinding("a", Types.DOUBLE).convert("2.5"), is(2.5d));
+	}
+
+	@Test
+	public void leavesUnconvertibleValues() {
+		assertThat(new ColumnBinding("a", Types.BIGINT).convert("forty-two"), is("forty-two"));
+		assertThat(new ColumnBinding("a", Types.INTEGER).convert(Long.MAX_VALUE), is(Long.MAX_VALUE));
+		assertThat(new ColumnBinding("a", Types.TIMESTAMP).convert("yesterday"), is("yesterday"));
+	}
+
+	@Test
+	public void convertsTimestamps() {
+		Instant instant = Instant.parse("2019-03-01T10:15:30Z");
+		assertThat(new ColumnBinding("a", Types.TIMESTAMP).convert("2019-03-01T10:15:30Z"),
+				is(Timestamp.from(instant)));
+		assertThat(new ColumnBinding("a", Types.TIMESTAMP).convert("2019-03-01T11:15:30+01:00"),
+				is(Timestamp.from(instant)));
+		assertThat(new ColumnBinding("a", Types.TIMESTAMP).convert("2019-03-01 10:15:30"),
+				is(Timestamp.valueOf("2019-03-01 10:15:30")));
+		assertThat(new ColumnBinding("a", Types.TIMESTAMP).convert(instant.toEpochMilli()),
+				is(Timestamp.from(instant)));
+	}
+
+	@Test
+	public void convertsOtherTypes() {
+		assertThat(new ColumnBinding("a", Types.BOOLEAN).convert("TRUE"), is(Boolean.TRUE));
+		assertThat(new ColumnBinding("a", Types.VARCHAR).convert(42), is("42"));
+		assertThat(new ColumnBinding("a", Types.DATE).convert("2019-03-01"),
+				is(java.sql.Date.valueOf("2019-03-01")));
+		assertThat(new ColumnBinding("a", Types.VARCHAR).convert("Grüße".getBytes(StandardCharsets.UTF_8)),
+				is("Grüße"));
+		assertThat(new ColumnBinding("a", Types.VARCHAR).convert(null), nullValue());
+	}
+
+	@Test
+	public void readsTypesFromTheCurrentSchemaUnlessQualified() throws SQLException {
+		EmbeddedDatabase database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2)
+				.generateUniqueName(true).build();
+		try (Connection connection = database.getConnection()) {
+			connection.createStatement().execute("CREATE TABLE names (id BIGINT, name VARCHAR(20))");
+			connection.createStatement().execute("CREATE SCHEMA other");
+			connection.createStatement().execute("CREATE TABLE other.names (id VARCHAR(20), age INT)");
+			ColumnBinding[] bindings = ColumnBinding.forColumns(connection.getMetaData(), "names",
+					Arrays.asList("id", "age"));
+			assertThat(bindings[0].convert("42"), is(42L));
+			assertThat(bindings[1].convert("42"), is("42"));
+			bindings = ColumnBinding.forColumns(connection.getMetaData(), "other.names", Arrays.asList("id", "age"));
+			assertThat(bindings[0].convert("42"), is("42"));
+			assertThat(bindings[1].convert("42"), is(42));
+		}
+		finally {
+			database.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+import javax.sql.DataSource;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for JdbcBatchMessageHandler.
+ */
+public class JdbcBatchMessageHandlerTests {
+
+	private EmbeddedDatabase database;
+
+	private final List<Connection> connections = new ArrayList<>();
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private DataSource dataSource;
+
+	private JdbcBatchMessageHandler handler;
+
+	private JdbcTemplate jdbcTemplate;
+
+	private BatchExecution batchExecution = (statement, rows) -> statement.executeBatch();
+
+	private int batchExecutions;
+
+	@Before
+	public void setUp() {
+		this.database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+		this.jdbcTemplate = new JdbcTemplate(this.database);
+		this.jdbcTemplate.execute("create table names (name varchar(10) primary key)");
+		this.jdbcTemplate.execute("create table events (id bigint, amount decimal(10, 2), created timestamp)");
+		this.dataSource = new DelegatingDataSource(this.database) {
+
+			@Override
+			public Connection getConnection() throws SQLException {
+				Connection connection = super.getConnection();
+				connections.add(connection);
+				return interceptingBatches(connection);
+			}
+
+		};
+		this.handler = handler("names", "name", "payload");
+	}
+
+	@After
+	public void tearDown() {
+		this.handler.destroy();
+		this.database.shutdown();
+	}
+
+	@Test
+	public void reusesConnectionAcrossBatches() {
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("a", "b")));
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "d")));
+		this.handler.handleMessage(new GenericMessage<>("e"));
+		assertThat(count(), is(5));
+		assertThat(this.connections.size(), is(1));
+	}
+
+	@Test
+	public void rejectsFailingRowsAndWritesTheRest() {
+		this.jdbcTemplate.execute("create table errors (table_name varchar(255), error_message varchar(4000), "
+				+ "payload varchar(4000))");
+		QueueChannel errorChannel = new QueueChannel();
+		this.handler.setErrorTable("errors");
+		this.handler.setErrorDestination("errors", name -> errorChannel);
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("a", "b")));
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "a", "d", "e", "b", "f", "this is too long")));
+		assertThat(count(), is(6));
+		assertThat(this.jdbcTemplate.queryForList("select payload from errors", String.class),
+				containsInAnyOrder("a", "b", "this is too long"));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "failed").counter().count(), is(3.0));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "written").counter().count(), is(6.0));
+		Message<?> rejected = errorChannel.receive(0);
+		assertThat(rejected.getHeaders().get(JdbcBatchMessageHandler.TABLE_NAME_HEADER), is("names"));
+		assertThat(rejected.getHeaders().containsKey(JdbcBatchMessageHandler.EXCEPTION_MESSAGE_HEADER), is(true));
+		assertThat(errorChannel.getQueueSize(), is(2));
+		assertThat(this.connections.size(), is(1));
+	}
+
+	@Test
+	public void failsBatchesThatCannotBePreparedWithoutRejectingTheirRows() {
+		this.jdbcTemplate.execute("create table errors (table_name varchar(255), error_message varchar(4000), "
+				+ "payload varchar(4000))");
+		this.handler = handler("names", "missing", "payload");
+		this.handler.setErrorTable("errors");
+		try {
+			this.handler.handleMessage(new GenericMessage<>(Arrays.asList("a", "b", "c")));
+			fail("Expected the batch to fail");
+		}
+		catch (MessageHandlingException e) {
+			assertThat(e.getCause(), instanceOf(BadSqlGrammarException.class));
+		}
+		assertThat(this.batchExecutions, is(0));
+		assertThat(this.jdbcTemplate.queryForObject("select count(*) from errors", Integer.class), is(0));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "failed").counter().count(), is(3.0));
+		assertThat(this.connections.size(), is(1));
+	}
+
+	@Test
+	public void doesNotRejectRowsOfRewrittenBatchesOnTheirUpdateCounts() {
+		this.jdbcTemplate.update("insert into names values ('a')");
+		this.batchExecution = (statement, rows) -> {
+			try {
+				return statement.executeBatch();
+			}
+			catch (BatchUpdateException e) {
+				int[] updateCounts = new int[rows];
+				Arrays.fill(updateCounts, Statement.EXECUTE_FAILED);
+				throw new BatchUpdateException(e.getMessage(), updateCounts, e);
+			}
+		};
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "a", "d", "e")));
+		assertThat(count(), is(4));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "failed").counter().count(), is(1.0));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "written").counter().count(), is(3.0));
+	}
+
+	@Test
+	public void retriesOnlyUnsettledRowsAfterConnectionLossWhileIsolating() {
+		this.jdbcTemplate.execute("create table errors (table_name varchar(255), error_message varchar(4000), "
+				+ "payload varchar(4000))");
+		this.handler.setErrorTable("errors");
+		this.jdbcTemplate.update("insert into names values ('a')");
+		this.batchExecution = (statement, rows) -> {
+			// the whole batch, then 'c' and 'a' on their own, then the connection is lost writing 'd'
+			if (this.batchExecutions == 4) {
+				statement.getConnection().close();
+				throw new SQLException("Connection lost");
+			}
+			return statement.executeBatch();
+		};
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "a", "d")));
+		assertThat(count(), is(3));
+		assertThat(this.jdbcTemplate.queryForList("select payload from errors", String.class), contains("a"));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "failed").counter().count(), is(1.0));
+		assertThat(this.connections.size(), is(2));
+	}
+
+	@Test
+	public void reconnectsAfterConnectionLoss() throws SQLException {
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("a", "b")));
+		this.connections.get(0).close();
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "d")));
+		assertThat(count(), is(4));
+		assertThat(this.connections.size(), is(2));
+	}
+
+	@Test
+	public void convertsValuesToColumnTypes() {
+		this.handler = handler("events", "id", "payload[0]", "amount", "payload[1]", "created", "payload[2]");
+		this.handler.handleMessage(new GenericMessage<>(Arrays.asList(
+				Arrays.asList("42", 12.5, "2019-03-01T10:15:30Z"),
+				Arrays.asList(43, "7.25", "2019-03-01T10:15:30"),
+				Arrays.asList(null, null, null))));
+		Map<String, Object> row = this.jdbcTemplate.queryForMap("select * from events where id = 42");
+		assertThat(row.get("AMOUNT"), is(new BigDecimal("12.50")));
+		assertThat(row.get("CREATED"), is(Timestamp.from(Instant.parse("2019-03-01T10:15:30Z"))));
+		row = this.jdbcTemplate.queryForMap("select * from events where id = 43");
+		assertThat(row.get("AMOUNT"), is(new BigDecimal("7.25")));
+		assertThat(row.get("CREATED"), is(Timestamp.valueOf("2019-03-01 10:15:30")));
+		assertThat(this.jdbcTemplate.queryForObject("select count(*) from events where id is null", Integer.class),
+				is(1));
+	}
+
+	@Test
+	public void streamsLobColumns() throws IOException {
+		this.jdbcTemplate.execute("create table documents (name varchar(10), body clob, data blob)");
+		this.handler = handler("documents", "name", "headers['name']", "body", "payload", "data", "payload");
+		this.handler.setLobColumns(Arrays.asList("body", "data"), true);
+		byte[] document = "{\"text\": \"a large document\"}".getBytes(StandardCharsets.UTF_8);
+		this.handler.handleMessage(MessageBuilder.withPayload(document).setHeader("name", "doc").build());
+		assertThat(this.jdbcTemplate.queryForObject("select body from documents", String.class),
+				is("{\"text\": \"a large document\"}"));
+		byte[] data = this.jdbcTemplate.queryForObject("select data from documents", byte[].class);
+		assertThat(StreamUtils.copyToByteArray(new InflaterInputStream(new ByteArrayInputStream(data))),
+				is(document));
+	}
+
+	private JdbcBatchMessageHandler handler(String table, String... columnExpressions) {
+		if (this.handler != null) {
+			this.handler.destroy();
+		}
+		MultiValueMap<String, Expression> columns = new LinkedMultiValueMap<>();
+		for (int i = 0; i < columnExpressions.length; i += 2) {
+			columns.add(columnExpressions[i], new SpelExpressionParser().parseExpression(columnExpressions[i + 1]));
+		}
+		return new JdbcBatchMessageHandler(this.dataSource, table,
+				new ParameterFactory(columns, new StandardEvaluationContext()),
+				new SinkMetrics(this.registry, "test.sink", table), new BatchSizeController(1));
+	}
+
+	/**
+	 * Wrap the connection so that the batches of the handler's statements go through
+	 * {@link #batchExecution}.
+	 */
+	private Connection interceptingBatches(Connection connection) {
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					Object result = invoke(method, connection, args);
+					if (method.getName().equals("prepareStatement") && ((String) args[0]).startsWith("INSERT INTO")) {
+						return interceptingBatches((PreparedStatement) result, (Connection) proxy);
+					}
+					return result;
+				});
+	}
+
+	private PreparedStatement interceptingBatches(PreparedStatement statement, Connection connection) {
+		int[] rows = new int[1];
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "addBatch":
+							rows[0]++;
+							break;
+						case "getConnection":
+							return connection;
+						case "executeBatch":
+							this.batchExecutions++;
+							int batchRows = rows[0];
+							rows[0] = 0;
+							return this.batchExecution.execute(statement, batchRows);
+						default:
+					}
+					return invoke(method, statement, args);
+				});
+	}
+
+	private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private int count() {
+		return this.jdbcTemplate.queryForObject("select count(*) from names", Integer.class);
+	}
+
+	@FunctionalInterface
+	private interface BatchExecution {
+
+		int[] execute(PreparedStatement statement, int rows) throws SQLException;
+
+	}
+
+}
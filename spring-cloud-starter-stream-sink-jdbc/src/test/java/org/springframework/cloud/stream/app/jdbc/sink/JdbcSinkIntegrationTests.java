@@ -23,11 +23,13 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.app.jdbc.BatchingEndpoint;
 import org.springframework.cloud.stream.messaging.Sink;
 import org.springframework.jdbc.core.BeanPropertyRowMapper;
 import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
@@ -124,6 +126,43 @@ public abstract class JdbcSinkIntegrationTests {
 
 	}
 
+	@TestPropertySource(properties = "jdbc.batchSize=1000")
+	public static class RuntimeBatchSizeTests extends JdbcSinkIntegrationTests {
+
+		@Autowired
+		private BatchingEndpoint batchingEndpoint;
+
+		@Test
+		public void testBatchSizeChangedAtRuntime() {
+			Payload sent = new Payload("hello", 42);
+			channels.input().send(MessageBuilder.withPayload(sent).build());
+			batchingEndpoint.update(5, null, null);
+			for (int i = 0; i < 4; i++) {
+				channels.input().send(MessageBuilder.withPayload(sent).build());
+			}
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from messages", Integer.class), is(5));
+			Assert.assertThat(batchingEndpoint.batching().get("batchSize"), is(5));
+		}
+
+	}
+
+	@TestPropertySource(properties = { "jdbc.columns=a,b", "jdbc.batchSize=3", "jdbc.eagerExtraction=true" })
+	public static class EagerExtractionTests extends JdbcSinkIntegrationTests {
+
+		@Test
+		public void testInsertion() {
+			channels.input().send(MessageBuilder.withPayload(new Payload("hello", 42)).build());
+			channels.input().send(MessageBuilder.withPayload(new Payload("world", 12)).build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from messages", Integer.class), is(0));
+			channels.input().send(MessageBuilder.withPayload("{\"a\": \"json\", \"b\": 7}".getBytes())
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json").build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from messages", Integer.class), is(3));
+			Assert.assertThat(jdbcOperations.queryForObject("select b from messages where a = ?", String.class, "json"),
+					is("7"));
+		}
+
+	}
+
 	@TestPropertySource(properties = "jdbc.columns=a,b")
 	public static class SimpleMappingTests extends JdbcSinkIntegrationTests {
 
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.r2dbc.h2.H2ConnectionConfiguration;
+import io.r2dbc.h2.H2ConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for R2dbcMessageHandler, against H2's R2DBC driver.
+ */
+public class R2dbcMessageHandlerTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private String database;
+
+	private JdbcTemplate jdbcTemplate;
+
+	@Before
+	public void setUp() {
+		this.database = UUID.randomUUID().toString();
+		this.jdbcTemplate = new JdbcTemplate(
+				new DriverManagerDataSource("jdbc:h2:mem:" + this.database + ";DB_CLOSE_DELAY=-1"));
+		this.jdbcTemplate.execute("create table names (name varchar(10) primary key)");
+		this.jdbcTemplate.execute("create table events (id bigint, name varchar(10))");
+	}
+
+	@After
+	public void tearDown() {
+		this.jdbcTemplate.execute("shutdown");
+	}
+
+	@Test
+	public void writesAllBatches() throws Exception {
+		R2dbcMessageHandler handler = handler("names", 2, "name", "payload");
+		for (int i = 0; i < 20; i++) {
+			List<String> names = new ArrayList<>();
+			for (int j = 0; j < 5; j++) {
+				names.add(i + "-" + j);
+			}
+			handler.handleMessage(new GenericMessage<>(names));
+		}
+		handler.destroy();
+		assertThat(this.jdbcTemplate.queryForObject("select count(*) from names", Integer.class), is(100));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "written").counter().count(), is(100.0));
+	}
+
+	@Test
+	public void failedBatchDoesNotStopTheStream() throws Exception {
+		R2dbcMessageHandler handler = handler("names", 1, "name", "payload");
+		handler.handleMessage(new GenericMessage<>(Arrays.asList("a", "b")));
+		handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "a")));
+		handler.handleMessage(new GenericMessage<>(Arrays.asList("d", "e")));
+		handler.destroy();
+		assertThat(this.jdbcTemplate.queryForList("select name from names order by name", String.class),
+				is(Arrays.asList("a", "b", "d", "e")));
+		assertThat(this.registry.get("test.sink.rows").tag("result", "failed").counter().count(), is(2.0));
+	}
+
+	@Test
+	public void routesFailedBatchesToErrorTableAndDestination() throws Exception {
+		this.jdbcTemplate.execute("create table errors (table_name varchar(255), error_message varchar(4000), "
+				+ "payload varchar(4000))");
+		QueueChannel errorChannel = new QueueChannel();
+		R2dbcMessageHandler handler = handler("names", 1, "name", "payload");
+		handler.setErrorTable("errors", this.jdbcTemplate);
+		handler.setErrorDestination("errors", name -> errorChannel);
+		handler.handleMessage(new GenericMessage<>(Arrays.asList("a", "b")));
+		handler.handleMessage(new GenericMessage<>(Arrays.asList("c", "a")));
+		handler.destroy();
+		assertThat(this.jdbcTemplate.queryForList("select payload from errors order by payload", String.class),
+				is(Arrays.asList("a", "c")));
+		assertThat(errorChannel.getQueueSize(), is(2));
+		Message<?> rejected = errorChannel.receive(0);
+		assertThat(rejected.getHeaders().get(JdbcBatchMessageHandler.TABLE_NAME_HEADER), is("names"));
+		assertThat(this.registry.get("test.sink.error.table.writes").counter().count(), is(2.0));
+	}
+
+	@Test
+	public void bindsNullValues() throws Exception {
+		R2dbcMessageHandler handler = handler("events", 1, "id", "payload[0]", "name", "payload[1]");
+		handler.handleMessage(new GenericMessage<>(Arrays.asList(
+				Arrays.asList(1L, "a"), Arrays.asList(2L, null), Arrays.asList(null, null))));
+		handler.destroy();
+		assertThat(this.jdbcTemplate.queryForObject("select count(*) from events", Integer.class), is(3));
+		assertThat(this.jdbcTemplate.queryForObject("select count(*) from events where name is null", Integer.class),
+				is(2));
+	}
+
+	private R2dbcMessageHandler handler(String table, int concurrency, String... columnExpressions) {
+		MultiValueMap<String, Expression> columns = new LinkedMultiValueMap<>();
+		for (int i = 0; i < columnExpressions.length; i += 2) {
+			columns.add(columnExpressions[i], new SpelExpressionParser().parseExpression(columnExpressions[i + 1]));
+		}
+		H2ConnectionFactory connectionFactory = new H2ConnectionFactory(H2ConnectionConfiguration.builder()
+				.url("mem:" + this.database + ";DB_CLOSE_DELAY=-1")
+				.build());
+		return new R2dbcMessageHandler(connectionFactory, table,
+				new ParameterFactory(columns, new StandardEvaluationContext()),
+				new SinkMetrics(this.registry, "test.sink", table), new BatchSizeController(1), concurrency);
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.sink;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for RowCoalescer.
+ */
+public class RowCoalescerTests {
+
+	private final List<String> columns = Arrays.asList("id", "name", "count");
+
+	@Test
+	public void keepsLastRowPerKeyInKeyOrder() {
+		RowCoalescer coalescer = new RowCoalescer(this.columns, Collections.singletonList("id"), null,
+				new StandardEvaluationContext());
+		List<ExtractedRow> rows = coalescer.coalesce(rows(
+				new Object[] { 3, "c", 1 },
+				new Object[] { 1, "a", 1 },
+				new Object[] { 3, "c2", 2 },
+				new Object[] { null, "n", 1 },
+				new Object[] { 2, "b", 1 },
+				new Object[] { 1, "a2", 5 }));
+		assertThat(rows.size(), is(4));
+		assertThat(Arrays.asList(rows.get(0).getValues()), is(Arrays.<Object>asList(null, "n", 1)));
+		assertThat(Arrays.asList(rows.get(1).getValues()), is(Arrays.<Object>asList(1, "a2", 5)));
+		assertThat(Arrays.asList(rows.get(2).getValues()), is(Arrays.<Object>asList(2, "b", 1)));
+		assertThat(Arrays.asList(rows.get(3).getValues()), is(Arrays.<Object>asList(3, "c2", 2)));
+	}
+
+	@Test
+	public void mergesRowsWithExpression() {
+		RowCoalescer coalescer = new RowCoalescer(this.columns, Collections.singletonList("id"),
+				new SpelExpressionParser().parseExpression("{count: previous[count] + current[count]}"),
+				new StandardEvaluationContext());
+		List<ExtractedRow> rows = coalescer.coalesce(rows(
+				new Object[] { 1, "a", 1 },
+				new Object[] { 1, "a2", 2 },
+				new Object[] { 1, "a3", 3 }));
+		assertThat(rows.size(), is(1));
+		assertThat(Arrays.asList(rows.get(0).getValues()), is(Arrays.<Object>asList(1, "a3", 6)));
+	}
+
+	@Test
+	public void supportsCompositeKeys() {
+		RowCoalescer coalescer = new RowCoalescer(this.columns, Arrays.asList("name", "id"), null,
+				new StandardEvaluationContext());
+		List<ExtractedRow> rows = coalescer.coalesce(rows(
+				new Object[] { 2, "a", 1 },
+				new Object[] { 1, "b", 1 },
+				new Object[] { 1, "a", 1 },
+				new Object[] { 2, "a", 2 }));
+		assertThat(rows.size(), is(3));
+		assertThat(Arrays.asList(rows.get(0).getValues()), is(Arrays.<Object>asList(1, "a", 1)));
+		assertThat(Arrays.asList(rows.get(1).getValues()), is(Arrays.<Object>asList(2, "a", 2)));
+		assertThat(Arrays.asList(rows.get(2).getValues()), is(Arrays.<Object>asList(1, "b", 1)));
+	}
+
+	@Test
+	public void ordersMixedKeysNumbersFirstAndNonFiniteNumbersAtTheEnds() {
+		RowCoalescer coalescer = new RowCoalescer(this.columns, Collections.singletonList("id"), null,
+				new StandardEvaluationContext());
+		List<ExtractedRow> rows = coalescer.coalesce(rows(
+				new Object[] { "10", "s", 1 },
+				new Object[] { Double.NaN, "nan", 1 },
+				new Object[] { new BigDecimal("2.5"), "d", 1 },
+				new Object[] { Double.POSITIVE_INFINITY, "inf", 1 },
+				new Object[] { 3L, "l", 1 },
+				new Object[] { Float.NEGATIVE_INFINITY, "-inf", 1 },
+				new Object[] { 2, "i", 1 },
+				new Object[] { "1", "s", 1 }));
+		List<Object> names = new ArrayList<>();
+		for (ExtractedRow row : rows) {
+			names.add(row.getValues()[0] instanceof String ? row.getValues()[0] : row.getValues()[1]);
+		}
+		assertThat(names, is(Arrays.<Object>asList("-inf", "i", "d", "l", "inf", "nan", "1", "10")));
+	}
+
+	@Test
+	public void coalescesNumericKeysEqualInValueWhateverTheirType() {
+		RowCoalescer coalescer = new RowCoalescer(this.columns, Collections.singletonList("id"),
+				new SpelExpressionParser().parseExpression("{count: previous[count] + current[count]}"),
+				new StandardEvaluationContext());
+		List<ExtractedRow> rows = coalescer.coalesce(rows(
+				new Object[] { 1, "a", 1 },
+				new Object[] { 1L, "b", 2 },
+				new Object[] { new BigDecimal("1.00"), "c", 3 },
+				new Object[] { 0, "z", 1 },
+				new Object[] { new BigDecimal("0.0"), "y", 1 },
+				new Object[] { "1", "s", 1 }));
+		assertThat(rows.size(), is(3));
+		assertThat(rows.get(0).getValues()[1], is((Object) "y"));
+		assertThat(rows.get(0).getValues()[2], is((Object) 2));
+		assertThat(rows.get(1).getValues()[1], is((Object) "c"));
+		assertThat(rows.get(1).getValues()[2], is((Object) 6));
+		assertThat(rows.get(2).getValues()[1], is((Object) "s"));
+	}
+
+	private static List<ExtractedRow> rows(Object[]... values) {
+		List<ExtractedRow> rows = new ArrayList<>();
+		for (Object[] row : values) {
+			rows.add(new ExtractedRow(row));
+		}
+		return rows;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownKeyColumn() {
+		new RowCoalescer(this.columns, Collections.singletonList("other"), null, new StandardEvaluationContext());
+	}
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Loads a table from scratch at raw {@code COPY} speed: the first batch truncates the table
+ * and is copied with {@code FREEZE} in the same transaction, so its rows are written already
+ * frozen and never need to be vacuumed for that. Only that batch is frozen: the following ones
+ * are copied as usual.
+ * <p>
+ * Secondary indexes can be dropped in that transaction too. Their definitions are kept in the
+ * comment of the table, so that they survive the application, and they are rebuilt with
+ * {@code CREATE INDEX CONCURRENTLY} once no batch was written for {@code rebuildAfter}
+ * milliseconds, the load being considered over. Indexes left dropped by a load that did not
+ * get that far are rebuilt on the next start, by {@link #rebuildLeftOverIndexes}.
+ * <p>
+ * Indexes backing a primary key, unique or exclusion constraint, and unique indexes, are
+ * kept, as dropping them would change what the table accepts.
+ */
+final class BulkLoad {
+
+	private static final Log logger = LogFactory.getLog(BulkLoad.class);
+
+	private static final String SECONDARY_INDEXES_SQL = "SELECT pg_get_indexdef(i.indexrelid), "
+			+ "i.indexrelid::regclass::text FROM pg_index i WHERE i.indrelid = ?::regclass AND NOT i.indisunique "
+			+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)";
+
+	private static final String COMMENT_SQL = "SELECT obj_description(to_regclass(?), 'pg_class')";
+
+	/**
+	 * The first line of a table comment listing the indexes to rebuild, one per line.
+	 */
+	static final String DROPPED_INDEXES = "pgcopy-sink: indexes dropped by a bulk load, to rebuild:";
+
+	/**
+	 * Separates the indexes to rebuild from the comment the table had before.
+	 */
+	private static final String PREVIOUS_COMMENT = "\n--\n";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final String tableName;
+
+	private final String freezeSql;
+
+	private final boolean dropIndexes;
+
+	private final long rebuildAfter;
+
+	private volatile boolean started;
+
+	private volatile long lastWrite = System.nanoTime();
+
+	private volatile List<String> droppedIndexes = Collections.emptyList();
+
+	private volatile ScheduledExecutorService scheduler;
+
+	/**
+	 * Create a bulk load.
+	 * @param jdbcTemplate the template to rebuild the indexes with
+	 * @param tableName the table loaded
+	 * @param freezeSql the {@code COPY ... FREEZE} command for the first batch
+	 * @param dropIndexes whether to drop the secondary indexes while loading
+	 * @param rebuildAfter the time in milliseconds without any batch after which the indexes
+	 * are rebuilt
+	 */
+	BulkLoad(JdbcTemplate jdbcTemplate, String tableName, String freezeSql, boolean dropIndexes, long rebuildAfter) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.tableName = tableName;
+		this.freezeSql = freezeSql;
+		this.dropIndexes = dropIndexes;
+		this.rebuildAfter = rebuildAfter;
+	}
+
+	String getFreezeSql() {
+		return this.freezeSql;
+	}
+
+	/**
+	 * Whether the first batch has been committed, truncating the table.
+	 */
+	boolean isStarted() {
+		return this.started;
+	}
+
+	/**
+	 * Truncate the table and drop its secondary indexes, in the transaction of the first batch.
+	 * The definitions of the indexes are added to the comment of the table in that transaction.
+	 * @return the definitions of the indexes dropped
+	 */
+	List<String> begin(Connection connection) throws SQLException {
+		List<String> definitions = new ArrayList<>();
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("TRUNCATE " + this.tableName);
+			if (this.dropIndexes) {
+				List<String> names = new ArrayList<>();
+				try (PreparedStatement query = connection.prepareStatement(SECONDARY_INDEXES_SQL)) {
+					query.setString(1, this.tableName);
+					try (ResultSet resultSet = query.executeQuery()) {
+						while (resultSet.next()) {
+							definitions.add(resultSet.getString(1));
+							names.add(resultSet.getString(2));
+						}
+					}
+				}
+				for (String name : names) {
+					statement.execute("DROP INDEX " + name);
+				}
+				if (!definitions.isEmpty()) {
+					String comment;
+					try (PreparedStatement query = connection.prepareStatement(COMMENT_SQL)) {
+						query.setString(1, this.tableName);
+						try (ResultSet resultSet = query.executeQuery()) {
+							comment = resultSet.next() ? resultSet.getString(1) : null;
+						}
+					}
+					List<String> pending = new ArrayList<>(indexesToRebuild(comment));
+					pending.addAll(definitions);
+					String listed = droppedIndexesComment(pending, previousComment(comment));
+					statement.execute(commentOn(this.tableName, listed));
+				}
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * Record that the first batch was committed, and start waiting for the end of the load to
+	 * rebuild the indexes dropped.
+	 * @param droppedIndexes the definitions returned by {@link #begin(Connection)}
+	 */
+	synchronized void started(List<String> droppedIndexes) {
+		for (String definition : droppedIndexes) {
+			logger.warn("Dropped index of " + this.tableName + " until the end of the load, create it again with '"
+					+ definition + "' if it is not rebuilt");
+		}
+		this.droppedIndexes = droppedIndexes;
+		this.started = true;
+		if (!droppedIndexes.isEmpty()) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "pgcopy-bulk-load");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.scheduler.scheduleWithFixedDelay(this::rebuildWhenIdle, this.rebuildAfter, this.rebuildAfter,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Record that a batch was written, postponing the rebuild of the indexes.
+	 */
+	void written() {
+		this.lastWrite = System.nanoTime();
+	}
+
+	/**
+	 * Stop waiting for the end of the load. Indexes not rebuilt yet stay in the comment of the
+	 * table, to be rebuilt on the next start.
+	 */
+	void stop() {
+		ScheduledExecutorService scheduler = this.scheduler;
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (!this.droppedIndexes.isEmpty()) {
+			logger.warn("Stopped before the end of the load of " + this.tableName + ", its indexes will be rebuilt "
+					+ "on the next start");
+		}
+	}
+
+	private synchronized void rebuildWhenIdle() {
+		if (System.nanoTime() - this.lastWrite < TimeUnit.MILLISECONDS.toNanos(this.rebuildAfter)
+				|| this.droppedIndexes.isEmpty()) {
+			return;
+		}
+		logger.info("No batch written to " + this.tableName + " for " + this.rebuildAfter
+				+ " ms, rebuilding the indexes dropped by the load");
+		try {
+			rebuildIndexes(this.jdbcTemplate, this.tableName);
+		}
+		catch (DataAccessException e) {
+			logger.error("Could not rebuild the indexes of " + this.tableName + ", retrying: " + e.getMessage());
+			return;
+		}
+		this.droppedIndexes = Collections.emptyList();
+		this.scheduler.shutdown();
+	}
+
+	/**
+	 * Rebuild the indexes left dropped in the comment of the table by a load that stopped before
+	 * its end. Failures are logged.
+	 * @param jdbcTemplate the template to run the statements with
+	 * @param tableName the table
+	 */
+	static void rebuildLeftOverIndexes(JdbcTemplate jdbcTemplate, String tableName) {
+		try {
+			String comment = jdbcTemplate.queryForObject(COMMENT_SQL, String.class, tableName);
+			if (!indexesToRebuild(comment).isEmpty()) {
+				logger.warn("Rebuilding the indexes of " + tableName + " dropped by an unfinished bulk load");
+				rebuildIndexes(jdbcTemplate, tableName);
+			}
+		}
+		catch (DataAccessException e) {
+			logger.error("Could not look for indexes of " + tableName + " left to rebuild: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Recreate the indexes listed in the comment of the table, one at a time and without
+	 * locking out writes to the table, then restore the previous comment. An index that fails
+	 * to build is logged, together with its definition, and skipped.
+	 */
+	private static void rebuildIndexes(JdbcTemplate jdbcTemplate, String tableName) {
+		String comment = jdbcTemplate.queryForObject(COMMENT_SQL, String.class, tableName);
+		for (String definition : indexesToRebuild(comment)) {
+			String concurrently = definition.replaceFirst("^CREATE INDEX ", "CREATE INDEX CONCURRENTLY ");
+			try {
+				long start = System.currentTimeMillis();
+				jdbcTemplate.execute(concurrently);
+				logger.info("Rebuilt index in " + (System.currentTimeMillis() - start) + " ms: " + definition);
+			}
+			catch (DataAccessException e) {
+				logger.error("Could not rebuild index, create it manually with '" + definition + "': "
+						+ e.getMessage());
+			}
+		}
+		jdbcTemplate.execute(commentOn(tableName, previousComment(comment)));
+	}
+
+	/**
+	 * Return a table comment listing indexes to rebuild, ahead of the previous comment.
+	 */
+	static String droppedIndexesComment(List<String> definitions, String previousComment) {
+		StringBuilder comment = new StringBuilder(DROPPED_INDEXES);
+		for (String definition : definitions) {
+			comment.append('\n').append(definition);
+		}
+		if (previousComment != null) {
+			comment.append(PREVIOUS_COMMENT).append(previousComment);
+		}
+		return comment.toString();
+	}
+
+	/**
+	 * Return the indexes to rebuild listed in a table comment, none when it is not such a comment.
+	 */
+	static List<String> indexesToRebuild(String comment) {
+		if (comment == null || !comment.startsWith(DROPPED_INDEXES)) {
+			return Collections.emptyList();
+		}
+		String list = comment.substring(DROPPED_INDEXES.length());
+		int previous = list.indexOf(PREVIOUS_COMMENT);
+		List<String> definitions = new ArrayList<>();
+		for (String definition : (previous < 0 ? list : list.substring(0, previous)).split("\n")) {
+			if (!definition.isEmpty()) {
+				definitions.add(definition);
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * Return the comment a table had before indexes to rebuild were listed in it.
+	 */
+	static String previousComment(String comment) {
+		if (comment == null || !comment.startsWith(DROPPED_INDEXES)) {
+			return comment;
+		}
+		int previous = comment.indexOf(PREVIOUS_COMMENT);
+		return previous < 0 ? null : comment.substring(previous + PREVIOUS_COMMENT.length());
+	}
+
+	private static String commentOn(String tableName, String comment) {
+		return "COMMENT ON TABLE " + tableName + " IS "
+				+ (comment != null ? "'" + comment.replace("'", "''") + "'" : "NULL");
+	}
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Encodes structured payloads, such as a {@code Map}, a JSON object (as a {@code String},
+ * {@code byte[]} or {@link JsonNode}), a tuple or a bean, into a {@code COPY} row holding
+ * the value of each configured column, looked up by its name.
+ * <p>
+ * How the values are read is worked out once per payload class and then reused for every
+ * payload of that class. Values are escaped for the {@code TEXT} or {@code CSV} format in a
+ * single pass writing straight into the batch buffer, with {@code byte[]} values written as
+ * hex {@code bytea} and nested maps or collections as JSON.
+ */
+final class ColumnsCopyRowEncoder implements CopyRowEncoder {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final String[] columns;
+
+	private final boolean csv;
+
+	private final byte delimiter;
+
+	private final byte quote;
+
+	private final byte escape;
+
+	private final String nullString;
+
+	private final byte[] nullBytes;
+
+	private final ObjectMapper objectMapper;
+
+	private final Map<Class<?>, FieldExtractor> extractors = new ConcurrentHashMap<>();
+
+	/**
+	 * Create an encoder.
+	 * @param columns the columns, in the order of the {@code COPY} column list
+	 * @param format the {@code COPY} format
+	 * @param delimiter the delimiter, or {@code null} for the format's default
+	 * @param nullString the null string, or {@code null} for the format's default
+	 * @param quote the CSV quote, or {@code null} for the default
+	 * @param escape the CSV escape, or {@code null} for the quote
+	 * @param objectMapper the mapper to read JSON payloads with
+	 */
+	ColumnsCopyRowEncoder(List<String> columns, PgcopySinkProperties.Format format, String delimiter,
+			String nullString, Character quote, Character escape, ObjectMapper objectMapper) {
+		this.columns = columns.toArray(new String[0]);
+		this.csv = format == PgcopySinkProperties.Format.CSV;
+		this.delimiter = delimiter != null ? singleByte("delimiter", unescape(delimiter))
+				: (byte) (this.csv ? ',' : '\t');
+		this.quote = quote != null ? singleByte("quote", quote) : (byte) '"';
+		this.escape = escape != null ? singleByte("escape", escape) : this.quote;
+		this.nullString = nullString != null ? nullString : (this.csv ? "" : "\\N");
+		this.nullBytes = this.nullString.getBytes(StandardCharsets.UTF_8);
+		this.objectMapper = objectMapper;
+	}
+
+	@Override
+	public void encode(Object payload, CopyBatch batch) {
+		Object record = payload instanceof String || payload instanceof byte[] ? readJson(payload) : payload;
+		FieldExtractor extractor = this.extractors.computeIfAbsent(record.getClass(), this::extractorFor);
+		for (int i = 0; i < this.columns.length; i++) {
+			if (i > 0) {
+				batch.write(this.delimiter);
+			}
+			writeValue(extractor.get(record, i), batch);
+		}
+		batch.write((byte) '\n');
+		batch.endRow(payload);
+	}
+
+	private JsonNode readJson(Object payload) {
+		try {
+			JsonNode node = payload instanceof byte[] ? this.objectMapper.readTree((byte[]) payload)
+					: this.objectMapper.readTree((String) payload);
+			if (node == null || !node.isObject()) {
+				throw new IllegalArgumentException("Payload is not a JSON object");
+			}
+			return node;
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Payload is not valid JSON: " + e.getMessage(), e);
+		}
+	}
+
+	private FieldExtractor extractorFor(Class<?> type) {
+		if (Map.class.isAssignableFrom(type)) {
+			return (record, i) -> ((Map<?, ?>) record).get(this.columns[i]);
+		}
+		if (JsonNode.class.isAssignableFrom(type)) {
+			return (record, i) -> jsonValue(((JsonNode) record).get(this.columns[i]));
+		}
+		Method getValue = ClassUtils.getMethodIfAvailable(type, "getValue", String.class);
+		if (getValue != null) {
+			// a tuple
+			ReflectionUtils.makeAccessible(getValue);
+			return (record, i) -> ReflectionUtils.invokeMethod(getValue, record, this.columns[i]);
+		}
+		Method[] getters = new Method[this.columns.length];
+		for (int i = 0; i < getters.length; i++) {
+			PropertyDescriptor property = BeanUtils.getPropertyDescriptor(type, this.columns[i]);
+			if (property == null) {
+				property = BeanUtils.getPropertyDescriptor(type, propertyName(this.columns[i]));
+			}
+			if (property != null && property.getReadMethod() != null) {
+				getters[i] = property.getReadMethod();
+				ReflectionUtils.makeAccessible(getters[i]);
+			}
+		}
+		return (record, i) -> getters[i] != null ? ReflectionUtils.invokeMethod(getters[i], record) : null;
+	}
+
+	private Object jsonValue(JsonNode node) {
+		if (node == null || node.isNull()) {
+			return null;
+		}
+		if (node.isValueNode()) {
+			return node.isBinary() ? node.toString() : node.asText();
+		}
+		return node.toString();
+	}
+
+	private void writeValue(Object value, CopyBatch batch) {
+		if (value == null) {
+			batch.write(this.nullBytes, 0, this.nullBytes.length);
+		}
+		else if (value instanceof byte[]) {
+			writeBytea((byte[]) value, batch);
+		}
+		else if (value instanceof Map || value instanceof Collection) {
+			try {
+				writeText(this.objectMapper.writeValueAsString(value), batch);
+			}
+			catch (JsonProcessingException e) {
+				throw new IllegalArgumentException("Cannot write value as JSON: " + e.getMessage(), e);
+			}
+		}
+		else {
+			writeText(value.toString(), batch);
+		}
+	}
+
+	private void writeBytea(byte[] value, CopyBatch batch) {
+		byte[] buffer = batch.ensureCapacity(3 + value.length * 2);
+		int start = batch.size();
+		int pos = start;
+		if (!this.csv) {
+			buffer[pos++] = '\\';
+		}
+		buffer[pos++] = '\\';
+		buffer[pos++] = 'x';
+		for (byte b : value) {
+			buffer[pos++] = HEX[(b >> 4) & 0xf];
+			buffer[pos++] = HEX[b & 0xf];
+		}
+		batch.advance(pos - start);
+	}
+
+	/**
+	 * Write a value as UTF-8, escaped for the format. Each character is written at most once:
+	 * runs of plain ASCII characters are copied in a tight loop, and only delimiters, line
+	 * breaks, escapes and non-ASCII characters take the slower path.
+	 */
+	private void writeText(String value, CopyBatch batch) {
+		int length = value.length();
+		boolean quoted = this.csv && needsQuotes(value);
+		// worst case: every character escaped into two bytes or encoded into three, plus quotes
+		byte[] buffer = batch.ensureCapacity(length * 3 + 2);
+		int start = batch.size();
+		int pos = start;
+		if (quoted) {
+			buffer[pos++] = this.quote;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				if (this.csv) {
+					if (quoted && (c == this.quote || c == this.escape)) {
+						buffer[pos++] = this.escape;
+					}
+				}
+				else if (c == '\\' || c == this.delimiter) {
+					buffer[pos++] = '\\';
+				}
+				else if (c == '\n' || c == '\r') {
+					buffer[pos++] = '\\';
+					c = c == '\n' ? 'n' : 'r';
+				}
+				buffer[pos++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xc0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+			}
+			else {
+				buffer[pos++] = (byte) (0xe0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		if (quoted) {
+			buffer[pos++] = this.quote;
+		}
+		batch.advance(pos - start);
+	}
+
+	/**
+	 * A CSV value needs quotes if it holds a delimiter, quote or line break, or if it would
+	 * otherwise read as null.
+	 */
+	private boolean needsQuotes(String value) {
+		if (value.equals(this.nullString)) {
+			return true;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == this.delimiter || c == this.quote || c == this.escape || c == '\n' || c == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String propertyName(String column) {
+		StringBuilder name = new StringBuilder(column.length());
+		boolean upper = false;
+		for (char c : column.toCharArray()) {
+			if (c == '_') {
+				upper = true;
+			}
+			else {
+				name.append(upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+				upper = false;
+			}
+		}
+		return name.toString();
+	}
+
+	static char unescape(String value) {
+		if (value.length() == 2 && value.charAt(0) == '\\') {
+			switch (value.charAt(1)) {
+				case 't':
+					return '\t';
+				case 'n':
+					return '\n';
+				case 'r':
+					return '\r';
+				default:
+					return value.charAt(1);
+			}
+		}
+		if (value.length() != 1) {
+			throw new IllegalArgumentException("The delimiter must be a single character: '" + value + "'");
+		}
+		return value.charAt(0);
+	}
+
+	static byte singleByte(String name, char c) {
+		if (c >= 0x80) {
+			throw new IllegalArgumentException("The " + name + " must be a single one-byte character: '" + c + "'");
+		}
+		return (byte) c;
+	}
+
+	/**
+	 * Reads the value of a column from a record.
+	 */
+	@FunctionalInterface
+	private interface FieldExtractor {
+
+		Object get(Object record, int column);
+
+	}
+
+}
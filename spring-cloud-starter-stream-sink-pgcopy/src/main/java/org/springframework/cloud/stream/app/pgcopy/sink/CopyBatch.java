@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of payloads already encoded for {@code COPY ... FROM STDIN}. All rows share a
+ * single growable buffer; the end offset of each row is kept so that a single row can be
+ * copied again on its own if the batch as a whole is rejected.
+ */
+final class CopyBatch {
+
+	private static final int INITIAL_ROWS = 16;
+
+	private byte[] buffer;
+
+	private int size;
+
+	private int[] rowEnds = new int[INITIAL_ROWS];
+
+	private final List<Object> payloads = new ArrayList<>();
+
+	CopyBatch(int initialCapacity) {
+		this.buffer = new byte[initialCapacity];
+	}
+
+	/**
+	 * Make room for {@code length} more bytes and return the buffer to write them to,
+	 * starting at {@link #size()}. Call {@link #advance(int)} once written.
+	 */
+	byte[] ensureCapacity(int length) {
+		int required = this.size + length;
+		if (required > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(required, this.buffer.length << 1));
+		}
+		return this.buffer;
+	}
+
+	void advance(int length) {
+		this.size += length;
+	}
+
+	void write(byte[] bytes, int offset, int length) {
+		System.arraycopy(bytes, offset, ensureCapacity(length), this.size, length);
+		this.size += length;
+	}
+
+	void write(byte b) {
+		ensureCapacity(1)[this.size++] = b;
+	}
+
+	/**
+	 * Mark the end of the row encoded from the given payload.
+	 */
+	void endRow(Object payload) {
+		int row = this.payloads.size();
+		if (row == this.rowEnds.length) {
+			this.rowEnds = Arrays.copyOf(this.rowEnds, row << 1);
+		}
+		this.rowEnds[row] = this.size;
+		this.payloads.add(payload);
+	}
+
+	/**
+	 * Drop whatever was written since the end of the last row, e.g. a row that failed to
+	 * encode half way.
+	 */
+	void discardRow() {
+		this.size = rowStart(rows());
+	}
+
+	byte[] buffer() {
+		return this.buffer;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	int rows() {
+		return this.payloads.size();
+	}
+
+	int rowStart(int row) {
+		return row == 0 ? 0 : this.rowEnds[row - 1];
+	}
+
+	int rowEnd(int row) {
+		return this.rowEnds[row];
+	}
+
+	Object payload(int row) {
+		return this.payloads.get(row);
+	}
+
+	/**
+	 * Empty this batch, keeping its buffer for reuse.
+	 */
+	void clear() {
+		this.size = 0;
+		this.payloads.clear();
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Collection;
+
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Writes payloads that already hold many rows in the {@code COPY} format, such as chunks of a
+ * CSV file, to a {@link CopyIn} as they are. {@code byte[]} and heap {@link ByteBuffer}
+ * chunks are handed over in fixed-size slices of their backing array, without being copied
+ * or decoded; direct buffers and {@link InputStream}s are read through one slice-sized
+ * buffer. A chunk not ending with a line terminator gets one, so that rows of consecutive
+ * chunks are not joined.
+ */
+final class CopyChunks {
+
+	static final int SLICE_SIZE = 64 * 1024;
+
+	private CopyChunks() {
+	}
+
+	/**
+	 * Whether the payload can be written as a chunk.
+	 */
+	static boolean isChunk(Object payload) {
+		return payload instanceof byte[] || payload instanceof ByteBuffer || payload instanceof InputStream
+				|| payload instanceof String;
+	}
+
+	/**
+	 * Whether the chunks can be written again after a failure, which a stream cannot.
+	 */
+	static boolean isReplayable(Collection<?> chunks) {
+		return chunks.stream().noneMatch(InputStream.class::isInstance);
+	}
+
+	/**
+	 * Write the chunks.
+	 * @return the number of bytes written
+	 */
+	static long write(Collection<?> chunks, CopyIn copyIn) throws SQLException {
+		byte[] slice = null;
+		long total = 0;
+		for (Object chunk : chunks) {
+			long length;
+			int last;
+			if (chunk instanceof ByteBuffer && ((ByteBuffer) chunk).hasArray()) {
+				ByteBuffer buffer = (ByteBuffer) chunk;
+				length = buffer.remaining();
+				last = writeSlices(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+						copyIn);
+			}
+			else if (chunk instanceof ByteBuffer) {
+				ByteBuffer buffer = ((ByteBuffer) chunk).duplicate();
+				slice = slice != null ? slice : new byte[SLICE_SIZE];
+				length = buffer.remaining();
+				last = -1;
+				while (buffer.hasRemaining()) {
+					int n = Math.min(slice.length, buffer.remaining());
+					buffer.get(slice, 0, n);
+					last = writeSlices(slice, 0, n, copyIn);
+				}
+			}
+			else if (chunk instanceof InputStream) {
+				slice = slice != null ? slice : new byte[SLICE_SIZE];
+				length = 0;
+				last = -1;
+				try {
+					int n;
+					while ((n = ((InputStream) chunk).read(slice)) != -1) {
+						if (n > 0) {
+							last = writeSlices(slice, 0, n, copyIn);
+							length += n;
+						}
+					}
+				}
+				catch (IOException e) {
+					throw new SQLException("Could not read chunk: " + e.getMessage(), e);
+				}
+			}
+			else {
+				byte[] data = chunk instanceof byte[] ? (byte[]) chunk
+						: ((String) chunk).getBytes(StandardCharsets.UTF_8);
+				length = data.length;
+				last = writeSlices(data, 0, data.length, copyIn);
+			}
+			if (length > 0 && last != '\n') {
+				copyIn.writeToCopy(new byte[] { '\n' }, 0, 1);
+				length++;
+			}
+			total += length;
+		}
+		return total;
+	}
+
+	/**
+	 * Write the bytes in slices.
+	 * @return the last byte written, or -1 if none
+	 */
+	private static int writeSlices(byte[] data, int offset, int length, CopyIn copyIn) throws SQLException {
+		for (int from = offset; from < offset + length; from += SLICE_SIZE) {
+			copyIn.writeToCopy(data, from, Math.min(SLICE_SIZE, offset + length - from));
+		}
+		return length > 0 ? data[offset + length - 1] : -1;
+	}
+
+	/**
+	 * Close the stream chunks.
+	 */
+	static void close(Collection<?> chunks) {
+		for (Object chunk : chunks) {
+			if (chunk instanceof InputStream) {
+				try {
+					((InputStream) chunk).close();
+				}
+				catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+}
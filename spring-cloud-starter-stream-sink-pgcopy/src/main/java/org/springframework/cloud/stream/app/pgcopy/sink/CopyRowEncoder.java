@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Strategy for turning a single payload into a row of the {@code COPY} input.
+ */
+interface CopyRowEncoder {
+
+	/**
+	 * Encode the payload as one row, including its line terminator, and mark the end of
+	 * the row with {@link CopyBatch#endRow(Object)}.
+	 * @param payload the payload
+	 * @param batch the batch to append to
+	 */
+	void encode(Object payload, CopyBatch batch);
+
+	/**
+	 * The default encoder: payloads are already formatted lines, given as {@code String}
+	 * or {@code byte[]}, and only need a line terminator.
+	 */
+	CopyRowEncoder LINES = (payload, batch) -> {
+		byte[] data = (payload instanceof byte[]) ? (byte[]) payload
+				: ((String) payload).getBytes(StandardCharsets.UTF_8);
+		batch.write(data, 0, data.length);
+		batch.write((byte) '\n');
+		batch.endRow(payload);
+	};
+
+}
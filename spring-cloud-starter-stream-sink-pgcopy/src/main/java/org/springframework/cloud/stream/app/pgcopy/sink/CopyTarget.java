@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import io.micrometer.core.instrument.Counter;
+
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+
+/**
+ * What a batch is copied into: a table, the {@code COPY} command writing to it and, when
+ * upserting, the staging table the command writes to instead, along with the meters of the
+ * table.
+ */
+final class CopyTarget {
+
+	private final String tableName;
+
+	private final String sql;
+
+	private final StagingUpsert upsert;
+
+	private final SinkMetrics metrics;
+
+	private final Counter copyBytes;
+
+	CopyTarget(String tableName, String sql, StagingUpsert upsert) {
+		this(tableName, sql, upsert, null);
+	}
+
+	private CopyTarget(String tableName, String sql, StagingUpsert upsert, SinkMetrics metrics) {
+		this.tableName = tableName;
+		this.sql = sql;
+		this.upsert = upsert;
+		this.metrics = metrics;
+		this.copyBytes = metrics != null ? metrics.counter("copy.bytes", "bytes") : null;
+	}
+
+	/**
+	 * Return the same target recording its batches with the given meters.
+	 */
+	CopyTarget withMetrics(SinkMetrics metrics) {
+		return new CopyTarget(this.tableName, this.sql, this.upsert, metrics);
+	}
+
+	String getTableName() {
+		return this.tableName;
+	}
+
+	String getSql() {
+		return this.sql;
+	}
+
+	/**
+	 * The upsert merging the staged rows, or {@code null} when copying into the table directly.
+	 */
+	StagingUpsert getUpsert() {
+		return this.upsert;
+	}
+
+	SinkMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	Counter getCopyBytes() {
+		return this.copyBytes;
+	}
+
+}
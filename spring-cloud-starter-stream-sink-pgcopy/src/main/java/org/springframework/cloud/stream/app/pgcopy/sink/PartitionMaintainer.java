@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.cloud.stream.app.jdbc.TimePartitioning;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Keeps the partitions of a time-partitioned table in shape: on startup, and then every
+ * {@code period} in the background, it creates the partitions of the retention, the current
+ * and upcoming ones and the default one, and drops those past the retention along with the
+ * rows past the retention in the default partition. Failures are
+ * logged and retried on the next run; a partition that cannot be created does not keep the
+ * others from being created.
+ */
+class PartitionMaintainer implements InitializingBean, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(PartitionMaintainer.class);
+
+	// regclass text is schema-qualified unless on the search path, and quoted where needed
+	private static final String PARTITIONS_SQL = "SELECT i.inhrelid::regclass::text FROM pg_inherits i "
+			+ "WHERE i.inhparent = ?::regclass";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TimePartitioning partitioning;
+
+	private final long period;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create a maintainer.
+	 * @param jdbcTemplate the template to run the statements with
+	 * @param partitioning the partitioning of the table
+	 * @param period the time in milliseconds between two runs
+	 */
+	PartitionMaintainer(JdbcTemplate jdbcTemplate, TimePartitioning partitioning, long period) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.partitioning = partitioning;
+		this.period = period;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		maintain();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "pgcopy-partitions");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::maintain, this.period, this.period, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Create the missing partitions and drop the expired ones.
+	 */
+	void maintain() {
+		maintain(Instant.now());
+	}
+
+	void maintain(Instant now) {
+		for (String statement : this.partitioning.createStatements(now)) {
+			try {
+				this.jdbcTemplate.execute(statement);
+			}
+			catch (DataAccessException e) {
+				logger.error("Could not create a partition with '" + statement + "': " + e.getMessage());
+			}
+		}
+		String expireDefault = this.partitioning.expireDefaultStatement(now);
+		if (expireDefault != null) {
+			try {
+				int expired = this.jdbcTemplate.update(expireDefault);
+				if (expired > 0) {
+					logger.info("Deleted " + expired + " rows past the retention from the default partition of "
+							+ this.partitioning.getTableName());
+				}
+			}
+			catch (DataAccessException e) {
+				logger.error("Could not delete the rows past the retention from the default partition of "
+						+ this.partitioning.getTableName() + ": " + e.getMessage());
+			}
+		}
+		try {
+			List<String> partitions = this.jdbcTemplate.queryForList(PARTITIONS_SQL, String.class,
+					this.partitioning.getTableName());
+			for (String partition : this.partitioning.expired(partitions, now)) {
+				this.jdbcTemplate.execute("DROP TABLE " + partition);
+				logger.info("Dropped expired partition " + partition);
+			}
+		}
+		catch (DataAccessException e) {
+			logger.error("Could not maintain the partitions of " + this.partitioning.getTableName() + ": "
+					+ e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright 2016-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.ConcurrentWriter;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.dao.DataAccessException;
+import org.springframework.integration.util.CallerBlocksPolicy;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessagingException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Writes the aggregated batches to PostgreSQL using the COPY command, falling back to
+ * copying rows one at a time (and writing failures to the error table) when a batch fails.
+ * <p>
+ * Each batch is first encoded into a {@link CopyBatch} by the {@link CopyRowEncoder}; payloads
+ * that cannot be encoded are rejected on their own. When pipelined, encoding happens on
+ * the calling thread while the previously encoded batches are streamed to the database by
+ * {@code parallelism} writer threads, each running its own COPY on its own connection; the
+ * caller only blocks when it has a batch ready and all writers are still busy. The number of
+ * writers can be changed while running through {@link #setConcurrency(int)}.
+ * <p>
+ * Large batches can also be encoded by {@code encodingParallelism} threads, each encoding
+ * a slice of consecutive rows into its own {@link CopyBatch}. The slices are then written
+ * to the COPY in order, each as soon as it is encoded, so encoding overlaps with writing.
+ * <p>
+ * A batch is copied into the table named by its {@link #TABLE_HEADER} header, or the
+ * configured table. The {@link CopyTarget} of the most recently used tables are kept, up to
+ * {@code maxTables}.
+ *
+ * @author Thomas Risberg
+ * @author Janne Valkealahti
+ */
+class PgcopyMessageHandler implements MessageHandler, ConcurrentWriter, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(PgcopyMessageHandler.class);
+
+	/**
+	 * The header naming the table a batch is copied into, instead of the configured table.
+	 */
+	static final String TABLE_HEADER = "pgcopy_table";
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The fewest rows encoded by a thread; smaller batches are not worth splitting.
+	 */
+	private static final int MIN_SLICE_ROWS = 1024;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate txTemplate;
+
+	private final PgcopySinkProperties properties;
+
+	private final Function<String, CopyTarget> targetFactory;
+
+	private final Map<String, CopyTarget> targets;
+
+	private final SinkMetrics sinkMetrics;
+
+	private final BatchSizeController batchSizeController;
+
+	private final CopyRowEncoder encoder;
+
+	private final Queue<CopyBatch> recycled = new ConcurrentLinkedQueue<>();
+
+	private final ForkJoinPool encoders;
+
+	private BulkLoad bulkLoad;
+
+	private volatile ThreadPoolTaskExecutor writer;
+
+	PgcopyMessageHandler(JdbcTemplate jdbcTemplate, TransactionTemplate txTemplate, PgcopySinkProperties properties,
+			Function<String, CopyTarget> targetFactory, CopyRowEncoder encoder, SinkMetrics sinkMetrics,
+			BatchSizeController batchSizeController) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.txTemplate = txTemplate;
+		this.properties = properties;
+		this.targetFactory = targetFactory;
+		this.targets = new LinkedHashMap<String, CopyTarget>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CopyTarget> eldest) {
+				if (size() > properties.getMaxTables()) {
+					SinkMetrics metrics = eldest.getValue().getMetrics();
+					if (metrics != sinkMetrics) {
+						// batches still being written to the table are no longer reported
+						metrics.remove();
+					}
+					return true;
+				}
+				return false;
+			}
+
+		};
+		this.encoder = encoder;
+		this.sinkMetrics = sinkMetrics;
+		this.batchSizeController = batchSizeController;
+		if (properties.isPipelined() || properties.getParallelism() > 1) {
+			this.writer = createWriter(properties.getParallelism());
+		}
+		this.encoders = properties.getEncodingParallelism() > 1
+				? new ForkJoinPool(properties.getEncodingParallelism()) : null;
+	}
+
+	/**
+	 * Load the table from scratch, truncating it with the first batch.
+	 */
+	void setBulkLoad(BulkLoad bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+
+	@Override
+	public void handleMessage(Message<?> message) throws MessagingException {
+		Object payload = message.getPayload();
+		if (payload instanceof Collection<?>) {
+			final CopyTarget target = target(message);
+			final ThreadPoolTaskExecutor writer = this.writer;
+			// on a writer thread a failure can no longer reach the sender of the messages
+			final boolean divert = writer != null;
+			final Runnable task;
+			if (properties.getPayloadFormat() == PgcopySinkProperties.PayloadFormat.CHUNKS) {
+				final List<Object> chunks = new ArrayList<>((Collection<?>) payload);
+				for (Object chunk : chunks) {
+					if (!CopyChunks.isChunk(chunk)) {
+						CopyChunks.close(chunks);
+						throw new IllegalStateException("Expected chunks as byte[], ByteBuffer, InputStream or "
+								+ "String but received " + chunk.getClass().getName());
+					}
+				}
+				task = () -> writeChunks(target, chunks, divert);
+			}
+			else {
+				final List<CompletableFuture<CopyBatch>> slices = encode(target, (Collection<?>) payload);
+				task = () -> write(target, slices, divert);
+			}
+			if (writer != null) {
+				writer.execute(() -> {
+					try {
+						task.run();
+					}
+					catch (RuntimeException e) {
+						logger.error("Failed to write batch to " + target.getTableName(), e);
+					}
+				});
+			}
+			else {
+				task.run();
+			}
+		}
+		else {
+			throw new IllegalStateException("Expected a collection of strings but received " +
+					message.getPayload().getClass().getName());
+		}
+	}
+
+	@Override
+	public int getConcurrency() {
+		ThreadPoolTaskExecutor writer = this.writer;
+		return writer != null ? writer.getMaxPoolSize() : 1;
+	}
+
+	/**
+	 * Change the number of writer threads, starting them if batches were written on the
+	 * calling thread so far. Batches being written are not affected.
+	 */
+	@Override
+	public synchronized void setConcurrency(int concurrency) {
+		Assert.isTrue(concurrency > 0, "'concurrency' must be greater than 0");
+		ThreadPoolTaskExecutor writer = this.writer;
+		if (writer == null) {
+			if (concurrency > 1) {
+				this.writer = createWriter(concurrency);
+			}
+		}
+		else if (concurrency > writer.getMaxPoolSize()) {
+			writer.setMaxPoolSize(concurrency);
+			writer.setCorePoolSize(concurrency);
+		}
+		else {
+			writer.setCorePoolSize(concurrency);
+			writer.setMaxPoolSize(concurrency);
+		}
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (this.writer != null) {
+			this.writer.shutdown();
+		}
+		if (this.encoders != null) {
+			this.encoders.shutdown();
+		}
+		if (this.bulkLoad != null) {
+			this.bulkLoad.stop();
+		}
+	}
+
+	private ThreadPoolTaskExecutor createWriter(int concurrency) {
+		ThreadPoolTaskExecutor writer = new ThreadPoolTaskExecutor();
+		writer.setCorePoolSize(concurrency);
+		writer.setMaxPoolSize(concurrency);
+		// no queue: a batch is only handed over when a writer is free to take it
+		writer.setQueueCapacity(0);
+		writer.setRejectedExecutionHandler(new CallerBlocksPolicy(Long.MAX_VALUE));
+		writer.setThreadNamePrefix("pgcopy-writer-");
+		writer.setWaitForTasksToCompleteOnShutdown(true);
+		writer.setAwaitTerminationSeconds(Integer.MAX_VALUE);
+		writer.initialize();
+		return writer;
+	}
+
+	/**
+	 * Return the target of a batch, from the most recently used ones when possible.
+	 */
+	private CopyTarget target(Message<?> message) {
+		String table = message.getHeaders().get(TABLE_HEADER, String.class);
+		if (table == null) {
+			table = this.properties.getTableName();
+		}
+		synchronized (this.targets) {
+			return this.targets.computeIfAbsent(table,
+					name -> this.targetFactory.apply(name).withMetrics(this.sinkMetrics.forTable(name)));
+		}
+	}
+
+	/**
+	 * Encode the payloads, in slices encoded concurrently when the batch is large enough.
+	 * @return the encoded slices, in order
+	 */
+	private List<CompletableFuture<CopyBatch>> encode(CopyTarget target, Collection<?> payloads) {
+		ForkJoinPool encoders = this.encoders;
+		if (encoders == null || payloads.size() < 2 * MIN_SLICE_ROWS) {
+			return Collections.singletonList(CompletableFuture.completedFuture(encodeSlice(target, payloads)));
+		}
+		List<?> rows = payloads instanceof List ? (List<?>) payloads : new ArrayList<>(payloads);
+		// a few slices per thread, so that the first ones are written while the others are encoded
+		int slices = 2 * encoders.getParallelism();
+		int sliceRows = Math.max(MIN_SLICE_ROWS, (rows.size() + slices - 1) / slices);
+		List<CompletableFuture<CopyBatch>> encoded = new ArrayList<>();
+		for (int from = 0; from < rows.size(); from += sliceRows) {
+			List<?> slice = rows.subList(from, Math.min(from + sliceRows, rows.size()));
+			encoded.add(CompletableFuture.supplyAsync(() -> encodeSlice(target, slice), encoders));
+		}
+		return encoded;
+	}
+
+	private CopyBatch encodeSlice(CopyTarget target, Collection<?> payloads) {
+		CopyBatch batch = this.recycled.poll();
+		if (batch == null) {
+			batch = new CopyBatch(INITIAL_BUFFER_SIZE);
+		}
+		for (Object payload : payloads) {
+			try {
+				this.encoder.encode(payload, batch);
+			}
+			catch (RuntimeException e) {
+				batch.discardRow();
+				logger.error("Could not encode payload: " + e.getMessage());
+				logger.error("Bad Data: \n" + printable(payload));
+				target.getMetrics().rowsFailed(1);
+				if (StringUtils.hasText(properties.getErrorTable())) {
+					writeError(target, e.getMessage(), payload);
+				}
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Copy the encoded slices of a batch with a single COPY, falling back to one COPY per row
+	 * when the database rejects the batch.
+	 * @param divert whether the rows are counted as failed and written to the error table
+	 * when the batch fails for any other reason, rather than the exception thrown
+	 */
+	private void write(CopyTarget target, List<CompletableFuture<CopyBatch>> slices, boolean divert) {
+		if (slices.size() == 1 && slices.get(0).join().rows() == 0) {
+			this.recycled.offer(slices.get(0).join());
+			return;
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Executing batch of " + slices.size() + " slices for " + target.getSql());
+		}
+		SinkMetrics metrics = target.getMetrics();
+		long start = System.nanoTime();
+		int batchRows = 0;
+		try {
+			long rows = copy(target, copyIn -> {
+				long length = 0;
+				for (CompletableFuture<CopyBatch> slice : slices) {
+					CopyBatch batch = slice.join();
+					if (batch.size() > 0) {
+						copyIn.writeToCopy(batch.buffer(), 0, batch.size());
+						length += batch.size();
+					}
+				}
+				return length;
+			});
+			batchRows = rows(slices);
+			long elapsed = System.nanoTime() - start;
+			metrics.rowsWritten(rows);
+			this.batchSizeController.record(batchRows, elapsed);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Wrote " + rows + " rows");
+			}
+		}
+		catch (DataAccessException e) {
+			logger.error("Error while copying batch of data: " + e.getMessage());
+			logger.error("Switching to single row copy for current batch");
+			batchRows = rows(slices);
+			long rows = 0;
+			for (CompletableFuture<CopyBatch> slice : slices) {
+				CopyBatch batch = slice.join();
+				for (int i = 0; i < batch.rows(); i++) {
+					try {
+						rows = rows + copy(target, rows(batch, i, i + 1));
+					}
+					catch (DataAccessException e2) {
+						logger.error("Copy for single row caused error: " + e2.getMessage());
+						logger.error("Bad Data: \n" + printable(batch.payload(i)));
+						metrics.rowsFailed(1);
+						if (StringUtils.hasText(properties.getErrorTable())) {
+							writeError(target, e2.getCause() != null ? e2.getCause().getMessage() : e2.getMessage(),
+									batch.payload(i));
+						}
+					}
+				}
+			}
+			metrics.rowsWritten(rows);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Re-tried batch and wrote " + rows + " rows");
+			}
+		}
+		catch (RuntimeException e) {
+			if (!divert) {
+				throw e;
+			}
+			logger.error("Failed to write batch to " + target.getTableName(), e);
+			batchRows = 0;
+			for (CompletableFuture<CopyBatch> slice : slices) {
+				CopyBatch batch = slice.handle((encoded, ex) -> encoded).join();
+				if (batch != null) {
+					batchRows += batch.rows();
+					if (StringUtils.hasText(properties.getErrorTable())) {
+						for (int i = 0; i < batch.rows(); i++) {
+							writeError(target, e.getMessage(), batch.payload(i));
+						}
+					}
+				}
+			}
+			metrics.rowsFailed(batchRows);
+		}
+		finally {
+			metrics.recordFlush(batchRows, System.nanoTime() - start);
+			for (CompletableFuture<CopyBatch> slice : slices) {
+				CopyBatch batch = slice.handle((encoded, ex) -> encoded).join();
+				if (batch != null) {
+					batch.clear();
+					this.recycled.offer(batch);
+				}
+			}
+		}
+	}
+
+	private static int rows(List<CompletableFuture<CopyBatch>> slices) {
+		int rows = 0;
+		for (CompletableFuture<CopyBatch> slice : slices) {
+			rows += slice.join().rows();
+		}
+		return rows;
+	}
+
+	/**
+	 * Copy the chunks of a batch with a single COPY, falling back to one COPY per chunk when
+	 * they can be written again. A failed chunk is counted as one failed row.
+	 * @param divert whether the chunks are counted as failed and written to the error table
+	 * when the batch fails for any other reason, rather than the exception thrown
+	 */
+	private void writeChunks(CopyTarget target, List<Object> chunks, boolean divert) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Executing batch of " + chunks.size() + " chunks for " + target.getSql());
+		}
+		SinkMetrics metrics = target.getMetrics();
+		long start = System.nanoTime();
+		try {
+			long rows = copy(target, copyIn -> CopyChunks.write(chunks, copyIn));
+			metrics.rowsWritten(rows);
+			this.batchSizeController.record(chunks.size(), System.nanoTime() - start);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Wrote " + rows + " rows");
+			}
+		}
+		catch (DataAccessException e) {
+			logger.error("Error while copying chunks of data: " + e.getMessage());
+			if (chunks.size() > 1 && CopyChunks.isReplayable(chunks)) {
+				logger.error("Switching to single chunk copy for current batch");
+				long rows = 0;
+				for (Object chunk : chunks) {
+					try {
+						rows = rows + copy(target, copyIn -> CopyChunks.write(Collections.singleton(chunk), copyIn));
+					}
+					catch (DataAccessException e2) {
+						chunkFailed(target, e2, chunk);
+					}
+				}
+				metrics.rowsWritten(rows);
+			}
+			else {
+				for (Object chunk : chunks) {
+					chunkFailed(target, e, chunk);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			if (!divert) {
+				throw e;
+			}
+			logger.error("Failed to write chunks to " + target.getTableName(), e);
+			for (Object chunk : chunks) {
+				chunkFailed(target, e, chunk);
+			}
+		}
+		finally {
+			metrics.recordFlush(chunks.size(), System.nanoTime() - start);
+			CopyChunks.close(chunks);
+		}
+	}
+
+	private void chunkFailed(CopyTarget target, RuntimeException e, Object chunk) {
+		logger.error("Copy for chunk caused error: " + e.getMessage());
+		target.getMetrics().rowsFailed(1);
+		if (StringUtils.hasText(properties.getErrorTable())) {
+			// the chunk itself may be too large to be kept as a payload
+			writeError(target, e.getCause() != null ? e.getCause().getMessage() : e.getMessage(),
+					"Chunk of type " + chunk.getClass().getName());
+		}
+	}
+
+	private void writeError(final CopyTarget target, final String message, final Object payload) {
+		try {
+			txTemplate.execute(new TransactionCallback<Long>() {
+				@Override
+				public Long doInTransaction(TransactionStatus transactionStatus) {
+					jdbcTemplate.update(
+							"insert into " + properties.getErrorTable() + " (table_name, error_message, payload) values (?, ?, ?)",
+							new Object[]{target.getTableName(), message, printable(payload)});
+					return null;
+				}
+			});
+			target.getMetrics().errorTableWrite();
+		}
+		catch (DataAccessException e) {
+			logger.error("Writing to error table failed: " + e.getMessage());
+		}
+	}
+
+	private static String printable(Object payload) {
+		return payload instanceof byte[] ? new String((byte[]) payload, StandardCharsets.UTF_8)
+				: String.valueOf(payload);
+	}
+
+	/**
+	 * Return the data of the rows {@code [from, to)} of the batch.
+	 */
+	private static CopyData rows(CopyBatch batch, int from, int to) {
+		return copyIn -> {
+			int offset = batch.rowStart(from);
+			int length = batch.rowEnd(to - 1) - offset;
+			copyIn.writeToCopy(batch.buffer(), offset, length);
+			return length;
+		};
+	}
+
+	/**
+	 * Copy the data. The first batch of a bulk load is copied alone, so that no other writer
+	 * commits rows before it truncates the table.
+	 */
+	private long copy(CopyTarget target, CopyData data) {
+		BulkLoad bulkLoad = this.bulkLoad;
+		if (bulkLoad == null) {
+			return doCopy(target, data, null);
+		}
+		bulkLoad.written();
+		if (bulkLoad.isStarted()) {
+			return doCopy(target, data, null);
+		}
+		synchronized (bulkLoad) {
+			if (bulkLoad.isStarted()) {
+				return doCopy(target, data, null);
+			}
+			List<String> droppedIndexes = new ArrayList<>();
+			long rows = doCopy(target, data, droppedIndexes);
+			bulkLoad.started(droppedIndexes);
+			return rows;
+		}
+	}
+
+	/**
+	 * Copy the data in a single transaction, merging it from the staging table when upserting.
+	 * @param droppedIndexes when not {@code null}, begin the bulk load in the same transaction,
+	 * collecting the definitions of the indexes dropped
+	 */
+	private long doCopy(final CopyTarget target, final CopyData data, final List<String> droppedIndexes) {
+		final StagingUpsert upsert = target.getUpsert();
+		Long rows = txTemplate.execute(transactionStatus -> jdbcTemplate.execute(
+				new ConnectionCallback<Long>() {
+					@Override
+					public Long doInConnection(Connection connection) throws SQLException, DataAccessException {
+						if (upsert != null) {
+							upsert.prepare(connection);
+						}
+						if (droppedIndexes != null) {
+							droppedIndexes.addAll(bulkLoad.begin(connection));
+						}
+						CopyManager cm = connection.unwrap(BaseConnection.class).getCopyAPI();
+						CopyIn ci = cm.copyIn(droppedIndexes != null ? bulkLoad.getFreezeSql() : target.getSql());
+						long length;
+						long copied;
+						try {
+							length = data.writeTo(ci);
+							copied = ci.endCopy();
+						}
+						finally {
+							if (ci.isActive()) {
+								ci.cancelCopy();
+							}
+						}
+						target.getCopyBytes().increment(length);
+						if (upsert != null) {
+							copied = upsert.merge(connection);
+						}
+						return Long.valueOf(copied);
+					}
+				}
+		));
+		return rows;
+	}
+
+	/**
+	 * Data written to an open COPY.
+	 */
+	@FunctionalInterface
+	private interface CopyData {
+
+		/**
+		 * Write the data.
+		 * @return the number of bytes written
+		 */
+		long writeTo(CopyIn copyIn) throws SQLException;
+
+	}
+
+}
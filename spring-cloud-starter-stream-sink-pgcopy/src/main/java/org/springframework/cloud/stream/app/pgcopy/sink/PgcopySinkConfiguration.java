@@ -16,26 +16,31 @@
 
 package org.springframework.cloud.stream.app.pgcopy.sink;
 
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.util.Collection;
-import java.util.Collections;
-import javax.annotation.PreDestroy;
-import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import javax.sql.DataSource;
 
-import org.postgresql.copy.CopyIn;
-import org.postgresql.copy.CopyManager;
-import org.postgresql.core.BaseConnection;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 
 import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeController;
+import org.springframework.cloud.stream.app.jdbc.BatchSizeReleaseStrategy;
+import org.springframework.cloud.stream.app.jdbc.BatchingEndpoint;
 import org.springframework.cloud.stream.app.jdbc.DefaultInitializationScriptResource;
+import org.springframework.cloud.stream.app.jdbc.IdleTimeout;
+import org.springframework.cloud.stream.app.jdbc.SinkMetrics;
+import org.springframework.cloud.stream.app.jdbc.TimePartitioning;
 import org.springframework.cloud.stream.binding.InputBindingLifecycle;
 import org.springframework.cloud.stream.messaging.Sink;
 import org.springframework.context.annotation.Bean;
@@ -45,27 +50,23 @@ import org.springframework.core.io.ResourceLoader;
 import org.springframework.dao.DataAccessException;
 import org.springframework.integration.aggregator.DefaultAggregatingMessageGroupProcessor;
 import org.springframework.integration.aggregator.ExpressionEvaluatingCorrelationStrategy;
-import org.springframework.integration.aggregator.MessageCountReleaseStrategy;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.channel.DirectChannel;
 import org.springframework.integration.config.AggregatorFactoryBean;
+import org.springframework.integration.store.MessageGroup;
 import org.springframework.integration.store.MessageGroupStore;
 import org.springframework.integration.store.MessageGroupStoreReaper;
 import org.springframework.integration.store.SimpleMessageStore;
-import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.init.DataSourceInitializer;
 import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
-import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
-import org.springframework.messaging.MessagingException;
-import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 /**
@@ -75,12 +76,11 @@ import org.springframework.util.StringUtils;
  * @author Janne Valkealahti
  */
 @Configuration
-@EnableScheduling
 @EnableBinding(Sink.class)
 @EnableConfigurationProperties(PgcopySinkProperties.class)
 public class PgcopySinkConfiguration {
 
-	private static final Log logger = LogFactory.getLog(PgcopySinkConfiguration.class);
+	private static final long NEGATIVE_IDLE_FLUSH = 1000L;
 
 	@Autowired
 	private PgcopySinkProperties properties;
@@ -93,13 +93,35 @@ public class PgcopySinkConfiguration {
 	@Bean
 	@Primary
 	@ServiceActivator(inputChannel= Sink.INPUT)
-	FactoryBean<MessageHandler> aggregatorFactoryBean(MessageChannel toSink, MessageGroupStore messageGroupStore) {
+	FactoryBean<MessageHandler> aggregatorFactoryBean(MessageChannel toSink, MessageGroupStore messageGroupStore,
+			BatchSizeController batchSizeController, IdleTimeout idleTimeout) {
 		AggregatorFactoryBean aggregatorFactoryBean = new AggregatorFactoryBean();
-		aggregatorFactoryBean.setCorrelationStrategy(
-				new ExpressionEvaluatingCorrelationStrategy("payload.getClass().name"));
-		aggregatorFactoryBean.setReleaseStrategy(new MessageCountReleaseStrategy(properties.getBatchSize()));
+		if (properties.getTableExpression() != null) {
+			aggregatorFactoryBean.setCorrelationStrategy(
+					new TableCorrelationStrategy(properties.getTableExpression(), properties.getTableName()));
+		}
+		else {
+			aggregatorFactoryBean.setCorrelationStrategy(
+					new ExpressionEvaluatingCorrelationStrategy("payload.getClass().name"));
+		}
+		aggregatorFactoryBean.setReleaseStrategy(new BatchSizeReleaseStrategy(batchSizeController));
+		aggregatorFactoryBean.setGroupTimeoutExpression(idleTimeout.asExpression());
 		aggregatorFactoryBean.setMessageStore(messageGroupStore);
-		aggregatorFactoryBean.setProcessorBean(new DefaultAggregatingMessageGroupProcessor());
+		if (properties.getTableExpression() != null) {
+			aggregatorFactoryBean.setProcessorBean(new DefaultAggregatingMessageGroupProcessor() {
+
+				@Override
+				protected Map<String, Object> aggregateHeaders(MessageGroup group) {
+					Map<String, Object> headers = new HashMap<>(super.aggregateHeaders(group));
+					headers.put(PgcopyMessageHandler.TABLE_HEADER, group.getGroupId());
+					return headers;
+				}
+
+			});
+		}
+		else {
+			aggregatorFactoryBean.setProcessorBean(new DefaultAggregatingMessageGroupProcessor());
+		}
 		aggregatorFactoryBean.setExpireGroupsUponCompletion(true);
 		aggregatorFactoryBean.setSendPartialResultOnExpiry(true);
 		aggregatorFactoryBean.setOutputChannel(toSink);
@@ -108,8 +130,10 @@ public class PgcopySinkConfiguration {
 
 	@Bean
 	@ServiceActivator(inputChannel = "toSink")
-	public MessageHandler datasetSinkMessageHandler(final JdbcTemplate jdbcTemplate,
-	                                                final PlatformTransactionManager platformTransactionManager) {
+	PgcopyMessageHandler datasetSinkMessageHandler(final JdbcTemplate jdbcTemplate,
+	                                               final PlatformTransactionManager platformTransactionManager,
+	                                               final SinkMetrics sinkMetrics,
+	                                               final BatchSizeController batchSizeController) {
 
 		final TransactionTemplate txTemplate = new TransactionTemplate(platformTransactionManager);
 
@@ -117,6 +141,44 @@ public class PgcopySinkConfiguration {
 			verifyErrorTable(jdbcTemplate, txTemplate);
 		}
 
+		final String options = copyOptions();
+		BulkLoad.rebuildLeftOverIndexes(jdbcTemplate, properties.getTableName());
+		BulkLoad bulkLoad = null;
+		if (properties.isBulkLoad()) {
+			Assert.isTrue(properties.getUpsertKey().isEmpty(), "'bulk-load' and 'upsert-key' cannot be used together");
+			Assert.isNull(properties.getTableExpression(),
+					"'bulk-load' and 'table-expression' cannot be used together");
+			String freezeOptions = (options.isEmpty() ? "" : options + " ") + "FREEZE";
+			String freezeSql = copyTarget(properties.getTableName(), freezeOptions).getSql();
+			bulkLoad = new BulkLoad(jdbcTemplate, properties.getTableName(), freezeSql, properties.isDropIndexes(),
+					properties.getRebuildIndexesAfter());
+		}
+
+		CopyRowEncoder encoder = CopyRowEncoder.LINES;
+		if (properties.getPayloadFormat() == PgcopySinkProperties.PayloadFormat.RECORD) {
+			encoder = new ColumnsCopyRowEncoder(properties.getColumns(), properties.getFormat(),
+					properties.getDelimiter(), properties.getNullString(), properties.getQuote(),
+					properties.getEscape(), new ObjectMapper());
+		}
+		else if (properties.isValidate()) {
+			encoder = new ValidatingLinesEncoder(properties.getColumns().size(), properties.getFormat(),
+					properties.getDelimiter(), properties.getQuote(), properties.getEscape());
+		}
+
+		PgcopyMessageHandler handler = new PgcopyMessageHandler(jdbcTemplate, txTemplate, properties,
+				table -> copyTarget(table, options), encoder, sinkMetrics, batchSizeController);
+		handler.setBulkLoad(bulkLoad);
+		return handler;
+	}
+
+	/**
+	 * Build the COPY command for a table, writing to a staging table when upserting.
+	 */
+	private CopyTarget copyTarget(String table, String options) {
+		StagingUpsert upsert = null;
+		if (!properties.getUpsertKey().isEmpty()) {
+			upsert = new StagingUpsert(table, properties.getColumns(), properties.getUpsertKey());
+		}
 		StringBuilder columns = new StringBuilder();
 		for (String col : properties.getColumns()) {
 			if (columns.length() > 0) {
@@ -125,12 +187,18 @@ public class PgcopySinkConfiguration {
 			columns.append(col);
 		}
 		// the copy command
-		final StringBuilder sql = new StringBuilder("COPY " + properties.getTableName());
+		final StringBuilder sql = new StringBuilder("COPY " + (upsert != null ? upsert.getStagingTable() : table));
 		if (columns.length() > 0) {
 			sql.append(" (" + columns + ")");
 		}
 		sql.append(" FROM STDIN");
+		if (options.length() > 0) {
+			sql.append(" WITH " + options);
+		}
+		return new CopyTarget(table, sql.toString(), upsert);
+	}
 
+	private String copyOptions() {
 		StringBuilder options = new StringBuilder();
 		if (properties.getFormat() == PgcopySinkProperties.Format.CSV) {
 			options.append("CSV");
@@ -147,97 +215,7 @@ public class PgcopySinkConfiguration {
 		if (properties.getEscape() != null) {
 			options.append(quotedOptionCharacterValue(options.length(), "ESCAPE", properties.getEscape()));
 		}
-		if (options.length() > 0) {
-			sql.append(" WITH " + options.toString());
-		}
-
-		return new MessageHandler() {
-
-			@Override
-			public void handleMessage(Message<?> message) throws MessagingException {
-				Object payload = message.getPayload();
-				if (payload instanceof Collection<?>) {
-					final Collection<?> payloads = (Collection<?>) payload;
-					if (logger.isDebugEnabled()) {
-						logger.debug("Executing batch of size " + payloads.size() + " for " + sql);
-					}
-					try {
-						long rows = doCopy(payloads, txTemplate);
-						if (logger.isDebugEnabled()) {
-							logger.debug("Wrote " + rows + " rows");
-						}
-					}
-					catch (DataAccessException e) {
-						logger.error("Error while copying batch of data: " + e.getMessage());
-						logger.error("Switching to single row copy for current batch");
-						long rows = 0;
-						for (Object singlePayload : payloads) {
-							try {
-								rows = rows + doCopy(Collections.singletonList(singlePayload), txTemplate);
-							}
-							catch (DataAccessException e2) {
-								logger.error("Copy for single row caused error: " + e2.getMessage());
-								logger.error("Bad Data: \n" + singlePayload);
-								if (StringUtils.hasText(properties.getErrorTable())) {
-									writeError(e2, singlePayload);
-								}
-							}
-						}
-						if (logger.isDebugEnabled()) {
-							logger.debug("Re-tried batch and wrote " + rows + " rows");
-						}
-					}
-				}
-				else {
-					throw new IllegalStateException("Expected a collection of strings but received " +
-							message.getPayload().getClass().getName());
-				}
-			}
-
-			private void writeError(final DataAccessException exception, final Object payload) {
-				final String message;
-				if (exception.getCause() != null) {
-					message = exception.getCause().getMessage();
-				}
-				else {
-					message = exception.getMessage();
-				}
-				try {
-					txTemplate.execute(new TransactionCallback<Long>() {
-						@Override
-						public Long doInTransaction(TransactionStatus transactionStatus) {
-							jdbcTemplate.update(
-									"insert into " + properties.getErrorTable() + " (table_name, error_message, payload) values (?, ?, ?)",
-									new Object[]{properties.getTableName(), message, payload});
-							return null;
-						}
-					});
-				}
-				catch (DataAccessException e) {
-					logger.error("Writing to error table failed: " + e.getMessage());
-				}
-			}
-
-			private long doCopy(final Collection<?> payloads, TransactionTemplate txTemplate) {
-				Long rows = txTemplate.execute(transactionStatus -> jdbcTemplate.execute(
-						new ConnectionCallback<Long>() {
-							@Override
-							public Long doInConnection(Connection connection) throws SQLException, DataAccessException {
-								CopyManager cm = connection.unwrap(BaseConnection.class).getCopyAPI();
-								CopyIn ci = cm.copyIn(sql.toString());
-								for (Object payloadData : payloads) {
-									String textPayload = (payloadData instanceof byte[]) ?
-											new String((byte[]) payloadData) : (String) payloadData;
-									byte[] data = (textPayload+"\n").getBytes();
-									ci.writeToCopy(data, 0, data.length);
-								}
-								return Long.valueOf(ci.endCopy());
-							}
-						}
-				));
-				return rows;
-			}
-		};
+		return options.toString();
 	}
 
 	@ConditionalOnProperty("pgcopy.initialize")
@@ -249,14 +227,40 @@ public class PgcopySinkConfiguration {
 		databasePopulator.setIgnoreFailedDrops(true);
 		dataSourceInitializer.setDatabasePopulator(databasePopulator);
 		if ("true".equals(properties.getInitialize())) {
+			Map<String, String> columnTypes =
+					DefaultInitializationScriptResource.parseColumnTypes(properties.getColumnTypes());
 			databasePopulator.addScript(new DefaultInitializationScriptResource(properties.getTableName(),
-					properties.getColumns()));
+					properties.getColumns(), columnTypes, properties.getPrimaryKey(), properties.getIndexedColumns(),
+					timePartitioning()));
 		} else {
 			databasePopulator.addScript(resourceLoader.getResource(properties.getInitialize()));
 		}
 		return dataSourceInitializer;
 	}
 
+	@ConditionalOnProperty("pgcopy.partition-column")
+	@Bean
+	PartitionMaintainer partitionMaintainer(JdbcTemplate jdbcTemplate,
+			ObjectProvider<DataSourceInitializer> dataSourceInitializer) {
+		// the table must be created before its partitions
+		dataSourceInitializer.getIfAvailable();
+		return new PartitionMaintainer(jdbcTemplate, timePartitioning(), properties.getPartitionCheckInterval());
+	}
+
+	private TimePartitioning timePartitioning() {
+		if (!StringUtils.hasText(properties.getPartitionColumn())) {
+			return null;
+		}
+		Assert.isTrue(properties.getColumns().stream().anyMatch(properties.getPartitionColumn()::equalsIgnoreCase),
+				"The partition column must be one of the columns " + properties.getColumns());
+		Assert.isTrue(!properties.isBulkLoad(), "'bulk-load' cannot be used with a partitioned table");
+		TimePartitioning partitioning = new TimePartitioning(properties.getTableName(),
+				properties.getPartitionColumn(), properties.getPartitionInterval(), properties.getPartitionPremake(),
+				properties.getPartitionRetention());
+		partitioning.setDefaultPartition(properties.isPartitionDefault());
+		return partitioning;
+	}
+
 	@Bean
 	MessageGroupStore messageGroupStore() {
 		SimpleMessageStore messageGroupStore = new SimpleMessageStore();
@@ -265,22 +269,45 @@ public class PgcopySinkConfiguration {
 		return messageGroupStore;
 	}
 
+	@Bean
+	BatchSizeController batchSizeController() {
+		return new BatchSizeController(properties.getBatchSize(), properties.isAdaptiveBatchSize(),
+				properties.getMinBatchSize(), properties.getMaxBatchSize(), properties.getMaxFlushLatency());
+	}
+
+	/**
+	 * A negative idle timeout flushes partial batches after a second, as the sink's reaper
+	 * always did, rather than keeping them until shutdown.
+	 */
+	@Bean
+	IdleTimeout idleTimeout() {
+		return new IdleTimeout(properties.getIdleTimeout(), NEGATIVE_IDLE_FLUSH);
+	}
+
+	@Bean
+	SinkMetrics pgcopySinkMetrics(ObjectProvider<MeterRegistry> meterRegistry, MessageGroupStore messageGroupStore,
+			BatchSizeController batchSizeController) {
+		SinkMetrics sinkMetrics = new SinkMetrics(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry),
+				"pgcopy.sink", properties.getTableName());
+		sinkMetrics.bindTo(messageGroupStore);
+		sinkMetrics.bindTo(batchSizeController);
+		return sinkMetrics;
+	}
+
+	/**
+	 * Idle groups are released by the aggregator's group timeout; the reaper only flushes
+	 * whatever is left when the application stops.
+	 */
 	@Bean
 	MessageGroupStoreReaper messageGroupStoreReaper(MessageGroupStore messageStore,
 													InputBindingLifecycle inputBindingLifecycle) {
 		MessageGroupStoreReaper messageGroupStoreReaper = new MessageGroupStoreReaper(messageStore);
 		messageGroupStoreReaper.setPhase(inputBindingLifecycle.getPhase() - 1);
-		messageGroupStoreReaper.setTimeout(properties.getIdleTimeout());
 		messageGroupStoreReaper.setAutoStartup(true);
 		messageGroupStoreReaper.setExpireOnDestroy(true);
 		return messageGroupStoreReaper;
 	}
 
-	@Bean
-	ReaperTask reaperTask() {
-		return new ReaperTask();
-	}
-
 	@Bean
 	public JdbcTemplate jdbcTemplate(DataSource dataSource) {
 		JdbcTemplate jt = new JdbcTemplate(dataSource);
@@ -314,20 +341,17 @@ public class PgcopySinkConfiguration {
 		}
 	}
 
-	public static class ReaperTask {
-
-		@Autowired
-		MessageGroupStoreReaper messageGroupStoreReaper;
+	@Configuration
+	@ConditionalOnClass(Endpoint.class)
+	static class BatchingEndpointConfiguration {
 
-		@Scheduled(fixedRate=1000)
-		public void reap() {
-			messageGroupStoreReaper.run();
-		}
-
-		@PreDestroy
-		public void beforeDestroy() {
-			reap();
+		@Bean
+		@ConditionalOnMissingBean
+		public BatchingEndpoint batchingEndpoint(BatchSizeController batchSizeController, IdleTimeout idleTimeout,
+				PgcopyMessageHandler pgcopyMessageHandler) {
+			return new BatchingEndpoint(batchSizeController, idleTimeout, pgcopyMessageHandler);
 		}
 
 	}
+
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,9 +19,11 @@ package org.springframework.cloud.stream.app.pgcopy.sink;
 import java.util.Collections;
 import java.util.List;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.stream.app.jdbc.TimePartitioning;
 import org.springframework.validation.annotation.Validated;
 
 /**
@@ -40,6 +42,20 @@ public class PgcopySinkProperties {
 	@NotNull
 	private String tableName;
 
+	/**
+	 * A SpEL expression evaluated against each message for the name of the table to write it into, so that one sink
+	 * loads several tables with the same columns. Messages are batched per table; when the expression evaluates to
+	 * null, the message is written to 'table-name'.
+	 */
+	private String tableExpression;
+
+	/**
+	 * The maximum number of tables for which the copy statements are kept, the least recently used ones being
+	 * dropped first.
+	 */
+	@Min(1)
+	private int maxTables = 64;
+
 	/**
 	 * The names of the columns that shall receive data.
 	 * Also used at initialization time to issue the DDL.
@@ -52,15 +68,66 @@ public class PgcopySinkProperties {
 	private int batchSize = 10000;
 
 	/**
-	 * Idle timeout in milliseconds when data is automatically flushed to database table.
+	 * Idle timeout in milliseconds when data is automatically flushed to database table, a
+	 * negative value flushing partial batches after one second.
 	 */
 	private long idleTimeout = -1L;
 
+	/**
+	 * Whether to tune the batch size, starting from 'batch-size', from the measured flush latency and throughput.
+	 */
+	private boolean adaptiveBatchSize = false;
+
+	/**
+	 * The smallest batch size to use when the batch size is adaptive.
+	 */
+	private int minBatchSize = 100;
+
+	/**
+	 * The largest batch size to use when the batch size is adaptive.
+	 */
+	private int maxBatchSize = 100000;
+
+	/**
+	 * Flush time in milliseconds above which an adaptive batch size is halved; 0 to only follow throughput.
+	 */
+	private long maxFlushLatency = 0L;
+
 	/**
 	 * 'true', 'false' or the location of a custom initialization script for the table.
 	 */
 	private String initialize = "false";
 
+	/**
+	 * The comma separated colon-based pairs of column names and SQL types used when 'initialize' is true, for instance
+	 * 'id:BIGINT,created:TIMESTAMP'; other columns are created as VARCHAR(2000). Commas in types must be escaped, as in
+	 * 'amount:NUMERIC(10\,2)'.
+	 */
+	private String columnTypes = "";
+
+	/**
+	 * The columns of the primary key created when 'initialize' is true.
+	 */
+	private List<String> primaryKey = Collections.emptyList();
+
+	/**
+	 * The columns each indexed on its own when 'initialize' is true.
+	 */
+	private List<String> indexedColumns = Collections.emptyList();
+
+	/**
+	 * How payloads are turned into rows: 'lines' for payloads already formatted for the copy command, 'record' for Map,
+	 * JSON object or tuple payloads whose fields are written to the columns of the same name, 'chunks' for payloads
+	 * holding many formatted lines, such as parts of a CSV file, copied as they are.
+	 */
+	private PayloadFormat payloadFormat = PayloadFormat.LINES;
+
+	/**
+	 * Whether to check each line, when the payload format is 'lines', for valid UTF-8, escaping and quoting and for as
+	 * many fields as 'columns', so that a bad line is rejected on its own instead of failing the whole copy command.
+	 */
+	private boolean validate = false;
+
 	/**
 	 * Format to use for the copy command.
 	 */
@@ -100,6 +167,85 @@ public class PgcopySinkProperties {
 	 */
 	private String errorTable;
 
+	/**
+	 * Whether to write batches on a dedicated thread, so that the next batch is aggregated and encoded while the
+	 * previous one is streamed to the database.
+	 */
+	private boolean pipelined = false;
+
+	/**
+	 * Number of batches copied concurrently, each on its own connection. Values above 1 imply 'pipelined' and
+	 * require a connection pool at least that large; batches are then no longer written in order.
+	 */
+	@Min(1)
+	private int parallelism = 1;
+
+	/**
+	 * Number of threads encoding the rows of a large batch (above 2048 rows) in slices, which are written to the copy
+	 * command in order as soon as they are encoded.
+	 */
+	@Min(1)
+	private int encodingParallelism = 1;
+
+	/**
+	 * The columns of a unique key or constraint of the table. When set, each batch is copied into a temporary
+	 * staging table and merged into the table, updating the rows whose key already exists.
+	 */
+	private List<String> upsertKey = Collections.emptyList();
+
+	/**
+	 * Whether to load the table from scratch: the first batch truncates the table and is copied with FREEZE in the
+	 * same transaction.
+	 */
+	private boolean bulkLoad = false;
+
+	/**
+	 * Whether a bulk load drops the secondary indexes of the table with its first batch and rebuilds them
+	 * concurrently once the load is over.
+	 */
+	private boolean dropIndexes = false;
+
+	/**
+	 * The time in milliseconds without any batch after which a bulk load is considered over and the indexes it
+	 * dropped are rebuilt.
+	 */
+	@Min(1)
+	private long rebuildIndexesAfter = 60000L;
+
+	/**
+	 * The time column to range-partition the table on, one partition per 'partition-interval'. The table is created
+	 * partitioned when 'initialize' is true; partitions are then created ahead of time and dropped past retention.
+	 */
+	private String partitionColumn;
+
+	/**
+	 * The time range covered by each partition, in UTC.
+	 */
+	private TimePartitioning.Interval partitionInterval = TimePartitioning.Interval.DAY;
+
+	/**
+	 * The number of partitions created ahead of the current one.
+	 */
+	@Min(0)
+	private int partitionPremake = 3;
+
+	/**
+	 * The number of partitions created and kept before the current one, older ones being dropped; 0 keeps them all.
+	 */
+	@Min(0)
+	private int partitionRetention = 0;
+
+	/**
+	 * Whether to create a DEFAULT partition receiving the rows outside of all other partitions, such as rows older
+	 * than the retention, instead of rejecting them (PostgreSQL 11 or later).
+	 */
+	private boolean partitionDefault = false;
+
+	/**
+	 * The time in milliseconds between two checks of the partitions.
+	 */
+	private long partitionCheckInterval = 600000L;
+
 
 	public String getTableName() {
 		return tableName;
@@ -109,6 +255,22 @@ public class PgcopySinkProperties {
 		this.tableName = tableName;
 	}
 
+	public String getTableExpression() {
+		return tableExpression;
+	}
+
+	public void setTableExpression(String tableExpression) {
+		this.tableExpression = tableExpression;
+	}
+
+	public int getMaxTables() {
+		return maxTables;
+	}
+
+	public void setMaxTables(int maxTables) {
+		this.maxTables = maxTables;
+	}
+
 	public List<String> getColumns() {
 		return columns;
 	}
@@ -133,6 +295,38 @@ public class PgcopySinkProperties {
 		this.idleTimeout = idleTimeout;
 	}
 
+	public boolean isAdaptiveBatchSize() {
+		return adaptiveBatchSize;
+	}
+
+	public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+		this.adaptiveBatchSize = adaptiveBatchSize;
+	}
+
+	public int getMinBatchSize() {
+		return minBatchSize;
+	}
+
+	public void setMinBatchSize(int minBatchSize) {
+		this.minBatchSize = minBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxFlushLatency() {
+		return maxFlushLatency;
+	}
+
+	public void setMaxFlushLatency(long maxFlushLatency) {
+		this.maxFlushLatency = maxFlushLatency;
+	}
+
 	public String getInitialize() {
 		return initialize;
 	}
@@ -141,6 +335,46 @@ public class PgcopySinkProperties {
 		this.initialize = initialize;
 	}
 
+	public String getColumnTypes() {
+		return columnTypes;
+	}
+
+	public void setColumnTypes(String columnTypes) {
+		this.columnTypes = columnTypes;
+	}
+
+	public List<String> getPrimaryKey() {
+		return primaryKey;
+	}
+
+	public void setPrimaryKey(List<String> primaryKey) {
+		this.primaryKey = primaryKey;
+	}
+
+	public List<String> getIndexedColumns() {
+		return indexedColumns;
+	}
+
+	public void setIndexedColumns(List<String> indexedColumns) {
+		this.indexedColumns = indexedColumns;
+	}
+
+	public PayloadFormat getPayloadFormat() {
+		return payloadFormat;
+	}
+
+	public void setPayloadFormat(PayloadFormat payloadFormat) {
+		this.payloadFormat = payloadFormat;
+	}
+
+	public boolean isValidate() {
+		return validate;
+	}
+
+	public void setValidate(boolean validate) {
+		this.validate = validate;
+	}
+
 	public Format getFormat() {
 		return format;
 	}
@@ -189,6 +423,114 @@ public class PgcopySinkProperties {
 		this.errorTable = errorTable;
 	}
 
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getEncodingParallelism() {
+		return encodingParallelism;
+	}
+
+	public void setEncodingParallelism(int encodingParallelism) {
+		this.encodingParallelism = encodingParallelism;
+	}
+
+	public List<String> getUpsertKey() {
+		return upsertKey;
+	}
+
+	public void setUpsertKey(List<String> upsertKey) {
+		this.upsertKey = upsertKey;
+	}
+
+	public boolean isBulkLoad() {
+		return bulkLoad;
+	}
+
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+
+	public boolean isDropIndexes() {
+		return dropIndexes;
+	}
+
+	public void setDropIndexes(boolean dropIndexes) {
+		this.dropIndexes = dropIndexes;
+	}
+
+	public long getRebuildIndexesAfter() {
+		return rebuildIndexesAfter;
+	}
+
+	public void setRebuildIndexesAfter(long rebuildIndexesAfter) {
+		this.rebuildIndexesAfter = rebuildIndexesAfter;
+	}
+
+	public String getPartitionColumn() {
+		return partitionColumn;
+	}
+
+	public void setPartitionColumn(String partitionColumn) {
+		this.partitionColumn = partitionColumn;
+	}
+
+	public TimePartitioning.Interval getPartitionInterval() {
+		return partitionInterval;
+	}
+
+	public void setPartitionInterval(TimePartitioning.Interval partitionInterval) {
+		this.partitionInterval = partitionInterval;
+	}
+
+	public int getPartitionPremake() {
+		return partitionPremake;
+	}
+
+	public void setPartitionPremake(int partitionPremake) {
+		this.partitionPremake = partitionPremake;
+	}
+
+	public int getPartitionRetention() {
+		return partitionRetention;
+	}
+
+	public void setPartitionRetention(int partitionRetention) {
+		this.partitionRetention = partitionRetention;
+	}
+
+	public boolean isPartitionDefault() {
+		return partitionDefault;
+	}
+
+	public void setPartitionDefault(boolean partitionDefault) {
+		this.partitionDefault = partitionDefault;
+	}
+
+	public long getPartitionCheckInterval() {
+		return partitionCheckInterval;
+	}
+
+	public void setPartitionCheckInterval(long partitionCheckInterval) {
+		this.partitionCheckInterval = partitionCheckInterval;
+	}
+
+	public static enum PayloadFormat {
+		LINES, RECORD, CHUNKS
+	}
+
 	public static enum Format {
 
 		TEXT, CSV
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+
+/**
+ * Turns a {@code COPY} into an upsert: the rows are copied into a temporary staging table
+ * of the session, then merged into the target table with a single
+ * {@code INSERT ... SELECT ... ON CONFLICT DO UPDATE}, in the same transaction.
+ * <p>
+ * The staging table is created {@code ON COMMIT DELETE ROWS}, so it is empty again after
+ * each batch, and being temporary it is neither WAL-logged nor visible to other sessions.
+ * When a batch holds several rows with the same key the last one wins, as
+ * {@code ON CONFLICT} cannot change a row twice in one statement.
+ */
+final class StagingUpsert {
+
+	// keeps the staging table name within PostgreSQL's 63 characters
+	private static final int READABLE_NAME_LENGTH = 36;
+
+	private final String stagingTable;
+
+	private final String createSql;
+
+	private final String mergeSql;
+
+	/**
+	 * Create an upsert.
+	 * @param tableName the target table
+	 * @param columns the columns copied
+	 * @param keyColumns the columns of the target's unique key or constraint, a subset of the
+	 * copied columns
+	 */
+	StagingUpsert(String tableName, List<String> columns, List<String> keyColumns) {
+		Assert.notEmpty(keyColumns, "'keyColumns' must not be empty");
+		for (String key : keyColumns) {
+			Assert.isTrue(columns.stream().anyMatch(key::equalsIgnoreCase),
+					"Key column '" + key + "' is not one of the copied columns " + columns);
+		}
+		this.stagingTable = stagingTableName(tableName);
+		this.createSql = "CREATE TEMPORARY TABLE IF NOT EXISTS " + this.stagingTable + " (LIKE " + tableName
+				+ " INCLUDING DEFAULTS) ON COMMIT DELETE ROWS";
+		String columnList = String.join(", ", columns);
+		String keyList = String.join(", ", keyColumns);
+		List<String> updates = new ArrayList<>();
+		for (String column : columns) {
+			if (keyColumns.stream().noneMatch(column::equalsIgnoreCase)) {
+				updates.add(column + " = EXCLUDED." + column);
+			}
+		}
+		this.mergeSql = "INSERT INTO " + tableName + " (" + columnList + ") "
+				+ "SELECT DISTINCT ON (" + keyList + ") " + columnList + " FROM " + this.stagingTable
+				+ " ORDER BY " + keyList + ", ctid DESC "
+				+ "ON CONFLICT (" + keyList + ") "
+				+ (updates.isEmpty() ? "DO NOTHING" : "DO UPDATE SET " + String.join(", ", updates));
+	}
+
+	/**
+	 * Name the staging table after the target, with a hash of the target's name so that
+	 * targets such as {@code s.t} and {@code s_t} do not share a staging table.
+	 */
+	static String stagingTableName(String tableName) {
+		String readable = tableName.replaceAll("\\W", "_").toLowerCase();
+		if (readable.length() > READABLE_NAME_LENGTH) {
+			readable = readable.substring(0, READABLE_NAME_LENGTH);
+		}
+		String hash = DigestUtils.md5DigestAsHex(tableName.getBytes(StandardCharsets.UTF_8)).substring(0, 12);
+		return "pgcopy_stage_" + readable + "_" + hash;
+	}
+
+	/**
+	 * The table to {@code COPY} into instead of the target.
+	 */
+	String getStagingTable() {
+		return this.stagingTable;
+	}
+
+	String getMergeSql() {
+		return this.mergeSql;
+	}
+
+	/**
+	 * Create the staging table for the connection's session if it does not exist yet.
+	 */
+	void prepare(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(this.createSql);
+		}
+	}
+
+	/**
+	 * Merge the staged rows into the target.
+	 * @return the number of rows inserted or updated
+	 */
+	long merge(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			return statement.executeUpdate(this.mergeSql);
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.util.regex.Pattern;
+
+import org.springframework.integration.aggregator.ExpressionEvaluatingCorrelationStrategy;
+import org.springframework.messaging.Message;
+import org.springframework.util.Assert;
+
+/**
+ * Correlates messages by the table they are copied into, so that each released batch has a
+ * single target. Messages for which the expression evaluates to {@code null} go to the
+ * default table; a value that is not a plain, optionally schema-qualified, table name is
+ * rejected, as it ends up in the {@code COPY} command.
+ */
+final class TableCorrelationStrategy extends ExpressionEvaluatingCorrelationStrategy {
+
+	private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][\\w$]*(\\.[A-Za-z_][\\w$]*)?");
+
+	private final String defaultTable;
+
+	TableCorrelationStrategy(String expression, String defaultTable) {
+		super(expression);
+		this.defaultTable = defaultTable;
+	}
+
+	@Override
+	public Object getCorrelationKey(Message<?> message) {
+		Object table = super.getCorrelationKey(message);
+		if (table == null) {
+			return this.defaultTable;
+		}
+		Assert.isTrue(table instanceof String && TABLE_NAME.matcher((String) table).matches(),
+				() -> "Not a valid table name: '" + table + "'");
+		return table;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link CopyRowEncoder} for payloads that are already formatted lines, like
+ * {@link CopyRowEncoder#LINES}, that first checks each line the way the server would: that it
+ * is valid UTF-8 without NUL bytes, has no unescaped line break, no dangling backslash or
+ * unterminated CSV quote, and has as many fields as there are columns. A line failing these
+ * checks is rejected on its own instead of failing the whole {@code COPY}.
+ */
+final class ValidatingLinesEncoder implements CopyRowEncoder {
+
+	private final int columns;
+
+	private final boolean csv;
+
+	private final byte delimiter;
+
+	private final byte quote;
+
+	private final byte escape;
+
+	/**
+	 * Create an encoder.
+	 * @param columns the number of columns
+	 * @param format the {@code COPY} format
+	 * @param delimiter the delimiter, or {@code null} for the format's default
+	 * @param quote the CSV quote, or {@code null} for the default
+	 * @param escape the CSV escape, or {@code null} for the quote
+	 */
+	ValidatingLinesEncoder(int columns, PgcopySinkProperties.Format format, String delimiter, Character quote,
+			Character escape) {
+		this.columns = columns;
+		this.csv = format == PgcopySinkProperties.Format.CSV;
+		this.delimiter = delimiter != null
+				? ColumnsCopyRowEncoder.singleByte("delimiter", ColumnsCopyRowEncoder.unescape(delimiter))
+				: (byte) (this.csv ? ',' : '\t');
+		this.quote = quote != null ? ColumnsCopyRowEncoder.singleByte("quote", quote) : (byte) '"';
+		this.escape = escape != null ? ColumnsCopyRowEncoder.singleByte("escape", escape) : this.quote;
+	}
+
+	@Override
+	public void encode(Object payload, CopyBatch batch) {
+		byte[] data = (payload instanceof byte[]) ? (byte[]) payload
+				: ((String) payload).getBytes(StandardCharsets.UTF_8);
+		validate(data);
+		batch.write(data, 0, data.length);
+		batch.write((byte) '\n');
+		batch.endRow(payload);
+	}
+
+	/**
+	 * Check a line, without its line terminator.
+	 * @throws IllegalArgumentException if the line would be rejected by the server
+	 */
+	void validate(byte[] line) {
+		checkEncoding(line);
+		if (line.length == 2 && line[0] == '\\' && line[1] == '.') {
+			throw new IllegalArgumentException("Line is the end-of-data marker");
+		}
+		int fields = this.csv ? csvFields(line) : textFields(line);
+		if (fields != this.columns) {
+			throw new IllegalArgumentException("Expected " + this.columns + " fields but found " + fields);
+		}
+	}
+
+	private int textFields(byte[] line) {
+		int fields = 1;
+		for (int i = 0; i < line.length; i++) {
+			byte b = line[i];
+			if (b == '\\') {
+				if (++i == line.length) {
+					throw new IllegalArgumentException("Line ends with an unescaped backslash");
+				}
+			}
+			else if (b == this.delimiter) {
+				fields++;
+			}
+			else if (b == '\n' || b == '\r') {
+				throw new IllegalArgumentException("Unescaped line break at byte " + i);
+			}
+		}
+		return fields;
+	}
+
+	private int csvFields(byte[] line) {
+		int fields = 1;
+		boolean quoted = false;
+		for (int i = 0; i < line.length; i++) {
+			byte b = line[i];
+			if (quoted) {
+				if (b == this.escape && i + 1 < line.length
+						&& (line[i + 1] == this.quote || line[i + 1] == this.escape)) {
+					// an escaped quote or escape, or a doubled quote
+					i++;
+				}
+				else if (b == this.quote) {
+					quoted = false;
+				}
+			}
+			else if (b == this.quote) {
+				quoted = true;
+			}
+			else if (b == this.delimiter) {
+				fields++;
+			}
+			else if (b == '\n' || b == '\r') {
+				throw new IllegalArgumentException("Unquoted line break at byte " + i);
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Unterminated quoted field");
+		}
+		return fields;
+	}
+
+	/**
+	 * Check that the line is well-formed UTF-8, without overlong forms, surrogates or NUL.
+	 */
+	private static void checkEncoding(byte[] line) {
+		int i = 0;
+		while (i < line.length) {
+			int b = line[i] & 0xff;
+			if (b < 0x80) {
+				if (b == 0) {
+					throw new IllegalArgumentException("NUL byte at byte " + i);
+				}
+				i++;
+				continue;
+			}
+			int length;
+			int min = 0x80;
+			int max = 0xbf;
+			if (b >= 0xc2 && b <= 0xdf) {
+				length = 2;
+			}
+			else if (b >= 0xe0 && b <= 0xef) {
+				length = 3;
+				if (b == 0xe0) {
+					min = 0xa0;
+				}
+				else if (b == 0xed) {
+					max = 0x9f;
+				}
+			}
+			else if (b >= 0xf0 && b <= 0xf4) {
+				length = 4;
+				if (b == 0xf0) {
+					min = 0x90;
+				}
+				else if (b == 0xf4) {
+					max = 0x8f;
+				}
+			}
+			else {
+				throw new IllegalArgumentException("Invalid UTF-8 at byte " + i);
+			}
+			if (i + length > line.length) {
+				throw new IllegalArgumentException("Truncated UTF-8 sequence at byte " + i);
+			}
+			for (int j = 1; j < length; j++) {
+				int c = line[i + j] & 0xff;
+				if (c < (j == 1 ? min : 0x80) || c > (j == 1 ? max : 0xbf)) {
+					throw new IllegalArgumentException("Invalid UTF-8 at byte " + i);
+				}
+			}
+			i += length;
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the table comments listing the indexes of a bulk load to rebuild.
+ */
+public class BulkLoadTests {
+
+	@Test
+	public void listsIndexesAheadOfThePreviousComment() {
+		String comment = BulkLoad.droppedIndexesComment(Arrays.asList("CREATE INDEX a ON t USING btree (a)",
+				"CREATE INDEX b ON t USING btree (b)"), "The names.\n--\nOwned by the loader.");
+		assertThat(BulkLoad.indexesToRebuild(comment), contains("CREATE INDEX a ON t USING btree (a)",
+				"CREATE INDEX b ON t USING btree (b)"));
+		assertThat(BulkLoad.previousComment(comment), is("The names.\n--\nOwned by the loader."));
+	}
+
+	@Test
+	public void restoresAnAbsentComment() {
+		String comment = BulkLoad.droppedIndexesComment(Collections.singletonList("CREATE INDEX a ON t (a)"), null);
+		assertThat(BulkLoad.indexesToRebuild(comment), contains("CREATE INDEX a ON t (a)"));
+		assertThat(BulkLoad.previousComment(comment), nullValue());
+	}
+
+	@Test
+	public void findsNothingToRebuildInOtherComments() {
+		assertThat(BulkLoad.indexesToRebuild("The names."), empty());
+		assertThat(BulkLoad.indexesToRebuild(null), empty());
+		assertThat(BulkLoad.previousComment("The names."), is("The names."));
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for ColumnsCopyRowEncoder.
+ */
+public class ColumnsCopyRowEncoderTests {
+
+	private final CopyBatch batch = new CopyBatch(16);
+
+	@Test
+	public void encodesMapsInText() {
+		ColumnsCopyRowEncoder encoder = encoder(PgcopySinkProperties.Format.TEXT, "id", "name", "note");
+		Map<String, Object> row = new HashMap<>();
+		row.put("id", 1);
+		row.put("name", "tab\there, back\\slash\nnewline");
+		encoder.encode(row, this.batch);
+		assertThat(encoded(), is("1\ttab\\\there, back\\\\slash\\nnewline\t\\N\n"));
+		assertThat(this.batch.rows(), is(1));
+	}
+
+	@Test
+	public void encodesJsonInCsv() {
+		ColumnsCopyRowEncoder encoder = encoder(PgcopySinkProperties.Format.CSV, "id", "name", "tags", "missing");
+		encoder.encode("{\"id\": 1, \"name\": \"a, \\\"quoted\\\" name\", \"tags\": [\"x\"]}", this.batch);
+		encoder.encode("{\"id\": 2, \"name\": \"\"}".getBytes(StandardCharsets.UTF_8), this.batch);
+		assertThat(encoded(), is("1,\"a, \"\"quoted\"\" name\",\"[\"\"x\"\"]\",\n2,\"\",,\n"));
+		assertThat(this.batch.rows(), is(2));
+	}
+
+	@Test
+	public void encodesTuplesAndBeans() {
+		ColumnsCopyRowEncoder encoder = encoder(PgcopySinkProperties.Format.TEXT, "id", "first_name");
+		encoder.encode(new Tuple(Collections.singletonMap("first_name", "Zoë")), this.batch);
+		encoder.encode(new Person(7, "Åsa"), this.batch);
+		assertThat(encoded(), is("\\N\tZoë\n7\tÅsa\n"));
+	}
+
+	@Test
+	public void encodesBytesAsHex() {
+		ColumnsCopyRowEncoder encoder = encoder(PgcopySinkProperties.Format.TEXT, "data");
+		encoder.encode(Collections.singletonMap("data", new byte[] { 0x01, (byte) 0xab }), this.batch);
+		assertThat(encoded(), is("\\\\x01ab\n"));
+	}
+
+	@Test
+	public void discardsRowsThatFailToEncode() {
+		ColumnsCopyRowEncoder encoder = encoder(PgcopySinkProperties.Format.TEXT, "id");
+		encoder.encode(Collections.singletonMap("id", 1), this.batch);
+		try {
+			encoder.encode("{\"id\": ", this.batch);
+		}
+		catch (IllegalArgumentException e) {
+			this.batch.discardRow();
+		}
+		encoder.encode(Collections.singletonMap("id", 2), this.batch);
+		assertThat(encoded(), is("1\n2\n"));
+		assertThat(this.batch.rows(), is(2));
+	}
+
+	private ColumnsCopyRowEncoder encoder(PgcopySinkProperties.Format format, String... columns) {
+		return new ColumnsCopyRowEncoder(Arrays.asList(columns), format, null, null, null, null, new ObjectMapper());
+	}
+
+	private String encoded() {
+		return new String(this.batch.buffer(), 0, this.batch.size(), StandardCharsets.UTF_8);
+	}
+
+	public static class Tuple {
+
+		private final Map<String, Object> values;
+
+		Tuple(Map<String, Object> values) {
+			this.values = new LinkedHashMap<>(values);
+		}
+
+		public Object getValue(String name) {
+			return this.values.get(name);
+		}
+
+	}
+
+	public static class Person {
+
+		private final int id;
+
+		private final String firstName;
+
+		Person(int id, String firstName) {
+			this.id = id;
+			this.firstName = firstName;
+		}
+
+		public int getId() {
+			return this.id;
+		}
+
+		public String getFirstName() {
+			return this.firstName;
+		}
+
+	}
+
+}
@@ -15,6 +15,11 @@
 
 package org.springframework.cloud.stream.app.pgcopy.sink;
 
+import java.io.InputStream;
+import java.time.Instant;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.ClassRule;
 import org.junit.Test;
@@ -23,8 +28,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.cloud.stream.app.pgcopy.test.PostgresTestSupport;
 import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
 import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.annotation.DirtiesContext;
@@ -186,6 +194,248 @@ public abstract class PgcopySinkIntegrationTests {
 		}
 	}
 
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=1000", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age", "pgcopy.idle-timeout=100"})
+	public static class PgcopyIdleTimeoutTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testIdleTimeout() throws InterruptedException {
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t25").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t21").build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(0));
+			Thread.sleep(300);
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(2));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age"})
+	public static class PgcopyDefaultIdleTimeoutTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testDefaultIdleTimeout() throws InterruptedException {
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t25").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t21").build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(0));
+			Thread.sleep(1500);
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(2));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=2", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age", "pgcopy.pipelined=true"})
+	public static class PgcopyPipelinedTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testPipelinedCopy() throws InterruptedException {
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t25").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t21").build());
+			channels.input().send(MessageBuilder.withPayload("125\tBubba\t22").build());
+			channels.input().send(MessageBuilder.withPayload("126\tPelle\t32".getBytes()).build());
+			int result = 0;
+			for (int i = 0; i < 100 && result < 4; i++) {
+				Thread.sleep(50);
+				result = jdbcOperations.queryForObject("select count(*) from names", Integer.class);
+			}
+			Assert.assertThat(result, is(4));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=10", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age", "pgcopy.parallelism=3"})
+	public static class PgcopyParallelTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testParallelCopy() throws InterruptedException {
+			for (int i = 0; i < 100; i++) {
+				channels.input().send(MessageBuilder.withPayload(i + "\tNisse\t25").build());
+			}
+			int result = 0;
+			for (int i = 0; i < 100 && result < 100; i++) {
+				Thread.sleep(50);
+				result = jdbcOperations.queryForObject("select count(*) from names", Integer.class);
+			}
+			Assert.assertThat(result, is(100));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=2", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age", "pgcopy.format=CSV", "pgcopy.payload-format=chunks", "pgcopy.parallelism=2",
+			"pgcopy.error-table=test_errors", "spring.datasource.initialization-mode=always",
+			"spring.datasource.schema=classpath:error-table-ddl.sql", "spring.datasource.continue-on-error=true"})
+	@Import(PgcopyParallelFailureTests.MeterRegistryConfiguration.class)
+	public static class PgcopyParallelFailureTests extends PgcopySinkIntegrationTests {
+
+		@Autowired
+		private MeterRegistry meterRegistry;
+
+		@Test
+		public void testFailedBatchIsDivertedOnWriterThread() throws InterruptedException {
+			// a stream failing while it is copied is not a data error, so the batch is not retried
+			InputStream broken = new InputStream() {
+				@Override
+				public int read() {
+					throw new IllegalStateException("Source went away");
+				}
+			};
+			channels.input().send(MessageBuilder.withPayload("123,Nisse,25".getBytes()).build());
+			channels.input().send(MessageBuilder.withPayload(broken).build());
+			channels.input().send(MessageBuilder.withPayload("124,Anna,21".getBytes()).build());
+			channels.input().send(MessageBuilder.withPayload("125,Bubba,22".getBytes()).build());
+			int result = 0;
+			int errors = 0;
+			for (int i = 0; i < 100 && (result < 2 || errors < 2); i++) {
+				Thread.sleep(50);
+				result = jdbcOperations.queryForObject("select count(*) from names", Integer.class);
+				errors = jdbcOperations.queryForObject("select count(*) from test_errors", Integer.class);
+			}
+			Assert.assertThat(result, is(2));
+			Assert.assertThat(errors, is(2));
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names where id = '123'",
+					Integer.class), is(0));
+			Assert.assertThat(meterRegistry.get("pgcopy.sink.rows").tag("result", "failed").counter().count(),
+					is(2.0));
+		}
+
+		@TestConfiguration
+		static class MeterRegistryConfiguration {
+
+			@Bean
+			MeterRegistry meterRegistry() {
+				return new SimpleMeterRegistry();
+			}
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=3",
+			"pgcopy.initialize=classpath:upsert-table-ddl.sql", "pgcopy.columns=id,name,age", "pgcopy.upsert-key=id"})
+	public static class PgcopyUpsertTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testUpsert() {
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t25").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t21").build());
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t26").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t22").build());
+			channels.input().send(MessageBuilder.withPayload("125\tBubba\t22").build());
+			channels.input().send(MessageBuilder.withPayload("126\tPelle\t32").build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(4));
+			Assert.assertThat(jdbcOperations.queryForObject("select age from names where id = 123", Integer.class),
+					is(26));
+			Assert.assertThat(jdbcOperations.queryForObject("select age from names where id = 124", Integer.class),
+					is(22));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=2",
+			"pgcopy.initialize=classpath:bulk-load-table-ddl.sql", "pgcopy.columns=id,name,age",
+			"pgcopy.bulk-load=true", "pgcopy.drop-indexes=true", "pgcopy.rebuild-indexes-after=1000"})
+	public static class PgcopyBulkLoadTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testBulkLoad() throws InterruptedException {
+			String indexCount = "select count(*) from pg_indexes where tablename = 'names'";
+			String comment = "select obj_description('names'::regclass, 'pg_class')";
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t25").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t21").build());
+			channels.input().send(MessageBuilder.withPayload("125\tBubba\t22").build());
+			channels.input().send(MessageBuilder.withPayload("126\tPelle\t32").build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(4));
+			Assert.assertThat(jdbcOperations.queryForObject(indexCount, Integer.class), is(0));
+			Assert.assertThat(BulkLoad.indexesToRebuild(jdbcOperations.queryForObject(comment, String.class)).size(),
+					is(1));
+			for (int i = 0; i < 100 && jdbcOperations.queryForObject(indexCount, Integer.class) == 0; i++) {
+				Thread.sleep(100);
+			}
+			Assert.assertThat(jdbcOperations.queryForObject(indexCount, Integer.class), is(1));
+			Assert.assertNull(jdbcOperations.queryForObject(comment, String.class));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=2",
+			"pgcopy.initialize=classpath:multi-table-ddl.sql", "pgcopy.columns=id,name,age",
+			"pgcopy.table-expression=headers['table']"})
+	public static class PgcopyMultiTableTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testMultiTableCopy() {
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t25").setHeader("table", "names").build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t21").setHeader("table", "other_names").build());
+			channels.input().send(MessageBuilder.withPayload("125\tBubba\t22").build());
+			channels.input().send(MessageBuilder.withPayload("126\tPelle\t32").setHeader("table", "other_names")
+					.build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(2));
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from other_names", Integer.class), is(2));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=2", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age", "pgcopy.format=CSV", "pgcopy.payload-format=chunks"})
+	public static class PgcopyChunksTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testChunkCopy() {
+			channels.input().send(MessageBuilder.withPayload("123,Nisse,25\n124,Anna,21".getBytes()).build());
+			channels.input().send(MessageBuilder.withPayload("125,Bubba,22\n126,Pelle,32\n".getBytes()).build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(4));
+			Assert.assertThat(jdbcOperations.queryForObject("select name from names where id = '124'", String.class),
+					is("Anna"));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=names", "pgcopy.batch-size=5000", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,age", "pgcopy.encoding-parallelism=2"})
+	public static class PgcopyParallelEncodingTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testParallelEncoding() {
+			for (int i = 0; i < 5000; i++) {
+				channels.input().send(MessageBuilder.withPayload(i + "\tNisse\t" + (i % 100)).build());
+			}
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from names", Integer.class), is(5000));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=events", "pgcopy.batch-size=2", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,ts", "pgcopy.partition-column=ts", "pgcopy.partition-interval=hour",
+			"pgcopy.partition-premake=2"})
+	public static class PgcopyPartitionedTests extends PgcopySinkIntegrationTests {
+
+		@Test
+		public void testPartitionedCopy() {
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t" + Instant.now()).build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t" + Instant.now().plusSeconds(3600)).build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from events", Integer.class), is(2));
+			Assert.assertThat(jdbcOperations.queryForObject(
+					"select count(*) from pg_inherits where inhparent = 'events'::regclass", Integer.class), is(3));
+		}
+	}
+
+	@TestPropertySource(properties = {"pgcopy.tableName=events", "pgcopy.batch-size=1", "pgcopy.initialize=true",
+			"pgcopy.columns=id,name,ts", "pgcopy.partition-column=ts", "pgcopy.partition-interval=hour",
+			"pgcopy.partition-premake=0", "pgcopy.partition-retention=1", "pgcopy.partition-default=true"})
+	public static class PgcopyDefaultPartitionTests extends PgcopySinkIntegrationTests {
+
+		@Autowired
+		private PartitionMaintainer partitionMaintainer;
+
+		@Test
+		public void testDefaultPartition() {
+			Instant now = Instant.now();
+			channels.input().send(MessageBuilder.withPayload("123\tNisse\t" + now.plusSeconds(3600)).build());
+			channels.input().send(MessageBuilder.withPayload("124\tAnna\t" + now.minusSeconds(3 * 3600)).build());
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from events_default", Integer.class),
+					is(2));
+			// an hour later the first row gets its partition and the second one is past the retention
+			partitionMaintainer.maintain(now.plusSeconds(3600));
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from events_default", Integer.class),
+					is(0));
+			Assert.assertThat(jdbcOperations.queryForObject("select count(*) from events", Integer.class), is(1));
+			Assert.assertThat(jdbcOperations.queryForObject(
+					"select count(*) from pg_inherits where inhparent = 'events'::regclass", Integer.class), is(3));
+		}
+	}
+
 	@SpringBootApplication
 	public static class PgcopySinkApplication {
 		public static void main(String[] args) {
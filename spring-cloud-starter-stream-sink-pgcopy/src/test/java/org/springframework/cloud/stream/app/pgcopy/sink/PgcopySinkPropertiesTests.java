@@ -144,6 +144,25 @@ public class PgcopySinkPropertiesTests {
 		assertThat(String.valueOf(properties.getEscape()), equalTo(escape));
 	}
 
+	@Test
+	public void parallelismCanBeCustomized() {
+		TestPropertyValues.of("pgcopy.table-name: test", "pgcopy.parallelism: 4")
+				.applyTo(this.context);
+		this.context.register(Conf.class);
+		this.context.refresh();
+		PgcopySinkProperties properties = this.context.getBean(PgcopySinkProperties.class);
+		assertThat(properties.getParallelism(), equalTo(4));
+	}
+
+	@Test
+	public void parallelismMustBePositive() {
+		this.thrown.expect(BeanCreationException.class);
+		TestPropertyValues.of("pgcopy.table-name: test", "pgcopy.parallelism: 0")
+				.applyTo(this.context);
+		this.context.register(Conf.class);
+		this.context.refresh();
+	}
+
 	@Configuration
 	@EnableConfigurationProperties(PgcopySinkProperties.class)
 	static class Conf {
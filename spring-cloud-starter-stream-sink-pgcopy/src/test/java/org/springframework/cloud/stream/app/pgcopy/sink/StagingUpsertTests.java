@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for StagingUpsert.
+ */
+public class StagingUpsertTests {
+
+	@Test
+	public void mergesTheLastRowOfEachKey() {
+		StagingUpsert upsert = new StagingUpsert("names", Arrays.asList("id", "name"), Collections.singletonList("id"));
+		assertThat(upsert.getMergeSql(), is("INSERT INTO names (id, name) SELECT DISTINCT ON (id) id, name FROM "
+				+ upsert.getStagingTable() + " ORDER BY id, ctid DESC "
+				+ "ON CONFLICT (id) DO UPDATE SET name = EXCLUDED.name"));
+	}
+
+	@Test
+	public void namesStagingTablesApartForSimilarTargets() {
+		assertThat(StagingUpsert.stagingTableName("s.t"), not(StagingUpsert.stagingTableName("s_t")));
+		assertThat(StagingUpsert.stagingTableName("s.t").startsWith("pgcopy_stage_s_t_"), is(true));
+		assertThat(StagingUpsert.stagingTableName("s.t"), is(StagingUpsert.stagingTableName("s.t")));
+		String name = StagingUpsert.stagingTableName("a_schema_with_a_long_name.a_table_with_a_long_name_too");
+		assertThat(name.length() <= 63, is(true));
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.pgcopy.sink;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for ValidatingLinesEncoder.
+ */
+public class ValidatingLinesEncoderTests {
+
+	private final CopyBatch batch = new CopyBatch(16);
+
+	@Test
+	public void acceptsValidTextLines() {
+		ValidatingLinesEncoder encoder = encoder(PgcopySinkProperties.Format.TEXT, null);
+		encoder.encode("1\tescaped \\t tab\t\\N", this.batch);
+		encoder.encode("2\tZoë\tback\\\\slash".getBytes(StandardCharsets.UTF_8), this.batch);
+		assertThat(this.batch.rows(), is(2));
+		assertThat(new String(this.batch.buffer(), 0, this.batch.size(), StandardCharsets.UTF_8),
+				is("1\tescaped \\t tab\t\\N\n2\tZoë\tback\\\\slash\n"));
+	}
+
+	@Test
+	public void acceptsValidCsvLines() {
+		ValidatingLinesEncoder encoder = encoder(PgcopySinkProperties.Format.CSV, null);
+		encoder.encode("1,\"a, \"\"quoted\"\" name\",", this.batch);
+		encoder.encode("2,\"multi\nline\",x", this.batch);
+		assertThat(this.batch.rows(), is(2));
+	}
+
+	@Test
+	public void rejectsWrongFieldCount() {
+		assertRejected(encoder(PgcopySinkProperties.Format.TEXT, null), "1\tNisse", "Expected 3 fields but found 2");
+		assertRejected(encoder(PgcopySinkProperties.Format.CSV, "|"), "1|a|b|c", "Expected 3 fields but found 4");
+	}
+
+	@Test
+	public void rejectsBadEscapingAndQuoting() {
+		assertRejected(encoder(PgcopySinkProperties.Format.TEXT, null), "1\ta\tb\\", "unescaped backslash");
+		assertRejected(encoder(PgcopySinkProperties.Format.TEXT, null), "1\ta\nb\tc", "line break");
+		assertRejected(encoder(PgcopySinkProperties.Format.CSV, null), "1,\"a,b", "Unterminated");
+		assertRejected(encoder(PgcopySinkProperties.Format.CSV, null), "\\.", "end-of-data");
+	}
+
+	@Test
+	public void rejectsInvalidUtf8() {
+		ValidatingLinesEncoder encoder = encoder(PgcopySinkProperties.Format.TEXT, null);
+		assertRejected(encoder, new byte[] { '1', '\t', (byte) 0xc3, '\t', 'x' }, "Invalid UTF-8");
+		assertRejected(encoder, new byte[] { '1', '\t', (byte) 0xc0, (byte) 0x80, '\t', 'x' }, "Invalid UTF-8");
+		assertRejected(encoder, new byte[] { '1', '\t', 0, '\t', 'x' }, "NUL");
+		assertThat(this.batch.rows(), is(0));
+	}
+
+	private void assertRejected(ValidatingLinesEncoder encoder, Object line, String reason) {
+		try {
+			encoder.encode(line, this.batch);
+			fail("Expected the line to be rejected: " + reason);
+		}
+		catch (IllegalArgumentException e) {
+			assertThat(e.getMessage(), containsString(reason));
+		}
+	}
+
+	private static ValidatingLinesEncoder encoder(PgcopySinkProperties.Format format, String delimiter) {
+		return new ValidatingLinesEncoder(3, format, delimiter, null, null);
+	}
+
+}
@@ -0,0 +1,4 @@
+drop table names;
+create table names (id int, name varchar(255), age int);
+create index names_age_idx on names (age);
+insert into names values (1, 'Stale', 99);
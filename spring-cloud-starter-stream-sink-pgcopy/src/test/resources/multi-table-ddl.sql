@@ -0,0 +1,4 @@
+drop table names;
+create table names (id int, name varchar(255), age int);
+drop table other_names;
+create table other_names (id int, name varchar(255), age int);
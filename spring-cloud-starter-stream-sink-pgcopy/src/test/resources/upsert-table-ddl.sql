@@ -0,0 +1,2 @@
+drop table names;
+create table names (id int primary key, name varchar(255), age int);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,21 +16,47 @@
 
 package org.springframework.cloud.stream.app.jdbc.source;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
 import javax.sql.DataSource;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.app.jdbc.source.JdbcSourceProperties.ReplicationPlugin;
 import org.springframework.cloud.stream.app.trigger.TriggerConfiguration;
 import org.springframework.cloud.stream.app.trigger.TriggerPropertiesMaxMessagesDefaultOne;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.integration.core.MessageSource;
 import org.springframework.integration.dsl.IntegrationFlow;
 import org.springframework.integration.dsl.IntegrationFlowBuilder;
 import org.springframework.integration.dsl.IntegrationFlows;
+import org.springframework.integration.endpoint.MessageProducerSupport;
 import org.springframework.integration.jdbc.JdbcPollingChannelAdapter;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
 
 /**
  * A module that reads data from an RDBMS using JDBC and creates a payload with the data.
@@ -42,6 +68,8 @@ import org.springframework.integration.jdbc.JdbcPollingChannelAdapter;
 @EnableConfigurationProperties({JdbcSourceProperties.class, TriggerPropertiesMaxMessagesDefaultOne.class})
 public class JdbcSourceConfiguration {
 
+	private static final String R2DBC_CONNECTION_FACTORY = "io.r2dbc.spi.ConnectionFactory";
+
 	@Autowired
 	private JdbcSourceProperties properties;
 
@@ -51,16 +79,34 @@ public class JdbcSourceConfiguration {
 	@Autowired
 	private Source source;
 
+	@Autowired
+	private ObjectProvider<MeterRegistry> meterRegistry;
+
 	@Bean
+	@ConditionalOnProperty(name = "jdbc.reader", havingValue = "jdbc", matchIfMissing = true)
 	public MessageSource<Object> jdbcMessageSource() {
+		final Timer pollTimer = pollTimer();
+		final DistributionSummary rowsPerPoll = rowsPerPoll();
 		JdbcPollingChannelAdapter jdbcPollingChannelAdapter =
-				new JdbcPollingChannelAdapter(this.dataSource, this.properties.getQuery());
+				new JdbcPollingChannelAdapter(this.dataSource, this.properties.getQuery()) {
+
+					@Override
+					protected Object doReceive() {
+						long start = System.nanoTime();
+						Object rows = super.doReceive();
+						pollTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+						rowsPerPoll.record(rows instanceof Collection ? ((Collection<?>) rows).size() : 0);
+						return rows;
+					}
+
+				};
 		jdbcPollingChannelAdapter.setMaxRowsPerPoll(this.properties.getMaxRowsPerPoll());
 		jdbcPollingChannelAdapter.setUpdateSql(this.properties.getUpdate());
 		return jdbcPollingChannelAdapter;
 	}
 
 	@Bean
+	@ConditionalOnProperty(name = "jdbc.reader", havingValue = "jdbc", matchIfMissing = true)
 	public IntegrationFlow pollingFlow() {
 		IntegrationFlowBuilder flowBuilder = IntegrationFlows.from(jdbcMessageSource());
 		if (this.properties.isSplit()) {
@@ -70,4 +116,117 @@ public class JdbcSourceConfiguration {
 		return flowBuilder.get();
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Sends the changes decoded from a PostgreSQL logical replication slot, on the database
+	 * of {@code spring.datasource}.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "jdbc.reader", havingValue = "replication")
+	public MessageProducerSupport replicationMessageProducer(DataSourceProperties dataSourceProperties) {
+		Assert.hasText(this.properties.getReplicationSlot(),
+				"'jdbc.replication-slot' is required with the replication reader");
+		Assert.state(this.properties.getReplicationPlugin() != ReplicationPlugin.PGOUTPUT
+						|| StringUtils.hasText(this.properties.getReplicationPublication()),
+				"'jdbc.replication-publication' is required with the pgoutput plugin");
+		LogicalReplicationMessageProducer producer = new LogicalReplicationMessageProducer(
+				dataSourceProperties.determineUrl(), dataSourceProperties.determineUsername(),
+				dataSourceProperties.determinePassword(), this.properties.getReplicationSlot(),
+				this.properties.getReplicationPlugin());
+		producer.setPublication(this.properties.getReplicationPublication());
+		producer.setCreateSlot(this.properties.isReplicationCreateSlot());
+		producer.setStatusInterval(Duration.ofMillis(this.properties.getReplicationStatusInterval()));
+		producer.setOutputChannel(this.source.output());
+		FunctionCounter.builder("jdbc.source.replication.decode.errors", producer,
+				LogicalReplicationMessageProducer::getDecodeFailures)
+				.description("Replication messages skipped as they could not be decoded")
+				.register(this.meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+		return producer;
+	}
+
+	@PostConstruct
+	public void afterPropertiesSet() {
+		Assert.state(this.properties.getReader() != JdbcSourceProperties.Reader.R2DBC
+						|| ClassUtils.isPresent(R2DBC_CONNECTION_FACTORY, getClass().getClassLoader()),
+				"'jdbc.reader=r2dbc' requires r2dbc-spi, r2dbc-pool and an R2DBC driver on the classpath");
+	}
+
+	Timer pollTimer() {
+		return Timer.builder("jdbc.source.poll")
+				.description("Time taken to run the query (and update) for a poll")
+				.register(this.meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+	}
+
+	DistributionSummary rowsPerPoll() {
+		return DistributionSummary.builder("jdbc.source.rows")
+				.description("Rows returned per poll")
+				.baseUnit("rows")
+				.register(this.meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+	}
+
+	/**
+	 * The R2DBC reader, only set up when R2DBC is on the classpath: it is not shipped with the
+	 * application, as it needs a newer Reactor than the one the rest of the application uses.
+	 */
+	@Configuration
+	@ConditionalOnClass(name = R2DBC_CONNECTION_FACTORY)
+	@ConditionalOnProperty(name = "jdbc.reader", havingValue = "r2dbc")
+	static class R2dbcReaderConfiguration {
+
+		@Autowired
+		private JdbcSourceProperties properties;
+
+		@Autowired
+		private JdbcSourceConfiguration sourceConfiguration;
+
+		@Autowired
+		private Source source;
+
+		/**
+		 * Streams the rows of the query through R2DBC, running it again {@code trigger.fixed-delay}
+		 * after each result is exhausted.
+		 */
+		@Bean
+		public MessageProducerSupport r2dbcMessageProducer(ConnectionFactory r2dbcConnectionFactory,
+				TriggerPropertiesMaxMessagesDefaultOne triggerProperties) {
+			Assert.state(this.properties.isSplit(), "'jdbc.split=false' is not supported with the r2dbc reader");
+			final Timer pollTimer = this.sourceConfiguration.pollTimer();
+			final DistributionSummary rowsPerPoll = this.sourceConfiguration.rowsPerPoll();
+			R2dbcMessageProducer producer = new R2dbcMessageProducer(r2dbcConnectionFactory, this.properties.getQuery());
+			if (StringUtils.hasText(this.properties.getUpdate())) {
+				producer.setUpdate(this.properties.getUpdate());
+			}
+			TimeUnit timeUnit = triggerProperties.getTimeUnit() != null
+					? triggerProperties.getTimeUnit() : TimeUnit.SECONDS;
+			producer.setDelay(Duration.ofMillis(timeUnit.toMillis(triggerProperties.getFixedDelay())));
+			producer.setMaxRows(this.properties.getMaxRowsPerPoll());
+			producer.setRowListener((rows, nanos) -> {
+				pollTimer.record(nanos, TimeUnit.NANOSECONDS);
+				rowsPerPoll.record(rows);
+			});
+			producer.setOutputChannel(this.source.output());
+			return producer;
+		}
+
+		/**
+		 * The pool of R2DBC connections: one streaming the query and one for the update.
+		 */
+		@Bean(destroyMethod = "dispose")
+		public ConnectionPool r2dbcConnectionFactory() {
+			Assert.hasText(this.properties.getR2dbcUrl(), "'jdbc.r2dbc-url' is required with the r2dbc reader");
+			ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(this.properties.getR2dbcUrl())
+					.mutate();
+			if (StringUtils.hasText(this.properties.getR2dbcUsername())) {
+				options.option(ConnectionFactoryOptions.USER, this.properties.getR2dbcUsername());
+			}
+			if (StringUtils.hasText(this.properties.getR2dbcPassword())) {
+				options.option(ConnectionFactoryOptions.PASSWORD, this.properties.getR2dbcPassword());
+			}
+			return new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options.build()))
+					.initialSize(1)
+					.maxSize(2)
+					.build());
+		}
+
+	}
+
+}
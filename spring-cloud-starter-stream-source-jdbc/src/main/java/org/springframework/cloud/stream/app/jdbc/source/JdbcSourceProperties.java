@@ -16,7 +16,7 @@
 
 package org.springframework.cloud.stream.app.jdbc.source;
 
-import javax.validation.constraints.NotNull;
+import javax.validation.constraints.AssertTrue;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.validation.annotation.Validated;
@@ -50,7 +50,54 @@ public class JdbcSourceProperties {
 	 */
 	private int maxRowsPerPoll = 0;
 
-	@NotNull
+	/**
+	 * How rows are read: 'jdbc' by polling the query through JDBC, 'r2dbc' by streaming its result through R2DBC
+	 * as fast as the output takes the rows, or 'replication' by capturing the changes of a PostgreSQL logical
+	 * replication slot instead of running a query.
+	 */
+	private Reader reader = Reader.JDBC;
+
+	/**
+	 * The R2DBC URL of the database when the reader is 'r2dbc', for instance 'r2dbc:postgresql://localhost/db'.
+	 */
+	private String r2dbcUrl;
+
+	/**
+	 * The user name for the R2DBC connections, if not given in the URL.
+	 */
+	private String r2dbcUsername;
+
+	/**
+	 * The password for the R2DBC connections, if not given in the URL.
+	 */
+	private String r2dbcPassword;
+
+	/**
+	 * The name of the logical replication slot to read the changes from when the reader is 'replication'.
+	 */
+	private String replicationSlot;
+
+	/**
+	 * The output plugin of the replication slot.
+	 */
+	private ReplicationPlugin replicationPlugin = ReplicationPlugin.PGOUTPUT;
+
+	/**
+	 * The publication whose tables are captured, required with the 'pgoutput' plugin.
+	 */
+	private String replicationPublication;
+
+	/**
+	 * Whether to create the replication slot when it does not exist. A slot retains the server's log until its
+	 * changes are read, so a slot that is no longer read must be dropped.
+	 */
+	private boolean replicationCreateSlot = false;
+
+	/**
+	 * Interval in milliseconds between two reports of the last captured change to the server.
+	 */
+	private long replicationStatusInterval = 10000L;
+
 	public String getQuery() {
 		return query;
 	}
@@ -82,4 +129,121 @@ public class JdbcSourceProperties {
 	public void setMaxRowsPerPoll(int maxRowsPerPoll) {
 		this.maxRowsPerPoll = maxRowsPerPoll;
 	}
-}
\ No newline at end of file
+
+	public Reader getReader() {
+		return reader;
+	}
+
+	public void setReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	public String getR2dbcUrl() {
+		return r2dbcUrl;
+	}
+
+	public void setR2dbcUrl(String r2dbcUrl) {
+		this.r2dbcUrl = r2dbcUrl;
+	}
+
+	public String getR2dbcUsername() {
+		return r2dbcUsername;
+	}
+
+	public void setR2dbcUsername(String r2dbcUsername) {
+		this.r2dbcUsername = r2dbcUsername;
+	}
+
+	public String getR2dbcPassword() {
+		return r2dbcPassword;
+	}
+
+	public void setR2dbcPassword(String r2dbcPassword) {
+		this.r2dbcPassword = r2dbcPassword;
+	}
+
+	public String getReplicationSlot() {
+		return replicationSlot;
+	}
+
+	public void setReplicationSlot(String replicationSlot) {
+		this.replicationSlot = replicationSlot;
+	}
+
+	public ReplicationPlugin getReplicationPlugin() {
+		return replicationPlugin;
+	}
+
+	public void setReplicationPlugin(ReplicationPlugin replicationPlugin) {
+		this.replicationPlugin = replicationPlugin;
+	}
+
+	public String getReplicationPublication() {
+		return replicationPublication;
+	}
+
+	public void setReplicationPublication(String replicationPublication) {
+		this.replicationPublication = replicationPublication;
+	}
+
+	public boolean isReplicationCreateSlot() {
+		return replicationCreateSlot;
+	}
+
+	public void setReplicationCreateSlot(boolean replicationCreateSlot) {
+		this.replicationCreateSlot = replicationCreateSlot;
+	}
+
+	public long getReplicationStatusInterval() {
+		return replicationStatusInterval;
+	}
+
+	public void setReplicationStatusInterval(long replicationStatusInterval) {
+		this.replicationStatusInterval = replicationStatusInterval;
+	}
+
+	@AssertTrue(message = "'query' is required unless the reader is 'replication'")
+	public boolean isQueryPresent() {
+		return this.reader == Reader.REPLICATION || this.query != null;
+	}
+
+	/**
+	 * The ways of reading rows from the database.
+	 */
+	public enum Reader {
+
+		/**
+		 * Poll the query through JDBC on the trigger.
+		 */
+		JDBC,
+
+		/**
+		 * Stream the result of the query through R2DBC.
+		 */
+		R2DBC,
+
+		/**
+		 * Capture the changes of a PostgreSQL logical replication slot.
+		 */
+		REPLICATION
+
+	}
+
+	/**
+	 * The logical decoding output plugins understood by the 'replication' reader.
+	 */
+	public enum ReplicationPlugin {
+
+		/**
+		 * The binary plugin of PostgreSQL 10 and later, streaming the tables of a publication.
+		 */
+		PGOUTPUT,
+
+		/**
+		 * The text plugin shipped as a contrib module, streaming all the tables of the database.
+		 */
+		TEST_DECODING
+
+	}
+
+}
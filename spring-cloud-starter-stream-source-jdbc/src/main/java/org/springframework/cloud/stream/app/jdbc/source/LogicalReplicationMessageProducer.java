@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
+
+import org.springframework.cloud.stream.app.jdbc.source.JdbcSourceProperties.ReplicationPlugin;
+import org.springframework.integration.endpoint.MessageProducerSupport;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.util.Assert;
+
+/**
+ * Sends the rows changed in a PostgreSQL database, as decoded from a logical replication
+ * slot, to the output channel, one message per row.
+ * <p>
+ * The changes are read on a dedicated thread through the replication API of the
+ * PostgreSQL driver. The position of a change in the log is confirmed to the server once
+ * its message was sent, so that the server can recycle the log up to there, and a
+ * restarted source resumes from the last confirmed change. A change whose message cannot
+ * be sent is therefore received again: the stream is closed and opened again after the
+ * reconnection delay.
+ * <p>
+ * Messages that are not about a row, such as transaction boundaries, are confirmed as they
+ * are read, and so is the position reported by the server's keepalives while no message is
+ * pending, so that the slot does not hold back the log while the streamed tables are idle.
+ * A message that cannot be decoded is logged, counted and skipped rather than received
+ * again forever.
+ */
+class LogicalReplicationMessageProducer extends MessageProducerSupport {
+
+	/**
+	 * The header holding the operation of the change: INSERT, UPDATE or DELETE.
+	 */
+	static final String OPERATION_HEADER = "jdbc_operation";
+
+	/**
+	 * The header holding the schema-qualified name of the changed table.
+	 */
+	static final String TABLE_HEADER = "jdbc_table";
+
+	/**
+	 * The header holding the log sequence number of the change, such as {@code 0/16B3748}.
+	 */
+	static final String LSN_HEADER = "jdbc_lsn";
+
+	/**
+	 * The header holding the key or old row of an updated row, when the server sent it.
+	 */
+	static final String OLD_ROW_HEADER = "jdbc_old_row";
+
+	private static final long IDLE_SLEEP_MILLIS = 10L;
+
+	private final String url;
+
+	private final Properties connectionProperties = new Properties();
+
+	private final String slotName;
+
+	private final ReplicationPlugin plugin;
+
+	private final AtomicLong decodeFailures = new AtomicLong();
+
+	private String publication;
+
+	private boolean createSlot;
+
+	private Duration statusInterval = Duration.ofSeconds(10);
+
+	private Duration reconnectDelay = Duration.ofSeconds(5);
+
+	private volatile boolean active;
+
+	private volatile Thread reader;
+
+	/**
+	 * Create a producer.
+	 * @param url the JDBC URL of the database
+	 * @param username the user, who must have the REPLICATION attribute
+	 * @param password the password of the user
+	 * @param slotName the name of the logical replication slot to read
+	 * @param plugin the output plugin of the slot
+	 */
+	LogicalReplicationMessageProducer(String url, String username, String password, String slotName,
+			ReplicationPlugin plugin) {
+		Assert.hasText(slotName, "'slotName' must not be empty");
+		this.url = url;
+		if (username != null) {
+			this.connectionProperties.setProperty("user", username);
+		}
+		if (password != null) {
+			this.connectionProperties.setProperty("password", password);
+		}
+		this.connectionProperties.setProperty("replication", "database");
+		this.connectionProperties.setProperty("assumeMinServerVersion", "9.4");
+		this.connectionProperties.setProperty("preferQueryMode", "simple");
+		this.slotName = slotName;
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Set the publication whose tables are streamed, required by {@code pgoutput}.
+	 * @param publication the name of the publication
+	 */
+	void setPublication(String publication) {
+		this.publication = publication;
+	}
+
+	/**
+	 * Set whether to create the slot when it does not exist yet.
+	 * @param createSlot true to create the slot
+	 */
+	void setCreateSlot(boolean createSlot) {
+		this.createSlot = createSlot;
+	}
+
+	/**
+	 * Set the interval between two reports of the confirmed position to the server.
+	 * @param statusInterval the interval
+	 */
+	void setStatusInterval(Duration statusInterval) {
+		this.statusInterval = statusInterval;
+	}
+
+	/**
+	 * Set the time to wait before opening the stream again after a failure.
+	 * @param reconnectDelay the delay
+	 */
+	void setReconnectDelay(Duration reconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	/**
+	 * Return the number of messages skipped as they could not be decoded.
+	 */
+	long getDecodeFailures() {
+		return this.decodeFailures.get();
+	}
+
+	@Override
+	public String getComponentType() {
+		return "jdbc:replication-channel-adapter";
+	}
+
+	@Override
+	protected void doStart() {
+		this.active = true;
+		Thread reader = new Thread(this::run, "jdbc-replication-" + this.slotName);
+		reader.setDaemon(true);
+		this.reader = reader;
+		reader.start();
+	}
+
+	@Override
+	protected void doStop() {
+		this.active = false;
+		Thread reader = this.reader;
+		if (reader != null) {
+			reader.interrupt();
+			try {
+				reader.join(TimeUnit.SECONDS.toMillis(10));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void run() {
+		while (this.active) {
+			try (Connection connection = DriverManager.getConnection(this.url, this.connectionProperties)) {
+				stream(connection);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (Exception e) {
+				if (!this.active) {
+					return;
+				}
+				logger.error("Failed to stream the changes of slot '" + this.slotName + "', reconnecting in "
+						+ this.reconnectDelay.toMillis() + " ms", e);
+				try {
+					Thread.sleep(this.reconnectDelay.toMillis());
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the changes until stopped, confirming the position of each message once it was
+	 * handled, and the position of the keepalives while idle.
+	 */
+	private void stream(Connection connection) throws SQLException, InterruptedException {
+		PGConnection pgConnection = connection.unwrap(PGConnection.class);
+		if (this.createSlot) {
+			createSlotIfMissing(connection, pgConnection);
+		}
+		ChainedLogicalStreamBuilder builder = pgConnection.getReplicationAPI()
+				.replicationStream()
+				.logical()
+				.withSlotName(this.slotName)
+				.withStatusInterval((int) this.statusInterval.toMillis(), TimeUnit.MILLISECONDS);
+		ChangeDecoder decoder;
+		if (this.plugin == ReplicationPlugin.PGOUTPUT) {
+			builder.withSlotOption("proto_version", 1).withSlotOption("publication_names", this.publication);
+			decoder = new PgoutputDecoder();
+		}
+		else {
+			builder.withSlotOption("skip-empty-xacts", true);
+			decoder = new TestDecodingDecoder();
+		}
+		PGReplicationStream stream = builder.start();
+		try {
+			while (this.active) {
+				if (!readPending(stream, decoder)) {
+					Thread.sleep(IDLE_SLEEP_MILLIS);
+				}
+			}
+			stream.forceUpdateStatus();
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Handle the next pending message, if any, and confirm the position reached.
+	 * @return whether a message was pending
+	 */
+	boolean readPending(PGReplicationStream stream, ChangeDecoder decoder) throws SQLException {
+		ByteBuffer buffer = stream.readPending();
+		// also advanced by keepalives: every message received up to there was handled
+		LogSequenceNumber lsn = stream.getLastReceiveLSN();
+		if (buffer != null) {
+			RowChange change = decode(decoder, buffer, lsn);
+			if (change != null) {
+				sendMessage(toMessage(change, lsn));
+			}
+		}
+		confirm(stream, lsn);
+		return buffer != null;
+	}
+
+	private RowChange decode(ChangeDecoder decoder, ByteBuffer buffer, LogSequenceNumber lsn) {
+		try {
+			return decoder.decode(buffer);
+		}
+		catch (RuntimeException e) {
+			this.decodeFailures.incrementAndGet();
+			logger.error("Skipping message at " + lsn.asString() + " of slot '" + this.slotName
+					+ "' that could not be decoded", e);
+			return null;
+		}
+	}
+
+	private static void confirm(PGReplicationStream stream, LogSequenceNumber lsn) {
+		if (lsn.asLong() > stream.getLastFlushedLSN().asLong()) {
+			stream.setAppliedLSN(lsn);
+			stream.setFlushedLSN(lsn);
+		}
+	}
+
+	private void createSlotIfMissing(Connection connection, PGConnection pgConnection) throws SQLException {
+		try (PreparedStatement statement =
+				connection.prepareStatement("SELECT count(*) FROM pg_replication_slots WHERE slot_name = ?")) {
+			statement.setString(1, this.slotName);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (resultSet.next() && resultSet.getInt(1) > 0) {
+					return;
+				}
+			}
+		}
+		pgConnection.getReplicationAPI()
+				.createReplicationSlot()
+				.logical()
+				.withSlotName(this.slotName)
+				.withOutputPlugin(this.plugin.name().toLowerCase(Locale.ROOT))
+				.make();
+		if (logger.isInfoEnabled()) {
+			logger.info("Created logical replication slot '" + this.slotName + "'");
+		}
+	}
+
+	static Message<?> toMessage(RowChange change, LogSequenceNumber lsn) {
+		MessageBuilder<?> builder = MessageBuilder.withPayload(change.getColumns())
+				.setHeader(OPERATION_HEADER, change.getOperation().name())
+				.setHeader(TABLE_HEADER, change.getSchema() + "." + change.getTable())
+				.setHeader(LSN_HEADER, lsn.asString());
+		if (change.getOldColumns() != null) {
+			builder.setHeader(OLD_ROW_HEADER, change.getOldColumns());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Turns the messages of an output plugin into row changes.
+	 */
+	@FunctionalInterface
+	interface ChangeDecoder {
+
+		/**
+		 * Decode a message of the stream.
+		 * @param buffer the message
+		 * @return the row change, or {@code null} for a message not about a row
+		 */
+		RowChange decode(ByteBuffer buffer);
+
+	}
+
+}
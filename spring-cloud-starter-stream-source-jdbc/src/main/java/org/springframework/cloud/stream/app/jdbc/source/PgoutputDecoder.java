@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.cloud.stream.app.jdbc.source.RowChange.Operation;
+
+/**
+ * Decodes the messages of the {@code pgoutput} plugin, protocol version 1.
+ * <p>
+ * Each change refers to its table by OID, described by a relation message sent earlier on
+ * the same stream, so a decoder must only be used for a single stream. Transaction,
+ * origin, type and truncate messages are skipped.
+ */
+final class PgoutputDecoder implements LogicalReplicationMessageProducer.ChangeDecoder {
+
+	private final Map<Integer, Relation> relations = new HashMap<>();
+
+	@Override
+	public RowChange decode(ByteBuffer buffer) {
+		char type = (char) buffer.get();
+		switch (type) {
+			case 'R':
+				readRelation(buffer);
+				return null;
+			case 'I': {
+				Relation relation = relation(buffer.getInt());
+				expect(buffer, 'N');
+				return new RowChange(Operation.INSERT, relation.schema, relation.table,
+						readTuple(buffer, relation, false), null);
+			}
+			case 'U': {
+				Relation relation = relation(buffer.getInt());
+				Map<String, Object> oldColumns = null;
+				char kind = (char) buffer.get();
+				if (kind == 'K' || kind == 'O') {
+					oldColumns = readTuple(buffer, relation, kind == 'K');
+					kind = (char) buffer.get();
+				}
+				if (kind != 'N') {
+					throw new IllegalStateException("Unexpected tuple type '" + kind + "' in an update");
+				}
+				return new RowChange(Operation.UPDATE, relation.schema, relation.table,
+						readTuple(buffer, relation, false), oldColumns);
+			}
+			case 'D': {
+				Relation relation = relation(buffer.getInt());
+				char kind = (char) buffer.get();
+				return new RowChange(Operation.DELETE, relation.schema, relation.table,
+						readTuple(buffer, relation, kind == 'K'), null);
+			}
+			default:
+				return null;
+		}
+	}
+
+	private void readRelation(ByteBuffer buffer) {
+		int oid = buffer.getInt();
+		String schema = readString(buffer);
+		String table = readString(buffer);
+		buffer.get(); // replica identity
+		String[] columns = new String[buffer.getShort()];
+		boolean[] key = new boolean[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			key[i] = (buffer.get() & 1) != 0;
+			columns[i] = readString(buffer);
+			buffer.getInt(); // type OID
+			buffer.getInt(); // type modifier
+		}
+		this.relations.put(oid, new Relation(schema.isEmpty() ? "pg_catalog" : schema, table, columns, key));
+	}
+
+	private Relation relation(int oid) {
+		Relation relation = this.relations.get(oid);
+		if (relation == null) {
+			throw new IllegalStateException("No relation message received for table OID " + oid);
+		}
+		return relation;
+	}
+
+	/**
+	 * Read the columns of a row, only keeping those of the replica identity for a key tuple,
+	 * where the other columns are sent as nulls.
+	 */
+	private static Map<String, Object> readTuple(ByteBuffer buffer, Relation relation, boolean keyOnly) {
+		int count = buffer.getShort();
+		Map<String, Object> row = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			char kind = (char) buffer.get();
+			if (kind == 'u') {
+				continue;
+			}
+			Object value = null;
+			if (kind == 't') {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				value = new String(bytes, StandardCharsets.UTF_8);
+			}
+			if (!keyOnly || relation.key[i]) {
+				row.put(relation.columns[i], value);
+			}
+		}
+		return row;
+	}
+
+	private static void expect(ByteBuffer buffer, char expected) {
+		char kind = (char) buffer.get();
+		if (kind != expected) {
+			throw new IllegalStateException("Expected tuple type '" + expected + "' but got '" + kind + "'");
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (byte b = buffer.get(); b != 0; b = buffer.get()) {
+			bytes.write(b);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static final class Relation {
+
+		private final String schema;
+
+		private final String table;
+
+		private final String[] columns;
+
+		private final boolean[] key;
+
+		Relation(String schema, String table, String[] columns, boolean[] key) {
+			this.schema = schema;
+			this.table = table;
+			this.columns = columns;
+			this.key = key;
+		}
+
+	}
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.r2dbc.spi.ColumnMetadata;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.RowMetadata;
+import io.r2dbc.spi.Statement;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import org.springframework.integration.endpoint.MessageProducerSupport;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.jdbc.core.namedparam.AbstractSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+import org.springframework.util.Assert;
+import org.springframework.util.LinkedCaseInsensitiveMap;
+
+/**
+ * Streams the rows of a query run through R2DBC to the output channel, one message per row.
+ * <p>
+ * Rows are sent on a thread of their own rather than on the driver's I/O thread, as
+ * sending blocks while the output is busy. They are requested from the database as they are
+ * sent, at most {@value #UPDATE_BATCH_SIZE} ahead, so a slow consumer makes the driver fetch more slowly instead of
+ * the whole result being read into memory. When the result is exhausted the query is run
+ * again after the configured delay.
+ * <p>
+ * The update statement uses the same {@code :name} parameters as with the polling source,
+ * bound from the columns of each row sent. It is run for up to {@value #UPDATE_BATCH_SIZE}
+ * rows at a time, once they were sent, as one statement with a binding per row.
+ */
+class R2dbcMessageProducer extends MessageProducerSupport {
+
+	static final int UPDATE_BATCH_SIZE = 100;
+
+	private final ConnectionFactory connectionFactory;
+
+	private final String query;
+
+	private ParsedSql update;
+
+	private Duration delay = Duration.ofSeconds(1);
+
+	private long maxRows;
+
+	private RowListener rowListener = (rows, nanos) -> { };
+
+	private volatile Disposable subscription;
+
+	private Scheduler sender;
+
+	/**
+	 * Create a producer.
+	 * @param connectionFactory the factory for the connections to run the query and update on
+	 * @param query the query to select the rows
+	 */
+	R2dbcMessageProducer(ConnectionFactory connectionFactory, String query) {
+		Assert.hasText(query, "'query' must not be empty");
+		this.connectionFactory = connectionFactory;
+		this.query = query;
+	}
+
+	/**
+	 * Set a statement to run for each row once it was sent, with {@code :name} parameters
+	 * referring to the columns of the row.
+	 * @param update the update statement
+	 */
+	void setUpdate(String update) {
+		this.update = NamedParameterUtils.parseSqlStatement(update);
+	}
+
+	/**
+	 * Set the time to wait between the end of a query's result and the next run of the query.
+	 * @param delay the delay
+	 */
+	void setDelay(Duration delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * Set the largest number of rows to take from each run of the query, 0 for all of them.
+	 * @param maxRows the number of rows
+	 */
+	void setMaxRows(long maxRows) {
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * Set a listener told about the rows sent and the time taken by each run of the query.
+	 * @param rowListener the listener
+	 */
+	void setRowListener(RowListener rowListener) {
+		this.rowListener = rowListener;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "r2dbc:inbound-channel-adapter";
+	}
+
+	@Override
+	protected void doStart() {
+		this.sender = Schedulers.newSingle("r2dbc-source");
+		this.subscription = Flux.defer(this::run)
+				.repeatWhen(completed -> completed.delayElements(this.delay))
+				.subscribe();
+	}
+
+	@Override
+	protected void doStop() {
+		Disposable subscription = this.subscription;
+		if (subscription != null) {
+			subscription.dispose();
+		}
+		if (this.sender != null) {
+			this.sender.dispose();
+		}
+	}
+
+	/**
+	 * Run the query once, sending the rows on the sender thread and marking them seen by
+	 * batches.
+	 */
+	private Mono<Void> run() {
+		long start = System.nanoTime();
+		AtomicLong sent = new AtomicLong();
+		Flux<Map<String, Object>> rows = Flux.usingWhen(this.connectionFactory.create(),
+				connection -> Flux.from(connection.createStatement(this.query).execute())
+						.concatMap(result -> result.map(R2dbcMessageProducer::toMap), 1),
+				Connection::close);
+		if (this.maxRows > 0) {
+			rows = rows.take(this.maxRows);
+		}
+		return rows
+				.publishOn(this.sender, UPDATE_BATCH_SIZE)
+				.doOnNext(row -> sendMessage(MessageBuilder.withPayload(row).build()))
+				.buffer(UPDATE_BATCH_SIZE)
+				.concatMap(sentRows -> markSeen(sentRows)
+						.doOnSuccess(v -> sent.addAndGet(sentRows.size())), 1)
+				.then()
+				.onErrorResume(e -> {
+					logger.error("Failed to stream the result of '" + this.query + "'", e);
+					return Mono.empty();
+				})
+				.doFinally(signal -> this.rowListener.rowsSent(sent.get(), System.nanoTime() - start));
+	}
+
+	private Mono<Void> markSeen(List<Map<String, Object>> rows) {
+		if (this.update == null) {
+			return Mono.empty();
+		}
+		String sql = toIndexedPlaceholders(
+				NamedParameterUtils.substituteNamedParameters(this.update, new RowParameterSource(rows.get(0))));
+		return Mono.usingWhen(this.connectionFactory.create(),
+				connection -> {
+					Statement statement = connection.createStatement(sql);
+					for (int r = 0; r < rows.size(); r++) {
+						if (r > 0) {
+							statement.add();
+						}
+						Object[] values = NamedParameterUtils.buildValueArray(this.update,
+								new RowParameterSource(rows.get(r)), null);
+						for (int i = 0; i < values.length; i++) {
+							if (values[i] != null) {
+								statement.bind(i, values[i]);
+							}
+							else {
+								statement.bindNull(i, String.class);
+							}
+						}
+					}
+					return Flux.from(statement.execute()).flatMap(Result::getRowsUpdated).then();
+				},
+				Connection::close);
+	}
+
+	/**
+	 * Replace the JDBC {@code ?} placeholders outside of quotes with R2DBC's {@code $1},
+	 * {@code $2}...
+	 */
+	static String toIndexedPlaceholders(String sql) {
+		StringBuilder builder = new StringBuilder(sql.length() + 8);
+		int index = 0;
+		char quote = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			}
+			else if (c == '\'' || c == '"') {
+				quote = c;
+			}
+			else if (c == '?') {
+				builder.append('$').append(++index);
+				continue;
+			}
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	private static Map<String, Object> toMap(Row row, RowMetadata metadata) {
+		Map<String, Object> map = new LinkedHashMap<>();
+		int i = 0;
+		for (ColumnMetadata column : metadata.getColumnMetadatas()) {
+			map.put(column.getName(), row.get(i++));
+		}
+		return map;
+	}
+
+	/**
+	 * The columns of a row as parameters, matched regardless of case as databases differ in
+	 * the case they report column names in.
+	 */
+	private static final class RowParameterSource extends AbstractSqlParameterSource {
+
+		private final Map<String, Object> row;
+
+		RowParameterSource(Map<String, Object> row) {
+			this.row = new LinkedCaseInsensitiveMap<>();
+			this.row.putAll(row);
+		}
+
+		@Override
+		public boolean hasValue(String paramName) {
+			return this.row.containsKey(paramName);
+		}
+
+		@Override
+		public Object getValue(String paramName) {
+			if (!hasValue(paramName)) {
+				throw new IllegalArgumentException("No column '" + paramName + "' in the row for the update");
+			}
+			return this.row.get(paramName);
+		}
+
+	}
+
+	/**
+	 * Callback for the rows sent by each run of the query.
+	 */
+	@FunctionalInterface
+	interface RowListener {
+
+		void rowsSent(long rows, long nanos);
+
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.util.Map;
+
+/**
+ * A row inserted, updated or deleted, as decoded from a logical replication stream.
+ * Column values are the text output of their type, or {@code null}; columns whose value
+ * was not sent (unchanged TOAST values) are missing.
+ */
+final class RowChange {
+
+	private final Operation operation;
+
+	private final String schema;
+
+	private final String table;
+
+	private final Map<String, Object> columns;
+
+	private final Map<String, Object> oldColumns;
+
+	/**
+	 * Create a change.
+	 * @param operation the operation
+	 * @param schema the schema of the table
+	 * @param table the table
+	 * @param columns the new row, or the key (or whole old row) of a deleted row
+	 * @param oldColumns the key (or whole old row) of an updated row when it was sent, or {@code null}
+	 */
+	RowChange(Operation operation, String schema, String table, Map<String, Object> columns,
+			Map<String, Object> oldColumns) {
+		this.operation = operation;
+		this.schema = schema;
+		this.table = table;
+		this.columns = columns;
+		this.oldColumns = oldColumns;
+	}
+
+	Operation getOperation() {
+		return this.operation;
+	}
+
+	String getSchema() {
+		return this.schema;
+	}
+
+	String getTable() {
+		return this.table;
+	}
+
+	Map<String, Object> getColumns() {
+		return this.columns;
+	}
+
+	Map<String, Object> getOldColumns() {
+		return this.oldColumns;
+	}
+
+	@Override
+	public String toString() {
+		return this.operation + " " + this.schema + "." + this.table + " " + this.columns;
+	}
+
+	/**
+	 * The row operations captured.
+	 */
+	enum Operation {
+
+		INSERT, UPDATE, DELETE
+
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.cloud.stream.app.jdbc.source.RowChange.Operation;
+
+/**
+ * Decodes the lines of the {@code test_decoding} plugin, such as
+ * {@code table public.orders: UPDATE: id[integer]:1 note[text]:'it''s'}.
+ * <p>
+ * Values are unquoted, but otherwise kept as the plugin prints them. Transaction and
+ * truncate lines are skipped.
+ */
+final class TestDecodingDecoder implements LogicalReplicationMessageProducer.ChangeDecoder {
+
+	private static final String OLD_KEY = " old-key:";
+
+	private static final String NEW_TUPLE = "new-tuple:";
+
+	private static final String NO_TUPLE_DATA = " (no-tuple-data)";
+
+	private static final String UNCHANGED_TOAST = "unchanged-toast-datum";
+
+	@Override
+	public RowChange decode(ByteBuffer buffer) {
+		String line = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+				StandardCharsets.UTF_8);
+		return decode(line);
+	}
+
+	RowChange decode(String line) {
+		if (!line.startsWith("table ")) {
+			return null;
+		}
+		Cursor cursor = new Cursor(line, "table ".length());
+		String schema = cursor.identifier();
+		cursor.expect('.');
+		String table = cursor.identifier();
+		cursor.expect(':');
+		cursor.expect(' ');
+		int end = line.indexOf(':', cursor.position);
+		String action = line.substring(cursor.position, end);
+		cursor.position = end + 1;
+		Operation operation;
+		try {
+			operation = Operation.valueOf(action);
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+		Map<String, Object> oldColumns = null;
+		if (cursor.skip(OLD_KEY)) {
+			oldColumns = cursor.tuple();
+			cursor.skip(NEW_TUPLE);
+		}
+		Map<String, Object> columns = cursor.skip(NO_TUPLE_DATA) ? new LinkedHashMap<>() : cursor.tuple();
+		return new RowChange(operation, schema, table, columns, oldColumns);
+	}
+
+	private static final class Cursor {
+
+		private final String line;
+
+		private int position;
+
+		Cursor(String line, int position) {
+			this.line = line;
+			this.position = position;
+		}
+
+		/**
+		 * Read the columns up to the end of the line, or up to a following {@code new-tuple:}.
+		 */
+		Map<String, Object> tuple() {
+			Map<String, Object> row = new LinkedHashMap<>();
+			while (skip(" ") && !this.line.startsWith(NEW_TUPLE, this.position)) {
+				String column = identifier();
+				expect('[');
+				int end = this.line.indexOf("]:", this.position);
+				if (end < 0) {
+					throw malformed();
+				}
+				this.position = end + 2;
+				if (peek() == '\'') {
+					row.put(column, quoted());
+				}
+				else {
+					String value = word();
+					if (!UNCHANGED_TOAST.equals(value)) {
+						row.put(column, "null".equals(value) ? null : value);
+					}
+				}
+			}
+			return row;
+		}
+
+		/**
+		 * Read an identifier, double-quoted if it is not a plain lower case name.
+		 */
+		String identifier() {
+			if (peek() == '"') {
+				StringBuilder identifier = new StringBuilder();
+				this.position++;
+				while (true) {
+					char c = next();
+					if (c == '"') {
+						if (peek() != '"') {
+							return identifier.toString();
+						}
+						this.position++;
+					}
+					identifier.append(c);
+				}
+			}
+			int start = this.position;
+			while (this.position < this.line.length()) {
+				char c = this.line.charAt(this.position);
+				if (c == '.' || c == ':' || c == '[' || c == ' ') {
+					break;
+				}
+				this.position++;
+			}
+			return this.line.substring(start, this.position);
+		}
+
+		private String quoted() {
+			StringBuilder value = new StringBuilder();
+			this.position++;
+			while (true) {
+				char c = next();
+				if (c == '\'') {
+					if (peek() != '\'') {
+						return value.toString();
+					}
+					this.position++;
+				}
+				value.append(c);
+			}
+		}
+
+		private String word() {
+			int end = this.line.indexOf(' ', this.position);
+			if (end < 0) {
+				end = this.line.length();
+			}
+			String word = this.line.substring(this.position, end);
+			this.position = end;
+			return word;
+		}
+
+		boolean skip(String token) {
+			if (this.line.startsWith(token, this.position)) {
+				this.position += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		void expect(char c) {
+			if (next() != c) {
+				throw malformed();
+			}
+		}
+
+		private char peek() {
+			return this.position < this.line.length() ? this.line.charAt(this.position) : 0;
+		}
+
+		private char next() {
+			if (this.position >= this.line.length()) {
+				throw malformed();
+			}
+			return this.line.charAt(this.position++);
+		}
+
+		private IllegalStateException malformed() {
+			return new IllegalStateException("Cannot decode '" + this.line + "' at position " + this.position);
+		}
+
+	}
+
+}
@@ -60,6 +60,17 @@ public class JdbcSourcePropertiesTests {
 		this.context.refresh();
 	}
 
+	@Test
+	public void queryIsNotRequiredForReplication() {
+		TestPropertyValues.of("jdbc.reader:replication", "jdbc.replication-slot:orders")
+				.applyTo(this.context);
+		this.context.register(Conf.class);
+		this.context.refresh();
+		JdbcSourceProperties properties = this.context.getBean(JdbcSourceProperties.class);
+		assertThat(properties.getReader(), equalTo(JdbcSourceProperties.Reader.REPLICATION));
+		assertThat(properties.getReplicationPlugin(), equalTo(JdbcSourceProperties.ReplicationPlugin.PGOUTPUT));
+	}
+
 	@Test
 	public void queryCanBeCustomized() {
 		String query = "select foo from bar";
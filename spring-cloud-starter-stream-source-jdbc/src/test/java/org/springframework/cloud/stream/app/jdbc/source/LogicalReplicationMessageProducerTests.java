@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.cloud.stream.app.jdbc.source.JdbcSourceProperties.ReplicationPlugin;
+import org.springframework.cloud.stream.app.jdbc.source.RowChange.Operation;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.messaging.Message;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the handling of the replication stream by LogicalReplicationMessageProducer,
+ * against a scripted stream.
+ */
+public class LogicalReplicationMessageProducerTests {
+
+	private final QueueChannel output = new QueueChannel();
+
+	private final Deque<Object[]> pending = new ArrayDeque<>();
+
+	private LogSequenceNumber received = LogSequenceNumber.INVALID_LSN;
+
+	private LogSequenceNumber flushed = LogSequenceNumber.INVALID_LSN;
+
+	private LogicalReplicationMessageProducer producer;
+
+	private PGReplicationStream stream;
+
+	@Before
+	public void setUp() {
+		this.producer = new LogicalReplicationMessageProducer("jdbc:postgresql://localhost/test", "user", "secret",
+				"orders", ReplicationPlugin.TEST_DECODING);
+		this.producer.setOutputChannel(this.output);
+		this.producer.setBeanFactory(new DefaultListableBeanFactory());
+		this.producer.afterPropertiesSet();
+		this.stream = (PGReplicationStream) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PGReplicationStream.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "readPending":
+							Object[] next = this.pending.poll();
+							if (next == null) {
+								return null;
+							}
+							this.received = (LogSequenceNumber) next[1];
+							return next[0];
+						case "getLastReceiveLSN":
+							return this.received;
+						case "getLastFlushedLSN":
+							return this.flushed;
+						case "setFlushedLSN":
+							this.flushed = (LogSequenceNumber) args[0];
+							return null;
+						default:
+							return null;
+					}
+				});
+	}
+
+	@Test
+	public void skipsAndCountsMessagesThatCannotBeDecoded() throws Exception {
+		message("bad", 0x10);
+		message("row", 0x20);
+		while (this.producer.readPending(this.stream, this::decode)) {
+			// drain
+		}
+		assertThat(this.producer.getDecodeFailures(), is(1L));
+		Message<?> sent = this.output.receive(0);
+		assertThat(sent.getHeaders().get(LogicalReplicationMessageProducer.LSN_HEADER), is("0/20"));
+		assertThat(this.output.receive(0) == null, is(true));
+		assertThat(this.flushed.asLong(), is(0x20L));
+	}
+
+	@Test
+	public void confirmsMessagesWithoutRowAndKeepalives() throws Exception {
+		message("begin", 0x30);
+		assertThat(this.producer.readPending(this.stream, this::decode), is(true));
+		assertThat(this.flushed.asLong(), is(0x30L));
+		// a keepalive moves the received position without any message to read
+		this.received = LogSequenceNumber.valueOf(0x40L);
+		assertThat(this.producer.readPending(this.stream, this::decode), is(false));
+		assertThat(this.flushed.asLong(), is(0x40L));
+		assertThat(this.output.receive(0) == null, is(true));
+	}
+
+	private void message(String text, long lsn) {
+		this.pending.add(new Object[] { ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)),
+				LogSequenceNumber.valueOf(lsn) });
+	}
+
+	private RowChange decode(ByteBuffer buffer) {
+		String text = StandardCharsets.UTF_8.decode(buffer).toString();
+		if (text.equals("bad")) {
+			throw new IllegalStateException("Unknown relation 16385");
+		}
+		if (text.equals("row")) {
+			return new RowChange(Operation.INSERT, "public", "orders", Collections.singletonMap("id", "1"), null);
+		}
+		return null;
+	}
+
+}
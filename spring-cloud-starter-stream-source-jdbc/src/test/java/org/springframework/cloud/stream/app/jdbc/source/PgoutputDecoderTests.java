@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.springframework.cloud.stream.app.jdbc.source.RowChange.Operation;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for PgoutputDecoder, against messages built after the protocol description.
+ */
+public class PgoutputDecoderTests {
+
+	private static final int ORDERS = 16385;
+
+	private final PgoutputDecoder decoder = new PgoutputDecoder();
+
+	@Test
+	public void decodesRowChanges() throws IOException {
+		assertThat(this.decoder.decode(message(out -> {
+			out.writeByte('B');
+			out.writeLong(0x16B3748L);
+			out.writeLong(0L);
+			out.writeInt(529);
+		})), nullValue());
+		assertThat(this.decoder.decode(relation()), nullValue());
+
+		RowChange insert = this.decoder.decode(message(out -> {
+			out.writeByte('I');
+			out.writeInt(ORDERS);
+			out.writeByte('N');
+			tuple(out, "1", "café", null);
+		}));
+		assertThat(insert.getOperation(), is(Operation.INSERT));
+		assertThat(insert.getSchema(), is("public"));
+		assertThat(insert.getTable(), is("orders"));
+		Map<String, Object> expected = new LinkedHashMap<>();
+		expected.put("id", "1");
+		expected.put("note", "café");
+		expected.put("body", null);
+		assertThat(insert.getColumns(), is(expected));
+
+		RowChange update = this.decoder.decode(message(out -> {
+			out.writeByte('U');
+			out.writeInt(ORDERS);
+			out.writeByte('K');
+			tuple(out, "1", null, null);
+			out.writeByte('N');
+			out.writeShort(3);
+			text(out, "2");
+			text(out, "tea");
+			out.writeByte('u');
+		}));
+		assertThat(update.getOperation(), is(Operation.UPDATE));
+		expected.clear();
+		expected.put("id", "2");
+		expected.put("note", "tea");
+		assertThat(update.getColumns(), is(expected));
+		assertThat(update.getOldColumns(), is(Collections.singletonMap("id", "1")));
+
+		RowChange delete = this.decoder.decode(message(out -> {
+			out.writeByte('D');
+			out.writeInt(ORDERS);
+			out.writeByte('K');
+			tuple(out, "2", null, null);
+		}));
+		assertThat(delete.getOperation(), is(Operation.DELETE));
+		assertThat(delete.getColumns(), is(Collections.singletonMap("id", "2")));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsChangesOfUnknownRelations() throws IOException {
+		this.decoder.decode(message(out -> {
+			out.writeByte('I');
+			out.writeInt(ORDERS);
+			out.writeByte('N');
+			tuple(out, "1", "tea", null);
+		}));
+	}
+
+	private static ByteBuffer relation() throws IOException {
+		return message(out -> {
+			out.writeByte('R');
+			out.writeInt(ORDERS);
+			string(out, "public");
+			string(out, "orders");
+			out.writeByte('d');
+			out.writeShort(3);
+			column(out, "id", true);
+			column(out, "note", false);
+			column(out, "body", false);
+		});
+	}
+
+	private static void column(DataOutputStream out, String name, boolean key) throws IOException {
+		out.writeByte(key ? 1 : 0);
+		string(out, name);
+		out.writeInt(25);
+		out.writeInt(-1);
+	}
+
+	private static void tuple(DataOutputStream out, String... values) throws IOException {
+		out.writeShort(values.length);
+		for (String value : values) {
+			if (value == null) {
+				out.writeByte('n');
+			}
+			else {
+				text(out, value);
+			}
+		}
+	}
+
+	private static void text(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeByte('t');
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void string(DataOutputStream out, String value) throws IOException {
+		out.write(value.getBytes(StandardCharsets.UTF_8));
+		out.writeByte(0);
+	}
+
+	private static ByteBuffer message(Writer writer) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writer.write(new DataOutputStream(bytes));
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	@FunctionalInterface
+	private interface Writer {
+
+		void write(DataOutputStream out) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.r2dbc.h2.H2ConnectionConfiguration;
+import io.r2dbc.h2.H2ConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.ChannelInterceptor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for R2dbcMessageProducer, against H2's R2DBC driver.
+ */
+public class R2dbcMessageProducerTests {
+
+	private String database;
+
+	private JdbcTemplate jdbcTemplate;
+
+	private R2dbcMessageProducer producer;
+
+	private final QueueChannel output = new QueueChannel(1);
+
+	@Before
+	public void setUp() {
+		this.database = UUID.randomUUID().toString();
+		this.jdbcTemplate = new JdbcTemplate(
+				new DriverManagerDataSource("jdbc:h2:mem:" + this.database + ";DB_CLOSE_DELAY=-1"));
+		this.jdbcTemplate.execute("create table test (id bigint, name varchar(2000), tag char(1))");
+		for (int i = 1; i <= 5; i++) {
+			this.jdbcTemplate.update("insert into test values (?, ?, null)", i, "name" + i);
+		}
+		this.producer = new R2dbcMessageProducer(new H2ConnectionFactory(H2ConnectionConfiguration.builder()
+				.url("mem:" + this.database + ";DB_CLOSE_DELAY=-1")
+				.build()), "select id, name from test where tag is null order by id");
+		this.producer.setUpdate("update test set tag = '1' where id = :id");
+		this.producer.setDelay(Duration.ofMillis(100));
+		this.producer.setOutputChannel(this.output);
+		this.producer.setBeanFactory(new DefaultListableBeanFactory());
+		this.producer.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() {
+		this.producer.stop();
+		this.output.clear();
+		this.jdbcTemplate.execute("shutdown");
+	}
+
+	@Test
+	public void streamsRowsAndMarksThemSeen() {
+		this.producer.start();
+		for (int i = 1; i <= 5; i++) {
+			Message<?> received = this.output.receive(10000);
+			assertNotNull(received);
+			assertThat(((Map<?, ?>) received.getPayload()).get("ID"), is((Object) (long) i));
+		}
+		assertThat(this.output.receive(500) == null, is(true));
+		assertThat(tagged(), is(5));
+	}
+
+	@Test
+	public void marksRowsSeenOnceTheirBatchWasSent() throws InterruptedException {
+		this.producer.start();
+		Thread.sleep(500);
+		// the first row waits in the full channel, the second one is being sent
+		assertThat(this.output.getQueueSize(), is(1));
+		assertThat(tagged(), is(0));
+		for (int i = 1; i <= 5; i++) {
+			assertNotNull(this.output.receive(10000));
+		}
+		Thread.sleep(500);
+		assertThat(tagged(), is(5));
+	}
+
+	@Test
+	public void sendsOffTheDriverThreads() {
+		List<String> senders = new CopyOnWriteArrayList<>();
+		this.output.addInterceptor(new ChannelInterceptor() {
+
+			@Override
+			public Message<?> preSend(Message<?> message, MessageChannel channel) {
+				senders.add(Thread.currentThread().getName());
+				return message;
+			}
+
+		});
+		this.producer.start();
+		for (int i = 1; i <= 5; i++) {
+			assertNotNull(this.output.receive(10000));
+		}
+		assertThat(senders.size(), is(5));
+		assertThat(senders.stream().allMatch(name -> name.startsWith("r2dbc-source")), is(true));
+	}
+
+	@Test
+	public void rewritesPlaceholdersOutsideOfQuotes() {
+		assertThat(R2dbcMessageProducer.toIndexedPlaceholders("update t set a = '?', b = ? where c = ? and d = \"?\""),
+				is("update t set a = '?', b = $1 where c = $2 and d = \"?\""));
+	}
+
+	private int tagged() {
+		return this.jdbcTemplate.queryForObject("select count(*) from test where tag is not null", Integer.class);
+	}
+
+}
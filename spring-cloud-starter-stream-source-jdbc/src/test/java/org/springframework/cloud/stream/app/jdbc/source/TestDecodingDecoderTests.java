@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.jdbc.source;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.springframework.cloud.stream.app.jdbc.source.RowChange.Operation;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for TestDecodingDecoder, against lines as printed by the plugin.
+ */
+public class TestDecodingDecoderTests {
+
+	private final TestDecodingDecoder decoder = new TestDecodingDecoder();
+
+	@Test
+	public void skipsTransactions() {
+		assertThat(this.decoder.decode("BEGIN 529"), nullValue());
+		assertThat(this.decoder.decode("COMMIT 529"), nullValue());
+		assertThat(this.decoder.decode("table public.orders: TRUNCATE: (no-flags)"), nullValue());
+	}
+
+	@Test
+	public void decodesInserts() {
+		RowChange change = this.decoder.decode("table public.orders: INSERT: id[integer]:1 "
+				+ "note[character varying]:'it''s: [done]' tags[text[]]:'{a,b}' paid[boolean]:true closed[date]:null");
+		assertThat(change.getOperation(), is(Operation.INSERT));
+		assertThat(change.getSchema(), is("public"));
+		assertThat(change.getTable(), is("orders"));
+		Map<String, Object> expected = new LinkedHashMap<>();
+		expected.put("id", "1");
+		expected.put("note", "it's: [done]");
+		expected.put("tags", "{a,b}");
+		expected.put("paid", "true");
+		expected.put("closed", null);
+		assertThat(change.getColumns(), is(expected));
+		assertThat(change.getOldColumns(), nullValue());
+	}
+
+	@Test
+	public void decodesUpdatesWithOldKeyAndQuotedNames() {
+		RowChange change = this.decoder.decode("table \"Sales\".\"Order.Lines\": UPDATE: old-key: id[bigint]:1 "
+				+ "new-tuple: id[bigint]:2 \"Body\"[text]:unchanged-toast-datum");
+		assertThat(change.getOperation(), is(Operation.UPDATE));
+		assertThat(change.getSchema(), is("Sales"));
+		assertThat(change.getTable(), is("Order.Lines"));
+		assertThat(change.getColumns(), is(Collections.singletonMap("id", "2")));
+		assertThat(change.getOldColumns(), is(Collections.singletonMap("id", "1")));
+	}
+
+	@Test
+	public void decodesDeletes() {
+		RowChange change = this.decoder.decode("table public.orders: DELETE: id[integer]:3");
+		assertThat(change.getOperation(), is(Operation.DELETE));
+		assertThat(change.getColumns(), is(Collections.singletonMap("id", "3")));
+		change = this.decoder.decode("table public.events: DELETE: (no-tuple-data)");
+		assertThat(change.getColumns().isEmpty(), is(true));
+	}
+
+}